@@ -0,0 +1,138 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.archiver.AbstractArchiver;
+import org.codehaus.plexus.archiver.AbstractUnArchiver;
+import org.codehaus.plexus.archiver.zip.ZipArchiver;
+import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures packing and unpacking of synthetic <code>node_modules</code> trees, with the archivers and
+ * extractors that {@link net.kozelka.npmpack.mojo.NodeModulesMojo} chooses from.
+ *
+ * @author Petr Kozelka
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ArchiveBenchmark {
+    private static final String[] EXCLUDES = {"**/.bin/**"};
+
+    @Param({"10000", "50000", "150000"})
+    int fileCount;
+
+    private File dir;
+    private File tree;
+    private File zip;
+    private File storedZip;
+    private File tarZst;
+    private File out;
+    private File archive;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = File.createTempFile("npmpack-bench", "");
+        dir.delete();
+        tree = new File(dir, "node_modules");
+        SyntheticTree.generate(tree, fileCount);
+        zip = new File(dir, "tree.zip");
+        new ParallelArchiver(tree, EXCLUDES).createZip(zip);
+        storedZip = new File(dir, "tree-stored.zip");
+        final ZipArchiver stored = new ZipArchiver();
+        stored.setCompress(false);
+        createArchive(stored, storedZip);
+        tarZst = new File(dir, "tree.tar.zst");
+        createArchive(new TarZstdArchiver(), tarZst);
+        out = new File(dir, "out");
+        archive = new File(dir, "packed");
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() throws IOException {
+        TreeDeleter.delete(out.toPath());
+        TreeDeleter.delete(archive.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        TreeDeleter.delete(dir.toPath());
+    }
+
+    private void createArchive(AbstractArchiver archiver, File destFile) throws IOException {
+        archiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "bench"));
+        archiver.setDestFile(destFile);
+        archiver.addDirectory(tree, null, EXCLUDES);
+        archiver.createArchive();
+    }
+
+    private void extract(AbstractUnArchiver unArchiver, File sourceFile) {
+        unArchiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "bench"));
+        unArchiver.setSourceFile(sourceFile);
+        out.mkdirs();
+        unArchiver.setDestDirectory(out);
+        unArchiver.setUseJvmChmod(true);
+        unArchiver.extract();
+    }
+
+    @Benchmark
+    public void packZip() throws IOException {
+        createArchive(new ZipArchiver(), archive);
+    }
+
+    @Benchmark
+    public void packZipParallel() throws IOException {
+        new ParallelArchiver(tree, EXCLUDES).createZip(archive);
+    }
+
+    @Benchmark
+    public void packTarGzParallel() throws IOException {
+        new ParallelArchiver(tree, EXCLUDES).createTarGz(archive);
+    }
+
+    @Benchmark
+    public void packTarZst() throws IOException {
+        createArchive(new TarZstdArchiver(), archive);
+    }
+
+    @Benchmark
+    public void unpackZip() {
+        extract(new ZipUnArchiver(), zip);
+    }
+
+    @Benchmark
+    public void unpackZipParallel() {
+        extract(new ParallelZipUnArchiver(), zip);
+    }
+
+    @Benchmark
+    public void unpackStoredZipMapped() {
+        final ParallelZipUnArchiver unArchiver = new ParallelZipUnArchiver();
+        unArchiver.setMemoryMapped(true);
+        extract(unArchiver, storedZip);
+    }
+
+    @Benchmark
+    public void unpackTarZst() {
+        extract(new TarZstdUnArchiver(), tarZst);
+    }
+}
@@ -0,0 +1,103 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures computation of the package.json hash, the way previous versions did it and the current way.
+ *
+ * @author Petr Kozelka
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackageJsonBenchmark {
+    @Param({"50", "1000"})
+    int dependencyCount;
+
+    private File dir;
+    private File packageJson;
+    private String text;
+    private FingerprintCache fingerprintCache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = File.createTempFile("npmpack-bench", "");
+        dir.delete();
+        dir.mkdirs();
+        packageJson = new File(dir, "package.json");
+        text = SyntheticTree.packageJson(dependencyCount);
+        FileUtils.fileWrite(packageJson, "UTF-8", text);
+        fingerprintCache = new FingerprintCache(new File(dir, "fingerprint"));
+        fingerprintCache.store(packageJson, "bench", "hash");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * What <code>readPackageJson</code> used to do: parse, sort the tree and pretty-print it.
+     */
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public String legacyCanonicalize() {
+        final JsonObject root = (JsonObject) new JsonParser().parse(text);
+        root.addProperty("name", PackageJsonDigest.ANONYMIZED);
+        root.addProperty("version", PackageJsonDigest.ANONYMIZED);
+        JsonUtils.sortJsonDeep(root);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(root);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public String legacyHash() throws IOException, NoSuchAlgorithmException {
+        return Utils.md5sum(legacyCanonicalize());
+    }
+
+    @Benchmark
+    public String canonicalize() throws IOException {
+        final StringWriter sw = new StringWriter();
+        PackageJsonDigest.writeCanonical(PackageJsonDigest.parse(packageJson, true), sw);
+        return sw.toString();
+    }
+
+    @Benchmark
+    public String streamingMd5() throws IOException, NoSuchAlgorithmException {
+        return new PackageJsonDigest("MD5", true).digest(packageJson);
+    }
+
+    @Benchmark
+    public String streamingSha256() throws IOException, NoSuchAlgorithmException {
+        return new PackageJsonDigest("SHA-256", true).digest(packageJson);
+    }
+
+    @Benchmark
+    public String fingerprintHit() throws IOException {
+        return fingerprintCache.lookup(packageJson, "bench");
+    }
+}
@@ -0,0 +1,75 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Generates <code>node_modules</code>-like trees and <code>package.json</code> files for benchmarks.
+ * <p>Content is pseudo-random but deterministic, so that results are comparable between runs.</p>
+ *
+ * @author Petr Kozelka
+ */
+final class SyntheticTree {
+    private static final int FILES_PER_PACKAGE = 40;
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * Creates a tree with (approximately) given number of files: packages with package.json, sources
+     * of various sizes and occasional nested node_modules.
+     */
+    static void generate(File nodeModules, int fileCount) throws IOException {
+        final Random random = new Random(fileCount);
+        int created = 0;
+        int pkg = 0;
+        while (created < fileCount) {
+            // every tenth package is nested into the previous one
+            final File pkgDir = pkg % 10 == 9
+                    ? new File(nodeModules, "pkg" + (pkg - 1) + "/node_modules/pkg" + pkg)
+                    : new File(nodeModules, "pkg" + pkg);
+            new File(pkgDir, "lib").mkdirs();
+            FileUtils.fileWrite(new File(pkgDir, "package.json"), "{\"name\":\"pkg" + pkg + "\",\"version\":\"1.0." + pkg + "\",\"main\":\"lib/f0.js\"}");
+            created++;
+            for (int i = 1; i < FILES_PER_PACKAGE && created < fileCount; i++) {
+                FileUtils.fileWrite(new File(pkgDir, "lib/f" + i + ".js"), source(random));
+                created++;
+            }
+            pkg++;
+        }
+    }
+
+    private static String source(Random random) {
+        // mostly small files, some larger ones, like in real node_modules
+        final int lines = random.nextInt(10) == 0 ? 200 + random.nextInt(800) : 5 + random.nextInt(40);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("var v").append(i).append(" = require('m").append(random.nextInt(500)).append("')(")
+                    .append(random.nextInt()).append(");\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a large package.json with given number of dependencies, in a deliberately unsorted order.
+     */
+    static String packageJson(int dependencyCount) {
+        final Random random = new Random(dependencyCount);
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"version\": \"1.2.3\",\n  \"name\": \"benchmark-app\",\n");
+        sb.append("  \"scripts\": {\"test\": \"mocha && eslint .\", \"build\": \"grunt dist\", \"postinstall\": \"node tools/setup.js\"},\n");
+        for (String section : new String[]{"dependencies", "devDependencies"}) {
+            sb.append("  \"").append(section).append("\": {\n");
+            for (int i = 0; i < dependencyCount; i++) {
+                sb.append(i == 0 ? "" : ",\n");
+                sb.append("    \"module-").append(Integer.toHexString(random.nextInt())).append("\": \"^")
+                        .append(random.nextInt(10)).append('.').append(random.nextInt(30)).append(".0\"");
+            }
+            sb.append("\n  },\n");
+        }
+        sb.append("  \"config\": {\"targets\": [{\"zeta\": 1, \"alpha\": [\"x\", \"y\"]}, {\"b\": true, \"a\": null}]}\n}\n");
+        return sb.toString();
+    }
+}
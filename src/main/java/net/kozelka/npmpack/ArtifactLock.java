@@ -0,0 +1,128 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive access to producing one artifact, across threads of this JVM and across processes.
+ * <p>Threads are coordinated by an in-memory lock per key; processes by a {@link FileLock} on a lock file, typically
+ * next to the artifact in the local repository. File locks are held by the whole JVM, so the in-memory lock must
+ * be taken first. An in-memory lock is forgotten as soon as nobody holds it or waits for it, so that long-lived JVMs
+ * do not accumulate one per artifact ever produced.</p>
+ * <p>{@link #hasWaited()} tells whether someone else held the lock before us; in that case, the artifact was most
+ * likely produced meanwhile and can be reused.</p>
+ *
+ * @author Petr Kozelka
+ */
+public final class ArtifactLock {
+    private static final Map<String, Users> LOCKS = new HashMap<String, Users>();
+
+    /**
+     * In-memory lock, with the number of threads holding it or waiting for it.
+     */
+    private static final class Users {
+        final ReentrantLock lock = new ReentrantLock();
+        int count;
+    }
+
+    private final String key;
+    private final Users users;
+    private final RandomAccessFile file;
+    private final FileLock fileLock;
+    private final boolean waited;
+
+    private ArtifactLock(String key, Users users, RandomAccessFile file, FileLock fileLock, boolean waited) {
+        this.key = key;
+        this.users = users;
+        this.file = file;
+        this.fileLock = fileLock;
+        this.waited = waited;
+    }
+
+    /**
+     * Blocks until the lock for given key is available in this JVM, and then until the lock file is available.
+     * @param key identifies the artifact within this JVM
+     * @param lockFile identifies the artifact across processes; created if missing
+     */
+    public static ArtifactLock acquire(String key, File lockFile) throws IOException {
+        final Users users;
+        synchronized (LOCKS) {
+            Users existing = LOCKS.get(key);
+            if (existing == null) {
+                existing = new Users();
+                LOCKS.put(key, existing);
+            }
+            existing.count++;
+            users = existing;
+        }
+        final ReentrantLock lock = users.lock;
+        boolean waited = false;
+        if (!lock.tryLock()) {
+            waited = true;
+            try {
+                lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                leave(key, users);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + key, e);
+            }
+        }
+        RandomAccessFile file = null;
+        try {
+            lockFile.getParentFile().mkdirs();
+            file = new RandomAccessFile(lockFile, "rw");
+            FileLock fileLock = file.getChannel().tryLock();
+            if (fileLock == null) {
+                waited = true;
+                fileLock = file.getChannel().lock();
+            }
+            return new ArtifactLock(key, users, file, fileLock, waited);
+        } catch (IOException e) {
+            if (file != null) {
+                file.close();
+            }
+            lock.unlock();
+            leave(key, users);
+            throw e;
+        }
+    }
+
+    private static void leave(String key, Users users) {
+        synchronized (LOCKS) {
+            if (--users.count == 0) {
+                LOCKS.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return number of keys that are currently locked or waited for in this JVM
+     */
+    static int activeKeys() {
+        synchronized (LOCKS) {
+            return LOCKS.size();
+        }
+    }
+
+    /**
+     * @return true if the lock was held by another thread or process when we asked for it
+     */
+    public boolean hasWaited() {
+        return waited;
+    }
+
+    public void release() throws IOException {
+        try {
+            fileLock.release();
+            file.close();
+        } finally {
+            users.lock.unlock();
+            leave(key, users);
+        }
+    }
+}
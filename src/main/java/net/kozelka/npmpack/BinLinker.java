@@ -0,0 +1,218 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.Os;
+
+/**
+ * Does the cheap part of <code>npm rebuild</code> without spawning node.
+ * <p>Walks all packages in a <code>node_modules</code> tree, including scoped and nested ones, and creates the
+ * <code>.bin</code> links declared by their <code>bin</code> field, or, without it, one for each file in the directory
+ * named by <code>directories.bin</code>. On Windows, <code>.cmd</code> shims are written instead.</p>
+ * <p>Fields of unexpected type are ignored, as if they were missing.</p>
+ * <p>It also collects packages that really need npm: those with <code>binding.gyp</code> (native addons)
+ * or with an install, preinstall or postinstall script.</p>
+ * <p>Hardlinked bin targets are {@link TreeLinker#detach detached} before they are made executable.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class BinLinker {
+    private static final String[] INSTALL_SCRIPTS = {"preinstall", "install", "postinstall"};
+
+    private final File nodeModules;
+    private final Set<String> rebuildPackages = new TreeSet<String>();
+    private final Set<String> rebuildDirectories = new TreeSet<String>();
+    private boolean linkBins = true;
+    private int linkCount;
+
+    public BinLinker(File nodeModules) {
+        this.nodeModules = nodeModules;
+    }
+
+    /**
+     * @param linkBins if false, packages to rebuild are collected, but no <code>.bin</code> links are created
+     */
+    public void setLinkBins(boolean linkBins) {
+        this.linkBins = linkBins;
+    }
+
+    public void link() throws IOException {
+        linkPackagesIn(nodeModules);
+    }
+
+    private void linkPackagesIn(File modulesDir) throws IOException {
+        final File[] children = modulesDir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            final String name = child.getName();
+            if (name.startsWith(".") || !isRealDirectory(child)) {
+                continue;
+            }
+            if (name.startsWith("@")) {
+                final File[] scoped = child.listFiles();
+                if (scoped != null) {
+                    for (File pkg : scoped) {
+                        if (isRealDirectory(pkg)) {
+                            linkPackage(modulesDir, pkg, name + "/" + pkg.getName());
+                        }
+                    }
+                }
+            } else {
+                linkPackage(modulesDir, child, name);
+            }
+        }
+    }
+
+    private static boolean isRealDirectory(File file) {
+        return file.isDirectory() && !Files.isSymbolicLink(file.toPath());
+    }
+
+    private void linkPackage(File modulesDir, File pkg, String dirName) throws IOException {
+        final File packageJson = new File(pkg, "package.json");
+        if (packageJson.isFile()) {
+            final JsonObject root;
+            try {
+                final JsonElement parsed = new JsonParser().parse(FileUtils.fileRead(packageJson, "UTF-8"));
+                root = parsed.isJsonObject() ? parsed.getAsJsonObject() : new JsonObject();
+            } catch (JsonParseException e) {
+                throw new IOException("Invalid " + packageJson, e);
+            }
+            final JsonElement name = root.get("name");
+            final String packageName = name != null && name.isJsonPrimitive() ? name.getAsString() : dirName;
+            if (linkBins) {
+                for (Map.Entry<String, String> bin : bins(pkg, root, packageName).entrySet()) {
+                    createBin(new File(modulesDir, ".bin"), bin.getKey(), dirName + "/" + bin.getValue());
+                }
+            }
+            if (needsRebuild(pkg, root)) {
+                rebuildPackages.add(packageName);
+                rebuildDirectories.add(nodeModules.toPath().relativize(pkg.toPath()).toString().replace(File.separatorChar, '/'));
+            }
+        }
+        linkPackagesIn(new File(pkg, "node_modules"));
+    }
+
+    private static Map<String, String> bins(File pkg, JsonObject root, String packageName) {
+        final Map<String, String> result = new LinkedHashMap<String, String>();
+        final JsonElement bin = root.get("bin");
+        if (bin == null || bin.isJsonNull()) {
+            final JsonElement directories = root.get("directories");
+            if (directories != null && directories.isJsonObject()) {
+                final JsonElement binDirectory = directories.getAsJsonObject().get("bin");
+                if (binDirectory != null && binDirectory.isJsonPrimitive()) {
+                    addBinDirectory(result, pkg, binDirectory.getAsString());
+                }
+            }
+            return result;
+        }
+        if (bin.isJsonPrimitive()) {
+            // a single executable is named after the package, without scope
+            result.put(packageName.substring(packageName.lastIndexOf('/') + 1), bin.getAsString());
+        } else if (bin.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : bin.getAsJsonObject().entrySet()) {
+                if (entry.getValue().isJsonPrimitive()) {
+                    result.put(entry.getKey(), entry.getValue().getAsString());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds all files under the directory, named by their file name, the way npm reads <code>directories.bin</code>.
+     */
+    private static void addBinDirectory(Map<String, String> result, File pkg, String binDirectory) {
+        final String path = binDirectory.replace('\\', '/');
+        if (path.startsWith("/") || ("/" + path + "/").contains("/../")) {
+            return;
+        }
+        final File[] children = new File(pkg, path).listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            final String name = child.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            final String childPath = path.endsWith("/") ? path + name : path + "/" + name;
+            if (isRealDirectory(child)) {
+                addBinDirectory(result, pkg, childPath);
+            } else if (child.isFile()) {
+                result.put(name, childPath);
+            }
+        }
+    }
+
+    private static boolean needsRebuild(File pkg, JsonObject root) {
+        if (new File(pkg, "binding.gyp").isFile()) {
+            return true;
+        }
+        final JsonElement scripts = root.get("scripts");
+        if (scripts != null && scripts.isJsonObject()) {
+            for (String script : INSTALL_SCRIPTS) {
+                if (scripts.getAsJsonObject().has(script)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void createBin(File binDir, String name, String relativeTarget) throws IOException {
+        final String target = relativeTarget.replace("/./", "/");
+        if (name.length() == 0 || name.contains("/") || name.contains("\\") || name.startsWith(".")
+                || ("/" + target + "/").contains("/../")) {
+            return;
+        }
+        final File targetFile = new File(binDir.getParentFile(), target);
+        if (!targetFile.isFile()) {
+            return;
+        }
+        binDir.mkdirs();
+        if (Os.isFamily(Os.FAMILY_WINDOWS)) {
+            FileUtils.fileWrite(new File(binDir, name + ".cmd"),
+                    "@node \"%~dp0\\..\\" + target.replace('/', '\\') + "\" %*\r\n");
+        } else {
+            final Path link = new File(binDir, name).toPath();
+            Files.deleteIfExists(link);
+            Files.createSymbolicLink(link, new File("..", target).toPath());
+            if (!targetFile.canExecute()) {
+                TreeLinker.detach(targetFile);
+                targetFile.setExecutable(true, false);
+            }
+        }
+        linkCount++;
+    }
+
+    /**
+     * @return names of packages which need <code>npm rebuild</code>, sorted
+     */
+    public Set<String> getRebuildPackages() {
+        return rebuildPackages;
+    }
+
+    /**
+     * @return directories of packages which need <code>npm rebuild</code>, relative to <code>node_modules</code>, sorted
+     */
+    public Set<String> getRebuildDirectories() {
+        return rebuildDirectories;
+    }
+
+    public int getLinkCount() {
+        return linkCount;
+    }
+}
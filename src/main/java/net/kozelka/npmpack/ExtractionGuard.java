@@ -0,0 +1,101 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps extracted entries inside the destination directory.
+ * <p>Entry names must be relative and must not contain <code>..</code>. Nothing is written through a symbolic link,
+ * whether it existed before or was extracted. Symbolic links may only point inside the destination: their target must
+ * be relative, and may go up (<code>..</code>) only before it descends, so that the links it passes through cannot
+ * lead out of the destination either.</p>
+ * <p>Not thread-safe.</p>
+ *
+ * @author Petr Kozelka
+ */
+final class ExtractionGuard {
+    private final File destDirectory;
+    private final Path destPath;
+    private final Set<Path> safeDirectories = new HashSet<Path>();
+
+    ExtractionGuard(File destDirectory) {
+        this.destDirectory = destDirectory;
+        this.destPath = destDirectory.getAbsoluteFile().toPath().normalize();
+    }
+
+    /**
+     * @return the file to which the entry extracts
+     * @throws IOException if the entry name leads outside of the destination
+     */
+    File entryFile(String entryName) throws IOException {
+        final String name = entryName.replace('\\', '/');
+        if (name.startsWith("/") || ("/" + name + "/").contains("/../")) {
+            throw new IOException("Entry is outside of the target directory: " + entryName);
+        }
+        return new File(destDirectory, name);
+    }
+
+    /**
+     * Verifies that neither the directory nor any of its parents below the destination is a symbolic link.
+     * Directories that do not exist yet pass; they are expected to be created right after.
+     */
+    void checkDirectory(File directory) throws IOException {
+        final List<Path> checked = new ArrayList<Path>();
+        Path path = directory.getAbsoluteFile().toPath().normalize();
+        while (!path.equals(destPath) && !safeDirectories.contains(path)) {
+            if (!path.startsWith(destPath)) {
+                throw new IOException("Entry is outside of the target directory: " + directory);
+            }
+            if (Files.isSymbolicLink(path)) {
+                throw new IOException("Entry would be extracted through a symbolic link: " + path);
+            }
+            checked.add(path);
+            path = path.getParent();
+        }
+        safeDirectories.addAll(checked);
+    }
+
+    /**
+     * Verifies that the file is not extracted through a symbolic link.
+     */
+    void checkParents(File file) throws IOException {
+        checkDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * @param link the symbolic link about to be created
+     * @param target the link target, as stored in the archive
+     * @return the target
+     * @throws IOException if the link is extracted through another link, or its target leads outside of the destination
+     */
+    Path linkTarget(File link, String target) throws IOException {
+        checkParents(link);
+        final String normalized = target.replace('\\', '/');
+        boolean descended = false;
+        for (String segment : normalized.split("/")) {
+            if (segment.equals("..")) {
+                if (descended) {
+                    throw new IOException(String.format("Link target goes up after descending: %s -> %s", link, target));
+                }
+            } else if (segment.length() > 0 && !segment.equals(".")) {
+                descended = true;
+            }
+        }
+        final Path targetPath = Paths.get(target);
+        final Path linkPath = link.getAbsoluteFile().toPath().normalize();
+        if (normalized.length() == 0 || normalized.startsWith("/") || targetPath.isAbsolute()
+                || !linkPath.getParent().resolve(targetPath).normalize().startsWith(destPath)) {
+            throw new IOException(String.format("Link target is outside of the target directory: %s -> %s", link, target));
+        }
+        // a directory replaced by the link is no longer safe to write into
+        safeDirectories.remove(linkPath);
+        return targetPath;
+    }
+}
@@ -0,0 +1,64 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Remembers a value derived from a file's content, keyed by the file's raw fingerprint.
+ * <p>The fingerprint consists of size, modification time and CRC32 of the raw bytes. When it matches, the derived
+ * value (typically a hash of normalized content) can be reused without parsing the file again.
+ * The <code>variant</code> describes how the value was derived; a value derived differently is never reused.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class FingerprintCache {
+    private final File cacheFile;
+
+    public FingerprintCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * @return the cached value, or null if the file or the variant differs from what was stored
+     */
+    public String lookup(File file, String variant) throws IOException {
+        if (!cacheFile.isFile() || !file.isFile()) {
+            return null;
+        }
+        final Properties props = new Properties();
+        final InputStream is = new FileInputStream(cacheFile);
+        try {
+            props.load(is);
+        } finally {
+            is.close();
+        }
+        if (!variant.equals(props.getProperty("variant"))
+                || !String.valueOf(file.length()).equals(props.getProperty("size"))
+                || !String.valueOf(file.lastModified()).equals(props.getProperty("mtime"))
+                || !String.valueOf(Utils.crc32(file)).equals(props.getProperty("crc"))) {
+            return null;
+        }
+        return props.getProperty("value");
+    }
+
+    public void store(File file, String variant, String value) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty("variant", variant);
+        props.setProperty("size", String.valueOf(file.length()));
+        props.setProperty("mtime", String.valueOf(file.lastModified()));
+        props.setProperty("crc", String.valueOf(Utils.crc32(file)));
+        props.setProperty("value", value);
+        cacheFile.getParentFile().mkdirs();
+        final OutputStream os = new FileOutputStream(cacheFile);
+        try {
+            props.store(os, "fingerprint of " + file.getName());
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Long-lived Node process that runs grunt tasks in-process, so that Node, grunt and its plugins are loaded once per
+ * build instead of once per execution.
+ * <p>There is one worker per node executable, shared by all modules of the reactor. The worker listens on a loopback
+ * port and accepts requests authenticated by a random token; requests are served one at a time. The worker is
+ * stopped when the JVM exits; it also exits by itself when its stdin is closed, or after being idle for the given
+ * time. A worker that has exited (for instance after a failed run, see <code>grunt-worker.js</code>) is restarted on
+ * the next request.</p>
+ *
+ * @author Petr Kozelka
+ */
+public final class GruntDaemon {
+    private static final String SCRIPT = "grunt-worker.js";
+    private static final String PORT_ANNOUNCEMENT = "NPMPACK_WORKER_PORT ";
+    private static final int EXIT_TIMEOUT_SECONDS = 10;
+    private static final Map<String, GruntDaemon> DAEMONS = new HashMap<String, GruntDaemon>();
+    private static Thread shutdownHook;
+
+    private final String nodeExecutable;
+    private final int idleTimeout;
+    private final String token = UUID.randomUUID().toString();
+    private Process process;
+    private int port;
+    private int startCount;
+    private File script;
+
+    private GruntDaemon(String nodeExecutable, int idleTimeout) {
+        this.nodeExecutable = nodeExecutable;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param nodeExecutable the node executable; one daemon is kept for each
+     * @param idleTimeout seconds after which an idle worker exits; 0 means never
+     */
+    public static GruntDaemon get(String nodeExecutable, int idleTimeout) {
+        synchronized (DAEMONS) {
+            GruntDaemon daemon = DAEMONS.get(nodeExecutable);
+            if (daemon == null) {
+                daemon = new GruntDaemon(nodeExecutable, idleTimeout);
+                DAEMONS.put(nodeExecutable, daemon);
+            }
+            if (shutdownHook == null) {
+                shutdownHook = new Thread("npmpack-grunt-daemon-shutdown") {
+                    @Override
+                    public void run() {
+                        stopAll();
+                    }
+                };
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+            return daemon;
+        }
+    }
+
+    /**
+     * Stops all workers of this JVM.
+     */
+    public static void stopAll() {
+        final List<GruntDaemon> daemons;
+        synchronized (DAEMONS) {
+            daemons = new ArrayList<GruntDaemon>(DAEMONS.values());
+        }
+        for (GruntDaemon daemon : daemons) {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Runs grunt in the worker, starting the worker if needed. Blocks until the run is finished.
+     * @param workingDirectory where to run grunt; the Gruntfile is searched from here
+     * @param gruntModule the directory of the <code>grunt</code> module to use
+     * @param arguments task names and <code>--options</code>, like on grunt commandline
+     * @return the exit code of the run
+     */
+    public synchronized int run(File workingDirectory, File gruntModule, List<String> arguments,
+                                StreamConsumer stdout, StreamConsumer stderr) throws IOException {
+        ensureStarted();
+        final JsonObject request = new JsonObject();
+        request.addProperty("token", token);
+        request.addProperty("cwd", workingDirectory.getAbsolutePath());
+        request.addProperty("gruntModule", gruntModule.getAbsolutePath());
+        final JsonArray args = new JsonArray();
+        for (String argument : arguments) {
+            args.add(new JsonPrimitive(argument));
+        }
+        request.add("args", args);
+
+        final Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        try {
+            final Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            writer.write(request.toString());
+            writer.write('\n');
+            writer.flush();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line = reader.readLine();
+            while (line != null) {
+                final String text = line.length() > 2 ? line.substring(2) : "";
+                if (line.startsWith("O ")) {
+                    stdout.consumeLine(text);
+                } else if (line.startsWith("E ")) {
+                    stderr.consumeLine(text);
+                } else if (line.startsWith("X ")) {
+                    final int exitCode = Integer.parseInt(text.trim());
+                    if (exitCode != 0) {
+                        awaitExit();
+                    }
+                    return exitCode;
+                }
+                line = reader.readLine();
+            }
+            throw new IOException("Grunt worker terminated without reporting the result");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return how many times the worker process has been started
+     */
+    public synchronized int getStartCount() {
+        return startCount;
+    }
+
+    public synchronized void stop() {
+        if (process != null) {
+            IOUtil.close(process.getOutputStream());
+            process.destroy();
+            process = null;
+        }
+    }
+
+    /**
+     * After a failed run, the worker exits by itself; make sure it is gone before the next request.
+     */
+    private void awaitExit() throws IOException {
+        try {
+            if (!process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                stop();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+            throw new IOException("Interrupted while waiting for grunt worker to exit", e);
+        }
+    }
+
+    private void ensureStarted() throws IOException {
+        if (process != null && process.isAlive()) {
+            return;
+        }
+        if (script == null || !script.isFile()) {
+            script = extractScript();
+        }
+        final ProcessBuilder pb = new ProcessBuilder(nodeExecutable, script.getAbsolutePath(), token, String.valueOf(idleTimeout));
+        pb.redirectErrorStream(true);
+        process = pb.start();
+        startCount++;
+        final InputStream is = process.getInputStream();
+        final StringBuilder output = new StringBuilder();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line = reader.readLine();
+        while (line != null && !line.startsWith(PORT_ANNOUNCEMENT)) {
+            output.append(line).append('\n');
+            line = reader.readLine();
+        }
+        if (line == null) {
+            stop();
+            throw new IOException("Grunt worker failed to start: " + output);
+        }
+        port = Integer.parseInt(line.substring(PORT_ANNOUNCEMENT.length()).trim());
+        drain(reader);
+    }
+
+    /**
+     * Discards whatever the worker writes outside of requests, so that it never blocks on a full pipe.
+     */
+    private static void drain(final BufferedReader reader) {
+        final Thread thread = new Thread("npmpack-grunt-daemon-drain") {
+            @Override
+            public void run() {
+                try {
+                    String line = reader.readLine();
+                    while (line != null) {
+                        line = reader.readLine();
+                    }
+                } catch (IOException e) {
+                    // the worker is gone
+                    return;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static File extractScript() throws IOException {
+        final File script = File.createTempFile("npmpack-grunt-worker", ".js");
+        script.deleteOnExit();
+        final InputStream is = GruntDaemon.class.getResourceAsStream(SCRIPT);
+        if (is == null) {
+            throw new IOException("Resource not found: " + SCRIPT);
+        }
+        try {
+            final OutputStream os = new FileOutputStream(script);
+            try {
+                IOUtil.copy(is, os);
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        return script;
+    }
+}
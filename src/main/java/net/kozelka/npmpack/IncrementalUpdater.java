@@ -0,0 +1,254 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Updates an existing unpacked tree to match the content of a zip archive, touching only the files that differ.
+ * <p>Files are compared by path, size and CRC32 of the archive entries. If the manifest of the previous content is
+ * available, files whose size and modification time match it are trusted without reading them; otherwise, the CRC32
+ * is computed from the file content (in parallel).</p>
+ * <p>Symbolic links are kept if they point to the same target. Directories of the archive that are missing are
+ * created, and files and directories not present in the archive are deleted.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class IncrementalUpdater {
+    private static final int BATCH_SIZE = 64;
+
+    private final File archive;
+    private final File directory;
+    private final Set<String> preserved = new HashSet<String>();
+    private Manifest previousManifest;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int unchangedCount;
+    private int updatedCount;
+    private int removedCount;
+
+    public IncrementalUpdater(File archive, File directory) {
+        this.archive = archive;
+        this.directory = directory;
+    }
+
+    /**
+     * @param previousManifest manifest describing the current content of the directory; may be <code>null</code>
+     */
+    public void setPreviousManifest(Manifest previousManifest) {
+        this.previousManifest = previousManifest;
+    }
+
+    /**
+     * @param path relative path (with forward slashes) of a file that must be left untouched even if it is not in the archive
+     */
+    public void addPreserved(String path) {
+        preserved.add(path);
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Performs the update.
+     * @return manifest of the archive, which now describes the updated directory
+     * @throws IOException -
+     */
+    public Manifest update() throws IOException {
+        final Manifest manifest = Manifest.fromZip(archive);
+        final Set<String> archiveDirectories = new HashSet<String>();
+        final Set<String> toExtract = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Map<String, Long> times = new HashMap<String, Long>();
+        for (Manifest.Entry entry : manifest.getEntries()) {
+            toExtract.add(entry.getPath());
+            addParents(archiveDirectories, entry.getPath());
+        }
+        // directory entries by path, and link targets; the manifest has neither
+        final Map<String, String> directoryEntries = new HashMap<String, String>();
+        final Map<String, String> linkTargets = new HashMap<String, String>();
+        final ZipFile zipFile = new ZipFile(archive);
+        try {
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) {
+                if (entry.isDirectory()) {
+                    final String path = entry.getName().replace('\\', '/').replaceAll("/+$", "");
+                    directoryEntries.put(path, entry.getName());
+                    archiveDirectories.add(path);
+                    addParents(archiveDirectories, path);
+                } else if (entry.isUnixSymlink()) {
+                    linkTargets.put(entry.getName(), zipFile.getUnixSymlink(entry));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        // single stat-only walk: remove what is gone, trust what the previous manifest confirms, collect the rest
+        final List<String> suspicious = new ArrayList<String>();
+        final Path root = directory.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                final String rel = relative(root, dir);
+                if (archiveDirectories.contains(rel) || preserved.contains(rel)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                FileUtils.deleteDirectory(dir.toFile());
+                removedCount++;
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String rel = relative(root, file);
+                if (preserved.contains(rel)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                final Manifest.Entry entry = manifest.get(rel);
+                final String linkTarget = linkTargets.get(rel);
+                if (entry == null) {
+                    Files.delete(file);
+                    removedCount++;
+                } else if (linkTarget != null) {
+                    if (attrs.isSymbolicLink()
+                            && Files.readSymbolicLink(file).toString().replace(File.separatorChar, '/').equals(linkTarget.replace('\\', '/'))) {
+                        toExtract.remove(rel);
+                        unchangedCount++;
+                    }
+                } else if (attrs.isRegularFile() && attrs.size() == entry.getSize()) {
+                    times.put(rel, attrs.lastModifiedTime().toMillis());
+                    final Manifest.Entry previous = previousManifest == null ? null : previousManifest.get(rel);
+                    if (previous != null
+                            && previous.getCrc() == entry.getCrc()
+                            && previous.getSize() == entry.getSize()
+                            && previous.getTime() == attrs.lastModifiedTime().toMillis()) {
+                        toExtract.remove(rel);
+                        unchangedCount++;
+                    } else {
+                        suspicious.add(rel);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        verifyContent(manifest, suspicious, toExtract);
+
+        final Set<String> toCreate = new HashSet<String>();
+        for (Map.Entry<String, String> entry : directoryEntries.entrySet()) {
+            if (!new File(directory, entry.getKey()).isDirectory()) {
+                toCreate.add(entry.getValue());
+            }
+        }
+        final Set<String> entryNames = new HashSet<String>(toExtract);
+        entryNames.addAll(toCreate);
+        final ZipExtractor extractor = new ZipExtractor(archive, directory);
+        extractor.setThreads(threads);
+        extractor.extract(entryNames);
+        updatedCount = entryNames.size();
+
+        // files that were kept have their own modification times
+        final Manifest result = new Manifest();
+        for (Manifest.Entry entry : manifest.getEntries()) {
+            final Long time = toExtract.contains(entry.getPath()) ? null : times.get(entry.getPath());
+            result.add(time == null ? entry : new Manifest.Entry(entry.getPath(), entry.getSize(), entry.getCrc(), time));
+        }
+        return result;
+    }
+
+    /**
+     * Compares CRC32 of suspicious files with the archive, and removes those that match from the extraction set.
+     */
+    private void verifyContent(final Manifest manifest, List<String> suspicious, final Set<String> toExtract) throws IOException {
+        if (suspicious.isEmpty()) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < suspicious.size(); i += BATCH_SIZE) {
+                final List<String> batch = suspicious.subList(i, Math.min(suspicious.size(), i + BATCH_SIZE));
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        int unchanged = 0;
+                        for (String path : batch) {
+                            if (Utils.crc32(new File(directory, path)) == manifest.get(path).getCrc()) {
+                                toExtract.remove(path);
+                                unchanged++;
+                            }
+                        }
+                        return unchanged;
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                unchangedCount += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification interrupted: " + directory, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to verify " + directory, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds all parent directories of given path.
+     */
+    private static void addParents(Set<String> directories, String path) {
+        String parent = path;
+        int slash = parent.lastIndexOf('/');
+        while (slash > 0) {
+            parent = parent.substring(0, slash);
+            if (!directories.add(parent)) {
+                break;
+            }
+            slash = parent.lastIndexOf('/');
+        }
+    }
+
+    private static String relative(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    public int getUpdatedCount() {
+        return updatedCount;
+    }
+
+    public int getRemovedCount() {
+        return removedCount;
+    }
+}
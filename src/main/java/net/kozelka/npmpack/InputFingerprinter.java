@@ -0,0 +1,237 @@
+package net.kozelka.npmpack;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Computes a single hash identifying a set of input files, together with any additional values (like the command
+ * that processes them).
+ * <p>The hash covers relative path and content of each file. Content hashes are remembered in a stat cache, along with
+ * size and modification time; a file whose size and time did not change is not read again. Files that need hashing
+ * are processed in parallel.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class InputFingerprinter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File basedir;
+    private final String[] includes;
+    private final String[] excludes;
+    private final String algorithm;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File statCache;
+    private int fileCount;
+    private int hashedCount;
+    private long hashedBytes;
+
+    private static final class Stat {
+        private final long size;
+        private final long time;
+        private final String hash;
+
+        private Stat(long size, long time, String hash) {
+            this.size = size;
+            this.time = time;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param includes patterns of input files, relative to basedir; see {@link DirectoryScanner#setIncludes(String[])}
+     * @param excludes patterns of files that are not inputs
+     */
+    public InputFingerprinter(File basedir, String[] includes, String[] excludes, String algorithm) throws NoSuchAlgorithmException {
+        // fail early on unknown algorithm
+        MessageDigest.getInstance(algorithm);
+        this.basedir = basedir;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.algorithm = algorithm;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param statCache file where content hashes are remembered between runs; if null, all files are hashed
+     */
+    public void setStatCache(File statCache) {
+        this.statCache = statCache;
+    }
+
+    /**
+     * @param extras additional values to include in the fingerprint
+     * @return the fingerprint as lowercase hexadecimal string
+     */
+    public String fingerprint(String... extras) throws IOException, NoSuchAlgorithmException {
+        final DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(basedir);
+        scanner.setIncludes(includes);
+        scanner.setExcludes(excludes);
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        final String[] paths = scanner.getIncludedFiles();
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = paths[i].replace(File.separatorChar, '/');
+        }
+        Arrays.sort(paths);
+        fileCount = paths.length;
+
+        final Map<String, Stat> previous = readStatCache();
+        final Map<String, Stat> current = new HashMap<String, Stat>();
+        final List<String> toHash = new ArrayList<String>();
+        for (String path : paths) {
+            final File file = new File(basedir, path);
+            final Stat stat = previous.get(path);
+            if (stat != null && stat.size == file.length() && stat.time == file.lastModified()) {
+                current.put(path, stat);
+            } else {
+                toHash.add(path);
+            }
+        }
+        hashAll(toHash, current);
+        writeStatCache(paths, current);
+
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        for (String extra : extras) {
+            md.update(extra.getBytes("UTF-8"));
+            md.update((byte) 0);
+        }
+        for (String path : paths) {
+            md.update(path.getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(current.get(path).hash.getBytes("UTF-8"));
+            md.update((byte) 0);
+        }
+        return Utils.hex(md.digest());
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return how many files were read in the last {@link #fingerprint} call
+     */
+    public int getHashedCount() {
+        return hashedCount;
+    }
+
+    public long getHashedBytes() {
+        return hashedBytes;
+    }
+
+    private void hashAll(List<String> paths, Map<String, Stat> stats) throws IOException {
+        hashedCount = paths.size();
+        hashedBytes = 0;
+        if (paths.isEmpty()) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, paths.size()));
+        try {
+            final List<Future<Stat>> futures = new ArrayList<Future<Stat>>();
+            for (final String path : paths) {
+                futures.add(executor.submit(new Callable<Stat>() {
+                    @Override
+                    public Stat call() throws IOException, NoSuchAlgorithmException {
+                        final File file = new File(basedir, path);
+                        // take the stat before reading, so that a concurrent change is detected next time
+                        final long size = file.length();
+                        final long time = file.lastModified();
+                        return new Stat(size, time, hash(file));
+                    }
+                }));
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                final Stat stat = futures.get(i).get();
+                stats.put(paths.get(i), stat);
+                hashedBytes += stat.size;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing inputs", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private String hash(File file) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        final InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return Utils.hex(md.digest());
+    }
+
+    /**
+     * Reads the stat cache; each line holds hash, size, time and path, separated by a single space.
+     */
+    private Map<String, Stat> readStatCache() throws IOException {
+        final Map<String, Stat> stats = new HashMap<String, Stat>();
+        if (statCache == null || !statCache.isFile()) {
+            return stats;
+        }
+        final String header = algorithm + "\n";
+        final String content = FileUtils.fileRead(statCache, "UTF-8");
+        if (!content.startsWith(header)) {
+            return stats;
+        }
+        for (String line : content.substring(header.length()).split("\n")) {
+            final String[] fields = line.split(" ", 4);
+            if (fields.length == 4) {
+                try {
+                    stats.put(fields[3], new Stat(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                } catch (NumberFormatException e) {
+                    // corrupted line; the file will be hashed again
+                    continue;
+                }
+            }
+        }
+        return stats;
+    }
+
+    private void writeStatCache(String[] paths, Map<String, Stat> stats) throws IOException {
+        if (statCache == null) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder(algorithm).append('\n');
+        for (String path : paths) {
+            final Stat stat = stats.get(path);
+            sb.append(stat.hash).append(' ').append(stat.size).append(' ').append(stat.time).append(' ').append(path).append('\n');
+        }
+        statCache.getParentFile().mkdirs();
+        FileUtils.fileWrite(statCache, "UTF-8", sb.toString());
+    }
+}
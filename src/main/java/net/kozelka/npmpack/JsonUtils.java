@@ -19,7 +19,9 @@ public class JsonUtils {
     /**
      * Sorts properties of a json object, recursively
      * @param jo
+     * @deprecated {@link PackageJsonDigest#writeCanonical} writes the sorted form without modifying the tree
      */
+    @Deprecated
     public static void sortJsonDeep(JsonElement jo) {
         final LinkedList<JsonObject> unsorted = new LinkedList<JsonObject>();
         if (jo.isJsonObject()) {
@@ -0,0 +1,194 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Describes <code>node_modules</code> split into layers - one per top-level package, plus the {@link #ROOT} layer
+ * holding everything else.
+ * <p>Maps the path of each layer (like <code>lodash</code> or <code>@babel/core</code>) to the version of the
+ * artifact that contains it. The artifact version consists of package name, package version and hash of the layer's
+ * content, so equal packages share one artifact across all dependency sets.</p>
+ * <p>Stored as UTF-8 text with one <code>path=version</code> line per layer, sorted by path. Unlike a properties
+ * file, there is no escaping; neither package names nor artifact versions contain <code>=</code> or line breaks.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class LayerIndex {
+    public static final String ROOT = ".";
+    private static final int HASH_LENGTH = 16;
+
+    private final Map<String, String> layers = new TreeMap<String, String>();
+
+    public void put(String path, String artifactVersion) {
+        layers.put(path, artifactVersion);
+    }
+
+    /**
+     * @return artifact version of the layer, or null if there is no such layer
+     */
+    public String get(String path) {
+        return layers.get(path);
+    }
+
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(layers.keySet());
+    }
+
+    public int size() {
+        return layers.size();
+    }
+
+    public static LayerIndex read(File file) throws IOException {
+        final LayerIndex index = new LayerIndex();
+        for (String line : FileUtils.fileRead(file, "UTF-8").split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+                continue;
+            }
+            final int eq = trimmed.indexOf('=');
+            if (eq <= 0) {
+                throw new IOException(String.format("Invalid line in layer index %s: %s", file, line));
+            }
+            index.put(trimmed.substring(0, eq), trimmed.substring(eq + 1));
+        }
+        return index;
+    }
+
+    public void write(File file) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : layers.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, "UTF-8", sb.toString());
+    }
+
+    /**
+     * Lists top-level packages; scoped packages are listed individually, like <code>@scope/name</code>.
+     * Directories starting with a dot are not packages.
+     */
+    public static List<String> listPackages(File nodeModules) {
+        final List<String> packages = new ArrayList<String>();
+        for (String name : sortedNames(nodeModules)) {
+            final File dir = new File(nodeModules, name);
+            if (name.startsWith(".") || !dir.isDirectory()) {
+                continue;
+            }
+            if (name.startsWith("@")) {
+                for (String scoped : sortedNames(dir)) {
+                    if (new File(dir, scoped).isDirectory()) {
+                        packages.add(name + "/" + scoped);
+                    }
+                }
+            } else {
+                packages.add(name);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Excludes for the {@link #ROOT} layer: the given excludes plus all packages.
+     */
+    public static String[] rootExcludes(List<String> packages, String[] excludes) {
+        final List<String> result = new ArrayList<String>(Arrays.asList(excludes));
+        for (String path : packages) {
+            result.add(path + "/**");
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Computes the artifact version for a layer.
+     * @param path layer path, or {@link #ROOT}
+     * @param dir directory with the layer's content
+     * @param excludes patterns of files that do not belong to the layer
+     */
+    public static String artifactVersion(String path, File dir, String[] excludes, String algorithm) throws IOException, NoSuchAlgorithmException {
+        return artifactVersion(path, dir, excludes, null, algorithm);
+    }
+
+    /**
+     * Like {@link #artifactVersion(String, File, String[], String)}, for the layer's content left by the pruning.
+     * @param pruning the pruning for paths relative to <code>dir</code>, or null
+     */
+    public static String artifactVersion(String path, File dir, String[] excludes, Pruning pruning, String algorithm) throws IOException, NoSuchAlgorithmException {
+        final String name = ROOT.equals(path) ? "root" : path.replace("@", "").replace('/', '+');
+        return name + "-" + packageVersion(dir) + "-" + digest(dir, excludes, pruning, algorithm).substring(0, HASH_LENGTH);
+    }
+
+    private static String packageVersion(File dir) {
+        final File packageJson = new File(dir, "package.json");
+        if (packageJson.isFile()) {
+            try {
+                final JsonObject json = PackageJsonDigest.parse(packageJson, false);
+                final JsonElement version = json.get("version");
+                if (version != null && version.isJsonPrimitive()) {
+                    final String v = version.getAsString().replaceAll("[^A-Za-z0-9._]", "_");
+                    if (v.length() > 0) {
+                        return v;
+                    }
+                }
+            } catch (IOException e) {
+                // not a valid package; the content hash still identifies it
+                return "0";
+            }
+        }
+        return "0";
+    }
+
+    /**
+     * Hashes relative paths and contents of all files in the directory, in sorted order.
+     */
+    static String digest(File dir, String[] excludes, Pruning pruning, String algorithm) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        final DirectoryScanner scanner = ParallelArchiver.scan(dir, excludes, pruning);
+        final String[] paths = scanner.getIncludedFiles();
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = paths[i].replace(File.separatorChar, '/');
+        }
+        Arrays.sort(paths);
+        final byte[] buffer = new byte[64 * 1024];
+        for (String path : paths) {
+            md.update(path.getBytes("UTF-8"));
+            md.update((byte) 0);
+            final InputStream is = new BufferedInputStream(new FileInputStream(new File(dir, path)));
+            try {
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    md.update(buffer, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+            md.update((byte) 0);
+        }
+        return Utils.hex(md.digest());
+    }
+
+    private static List<String> sortedNames(File dir) {
+        final String[] names = dir.list();
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
@@ -0,0 +1,221 @@
+package net.kozelka.npmpack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.codehaus.plexus.util.DirectoryScanner;
+
+/**
+ * List of files in an unpacked tree, with their size, CRC32 and modification time.
+ * <p>Stored in a compact binary form: entries are sorted by path, and each path is written as the length of the prefix
+ * shared with the previous path plus the remaining suffix.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class Manifest {
+    private static final int MAGIC = 0x4e504d31; // "NPM1"
+
+    /**
+     * Single file in the manifest.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final long crc;
+        private final long time;
+
+        public Entry(String path, long size, long crc, long time) {
+            this.path = path;
+            this.size = size;
+            this.crc = crc;
+            this.time = time;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return modification time in millis, or -1 if unknown
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    public void add(Entry entry) {
+        entries.put(entry.getPath(), entry);
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total size of all files
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * Creates manifest from the central directory of given zip archive. Directory entries are not included.
+     */
+    public static Manifest fromZip(File zip) throws IOException {
+        final Manifest manifest = new Manifest();
+        final ZipFile zipFile = new ZipFile(zip);
+        try {
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) {
+                if (!entry.isDirectory()) {
+                    manifest.add(new Entry(entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime()));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Creates manifest of files in given directory, computing CRC32 of each.
+     * Files are selected the same way as for archiving, see {@link ParallelArchiver#scan}.
+     * @param directory the directory to scan
+     * @param excludes patterns of files to exclude, see {@link DirectoryScanner#setExcludes(String[])}
+     */
+    public static Manifest fromDirectory(File directory, String[] excludes) throws IOException {
+        return fromDirectory(directory, excludes, null);
+    }
+
+    /**
+     * Like {@link #fromDirectory(File, String[])}, leaving out what the pruning says.
+     */
+    public static Manifest fromDirectory(File directory, String[] excludes, Pruning pruning) throws IOException {
+        final DirectoryScanner scanner = ParallelArchiver.scan(directory, excludes, pruning);
+        final Manifest manifest = new Manifest();
+        for (String path : scanner.getIncludedFiles()) {
+            final File file = new File(directory, path);
+            manifest.add(new Entry(path.replace(File.separatorChar, '/'), file.length(), Utils.crc32(file), file.lastModified()));
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces the entries under given subdirectory with the files that are there now, computing CRC32 of each.
+     * Used when the files were rewritten after they were unpacked.
+     * @param directory the directory described by this manifest
+     * @param path relative path of the subdirectory, with forward slashes
+     * @param excludes patterns of files to exclude, relative to the subdirectory
+     */
+    public void rescan(File directory, String path, String[] excludes) throws IOException {
+        final String prefix = path + "/";
+        final Iterator<String> paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            if (paths.next().startsWith(prefix)) {
+                paths.remove();
+            }
+        }
+        final File subdirectory = new File(directory, path);
+        if (!subdirectory.isDirectory()) {
+            return;
+        }
+        for (Entry entry : fromDirectory(subdirectory, excludes).getEntries()) {
+            add(new Entry(prefix + entry.getPath(), entry.getSize(), entry.getCrc(), entry.getTime()));
+        }
+    }
+
+    /**
+     * Creates a copy of this manifest with modification times of the files in given directory, which is assumed to
+     * contain exactly the described files.
+     */
+    public Manifest withTimesFrom(File directory) {
+        final Manifest manifest = new Manifest();
+        for (Entry entry : entries.values()) {
+            final File file = new File(directory, entry.getPath());
+            manifest.add(new Entry(entry.getPath(), entry.getSize(), entry.getCrc(), file.lastModified()));
+        }
+        return manifest;
+    }
+
+    public void write(File file) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(entries.size());
+            String previous = "";
+            for (Entry entry : entries.values()) {
+                final String path = entry.getPath();
+                int common = 0;
+                final int max = Math.min(Math.min(previous.length(), path.length()), 0xffff);
+                while (common < max && previous.charAt(common) == path.charAt(common)) {
+                    common++;
+                }
+                dos.writeShort(common);
+                dos.writeUTF(path.substring(common));
+                dos.writeLong(entry.getSize());
+                dos.writeInt((int) entry.getCrc());
+                dos.writeLong(entry.getTime());
+                previous = path;
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    public static Manifest read(File file) throws IOException {
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a manifest file: " + file);
+            }
+            final Manifest manifest = new Manifest();
+            final int count = dis.readInt();
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                final int common = dis.readUnsignedShort();
+                final String path = previous.substring(0, common) + dis.readUTF();
+                final long size = dis.readLong();
+                final long crc = dis.readInt() & 0xffffffffL;
+                final long time = dis.readLong();
+                manifest.add(new Entry(path, size, crc, time));
+                previous = path;
+            }
+            return manifest;
+        } finally {
+            dis.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.kozelka.npmpack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records duration, volume and throughput of the phases of one mojo execution.
+ * <p>Typical use:</p>
+ * <pre>
+ * final Metrics.Phase phase = metrics.start("unpack");
+ * ...
+ * phase.bytes(archive.length()).files(count).stop();
+ * </pre>
+ * <p>Phases that are started but never stopped (because of an exception) are reported with the time until
+ * {@link #getPhases()} was called.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class Metrics {
+    private final long startTime = System.currentTimeMillis();
+    private final List<Phase> phases = Collections.synchronizedList(new ArrayList<Phase>());
+
+    public static final class Phase {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private long millis = -1;
+        private long bytes = -1;
+        private long files = -1;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        public Phase bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        public Phase files(long files) {
+            this.files = files;
+            return this;
+        }
+
+        public void stop() {
+            if (millis < 0) {
+                millis = (System.nanoTime() - startNanos) / 1000000;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return processed bytes, or -1 if not applicable
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return processed files, or -1 if not applicable
+         */
+        public long getFiles() {
+            return files;
+        }
+    }
+
+    public Phase start(String name) {
+        final Phase phase = new Phase(name);
+        phases.add(phase);
+        return phase;
+    }
+
+    /**
+     * Adds the phases recorded by another instance, like one used by a background thread.
+     * @param prefix prepended to the names of the added phases
+     */
+    public void addAll(String prefix, Metrics other) {
+        for (Phase phase : other.getPhases()) {
+            final Phase copy = new Phase(prefix + phase.name);
+            copy.millis = phase.millis;
+            copy.bytes = phase.bytes;
+            copy.files = phase.files;
+            phases.add(copy);
+        }
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public List<Phase> getPhases() {
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                phase.stop();
+            }
+            return new ArrayList<Phase>(phases);
+        }
+    }
+}
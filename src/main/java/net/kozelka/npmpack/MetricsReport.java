@@ -0,0 +1,161 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects {@link Metrics} of all executions in a build, and writes them as json.
+ * <p>The collected data live in a static registry, shared by all modules of the reactor (the plugin's classes are
+ * loaded once per build). After each execution, the whole report is rewritten, so the file is complete even if the
+ * build fails later. A report belongs to one build session; metrics of an older session are discarded.</p>
+ * <p>Besides the list of executions, the report contains totals per phase name, with throughput in bytes and
+ * files per second.</p>
+ *
+ * @author Petr Kozelka
+ */
+public final class MetricsReport {
+    private static final Map<File, MetricsReport> REPORTS = new HashMap<File, MetricsReport>();
+
+    private final File reportFile;
+    private final String sessionId;
+    private final List<Execution> executions = new ArrayList<Execution>();
+
+    private static final class Execution {
+        private final String module;
+        private final String goal;
+        private final long startTime;
+        private final long millis;
+        private final List<Metrics.Phase> phases;
+
+        private Execution(String module, String goal, Metrics metrics) {
+            this.module = module;
+            this.goal = goal;
+            this.startTime = metrics.getStartTime();
+            this.millis = System.currentTimeMillis() - metrics.getStartTime();
+            this.phases = metrics.getPhases();
+        }
+    }
+
+    private static final class Total {
+        private int count;
+        private long millis;
+        private long bytes = -1;
+        private long files = -1;
+
+        private void add(Metrics.Phase phase) {
+            count++;
+            millis += phase.getMillis();
+            if (phase.getBytes() >= 0) {
+                bytes = Math.max(bytes, 0) + phase.getBytes();
+            }
+            if (phase.getFiles() >= 0) {
+                files = Math.max(files, 0) + phase.getFiles();
+            }
+        }
+    }
+
+    private MetricsReport(File reportFile, String sessionId) {
+        this.reportFile = reportFile;
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Adds metrics of one execution to the report, and rewrites the report file.
+     * @param sessionId identifies the build; must be the same for all modules of one build
+     */
+    public static void append(File reportFile, String sessionId, String module, String goal, Metrics metrics) throws IOException {
+        final File key = reportFile.getAbsoluteFile();
+        final MetricsReport report;
+        synchronized (REPORTS) {
+            MetricsReport existing = REPORTS.get(key);
+            if (existing == null || !existing.sessionId.equals(sessionId)) {
+                existing = new MetricsReport(key, sessionId);
+                REPORTS.put(key, existing);
+            }
+            report = existing;
+        }
+        report.add(new Execution(module, goal, metrics));
+    }
+
+    private synchronized void add(Execution execution) throws IOException {
+        executions.add(execution);
+        reportFile.getParentFile().mkdirs();
+        final File tmp = new File(reportFile.getPath() + ".tmp");
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.setIndent("  ");
+            write(writer);
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(reportFile)) {
+            reportFile.delete();
+            if (!tmp.renameTo(reportFile)) {
+                throw new IOException("Cannot rename " + tmp + " to " + reportFile);
+            }
+        }
+    }
+
+    private void write(JsonWriter writer) throws IOException {
+        final Map<String, Total> totals = new TreeMap<String, Total>();
+        writer.beginObject();
+        writer.name("executions").beginArray();
+        for (Execution execution : executions) {
+            writer.beginObject();
+            writer.name("module").value(execution.module);
+            writer.name("goal").value(execution.goal);
+            writer.name("startTime").value(execution.startTime);
+            writer.name("millis").value(execution.millis);
+            writer.name("phases").beginArray();
+            for (Metrics.Phase phase : execution.phases) {
+                writer.beginObject();
+                writer.name("name").value(phase.getName());
+                writeVolume(writer, phase.getMillis(), phase.getBytes(), phase.getFiles());
+                writer.endObject();
+                Total total = totals.get(phase.getName());
+                if (total == null) {
+                    total = new Total();
+                    totals.put(phase.getName(), total);
+                }
+                total.add(phase);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("totals").beginObject();
+        for (Map.Entry<String, Total> entry : totals.entrySet()) {
+            final Total total = entry.getValue();
+            writer.name(entry.getKey()).beginObject();
+            writer.name("count").value(total.count);
+            writeVolume(writer, total.millis, total.bytes, total.files);
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private static void writeVolume(JsonWriter writer, long millis, long bytes, long files) throws IOException {
+        writer.name("millis").value(millis);
+        if (bytes >= 0) {
+            writer.name("bytes").value(bytes);
+            if (millis > 0) {
+                writer.name("bytesPerSecond").value(bytes * 1000 / millis);
+            }
+        }
+        if (files >= 0) {
+            writer.name("files").value(files);
+            if (millis > 0) {
+                writer.name("filesPerSecond").value(files * 1000 / millis);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package net.kozelka.npmpack;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Collects output of a child process without making it wait for slow logging.
+ * <p>Lines read from stdout and stderr are only counted and queued by the stream pumping threads; a dedicated thread
+ * passes them to the {@link Sink}. The queue is bounded, so memory stays bounded even if the sink cannot keep up.</p>
+ * <p>Modes:</p>
+ * <ul>
+ *     <li>{@link Mode#STREAM} - every line goes to the sink</li>
+ *     <li>{@link Mode#SUMMARY} - only the last lines are kept in a ring buffer; see {@link #printSummary()}</li>
+ *     <li>{@link Mode#TEE} - every line goes to the sink, and the raw output is also written to a file</li>
+ * </ul>
+ *
+ * @author Petr Kozelka
+ */
+public class OutputPipeline {
+    private static final int QUEUE_CAPACITY = 8192;
+
+    public enum Mode {
+        STREAM, SUMMARY, TEE
+    }
+
+    /**
+     * Receives the output lines, in the order in which they were read.
+     */
+    public interface Sink {
+        void line(String line, boolean isErr);
+    }
+
+    private static final class Line {
+        private final String text;
+        private final boolean isErr;
+
+        private Line(String text, boolean isErr) {
+            this.text = text;
+            this.isErr = isErr;
+        }
+    }
+
+    // marks the end of output for the draining thread
+    private static final Line EOF = new Line(null, false);
+    // keeps flushed blocks of concurrent tasks apart
+    private static final Object FLUSH_LOCK = new Object();
+
+    /**
+     * Holds the lines until {@link #flush()}, so that output of tasks running concurrently is not interleaved.
+     */
+    public static final class BufferingSink implements Sink {
+        private final Sink target;
+        private final List<Line> lines = new ArrayList<Line>();
+
+        public BufferingSink(Sink target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void line(String line, boolean isErr) {
+            lines.add(new Line(line, isErr));
+        }
+
+        /**
+         * Passes all held lines to the target sink, as one uninterrupted block.
+         */
+        public void flush() {
+            synchronized (FLUSH_LOCK) {
+                synchronized (this) {
+                    for (Line line : lines) {
+                        target.line(line.text, line.isErr);
+                    }
+                    lines.clear();
+                }
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final Sink sink;
+    private final int summaryLines;
+    private final File teeFile;
+    private final BlockingQueue<Line> queue = new ArrayBlockingQueue<Line>(QUEUE_CAPACITY);
+    private final ArrayDeque<Line> ring = new ArrayDeque<Line>();
+    private final Counter stdout = new Counter(false);
+    private final Counter stderr = new Counter(true);
+    private Thread drainer;
+    private Writer tee;
+    private volatile IOException teeFailure;
+    private volatile RuntimeException sinkFailure;
+
+    /**
+     * @param summaryLines how many last lines to keep in {@link Mode#SUMMARY}
+     * @param teeFile where to write the output in {@link Mode#TEE}
+     */
+    public OutputPipeline(Mode mode, Sink sink, int summaryLines, File teeFile) {
+        this.mode = mode;
+        this.sink = sink;
+        this.summaryLines = summaryLines;
+        this.teeFile = teeFile;
+    }
+
+    public void start(String threadName) throws IOException {
+        if (mode == Mode.SUMMARY) {
+            return;
+        }
+        if (mode == Mode.TEE) {
+            teeFile.getParentFile().mkdirs();
+            tee = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(teeFile), "UTF-8"));
+        }
+        drainer = new Thread(threadName) {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private void drain() {
+        try {
+            Line line = queue.take();
+            while (line != EOF) {
+                // a failing sink must not stop the draining, or the process would block on full pipes
+                if (sinkFailure == null) {
+                    try {
+                        sink.line(line.text, line.isErr);
+                    } catch (RuntimeException e) {
+                        sinkFailure = e;
+                    }
+                }
+                if (tee != null && teeFailure == null) {
+                    try {
+                        tee.write(line.text);
+                        tee.write('\n');
+                    } catch (IOException e) {
+                        teeFailure = e;
+                    }
+                }
+                line = queue.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public StreamConsumer getStdout() {
+        return stdout;
+    }
+
+    public StreamConsumer getStderr() {
+        return stderr;
+    }
+
+    /**
+     * Waits until all queued lines have been passed to the sink. Call after the process has finished.
+     * @throws IOException if writing to the tee file failed
+     * @throws RuntimeException the first failure of the sink; lines after it were not passed to the sink
+     */
+    public void close() throws IOException {
+        if (drainer != null) {
+            try {
+                queue.put(EOF);
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing output", e);
+            } finally {
+                drainer = null;
+                if (tee != null) {
+                    tee.close();
+                }
+            }
+        }
+        if (sinkFailure != null) {
+            throw sinkFailure;
+        }
+        if (teeFailure != null) {
+            throw teeFailure;
+        }
+    }
+
+    /**
+     * In {@link Mode#SUMMARY}, passes the kept lines to the sink; typically used when the process has failed.
+     * @return number of lines passed
+     */
+    public int printSummary() {
+        final List<Line> lines;
+        synchronized (ring) {
+            lines = new ArrayList<Line>(ring);
+        }
+        for (Line line : lines) {
+            sink.line(line.text, line.isErr);
+        }
+        return lines.size();
+    }
+
+    public int getStdoutLines() {
+        return stdout.lines;
+    }
+
+    public int getStderrLines() {
+        return stderr.lines;
+    }
+
+    public long getStdoutBytes() {
+        return stdout.bytes;
+    }
+
+    public long getStderrBytes() {
+        return stderr.bytes;
+    }
+
+    /**
+     * @return length of the line in UTF-8, including the line terminator
+     */
+    static int utf8Length(String line) {
+        int length = 1;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                // surrogate pair gives 4 bytes together
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private final class Counter implements StreamConsumer {
+        private final boolean isErr;
+        private volatile int lines;
+        private volatile long bytes;
+
+        private Counter(boolean isErr) {
+            this.isErr = isErr;
+        }
+
+        @Override
+        public void consumeLine(String text) {
+            // each stream has its own pumping thread, so the counters are not shared
+            lines++;
+            bytes += utf8Length(text);
+            final Line line = new Line(text, isErr);
+            if (mode == Mode.SUMMARY) {
+                synchronized (ring) {
+                    if (ring.size() >= summaryLines && !ring.isEmpty()) {
+                        ring.removeFirst();
+                    }
+                    if (summaryLines > 0) {
+                        ring.addLast(line);
+                    }
+                }
+                return;
+            }
+            try {
+                queue.put(line);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
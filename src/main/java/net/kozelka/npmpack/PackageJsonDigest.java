@@ -0,0 +1,182 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the hash that identifies the content of a <code>package.json</code> file.
+ * <p>When anonymizing, the parsed json is written in canonical form - sorted by property names and pretty-printed
+ * the way Gson does it - directly into the digest, without building any intermediate string.
+ * Otherwise, the raw file content is digested with line endings normalized to LF.
+ * In both cases, the text is encoded as UTF-8.</p>
+ * <p>The algorithm can be any {@link MessageDigest} algorithm; with <code>MD5</code>, the hashes are the same as those
+ * computed by previous versions of this plugin.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class PackageJsonDigest {
+    public static final String ANONYMIZED = "ANONYMIZED";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String algorithm;
+    private final boolean anonymize;
+
+    public PackageJsonDigest(String algorithm, boolean anonymize) throws NoSuchAlgorithmException {
+        // fail early on unknown algorithm
+        MessageDigest.getInstance(algorithm);
+        this.algorithm = algorithm;
+        this.anonymize = anonymize;
+    }
+
+    /**
+     * @return the hash as lowercase hexadecimal string
+     */
+    public String digest(File packageJson) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                md.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                md.update(b, off, len);
+            }
+        };
+        if (anonymize) {
+            final Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writeCanonical(parse(packageJson, true), writer);
+            writer.flush();
+        } else {
+            parse(packageJson, false);
+            copyNormalizingEols(packageJson, out);
+        }
+        return Utils.hex(md.digest());
+    }
+
+    /**
+     * Parses package.json, optionally replacing its name and version with {@link #ANONYMIZED}.
+     */
+    public static JsonObject parse(File packageJson, boolean anonymize) throws IOException {
+        final Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(packageJson), BUFFER_SIZE), "UTF-8");
+        final JsonObject root;
+        try {
+            final JsonElement parsed = new JsonParser().parse(reader);
+            if (!parsed.isJsonObject()) {
+                throw new IOException("Not a json object: " + packageJson);
+            }
+            root = parsed.getAsJsonObject();
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid json in " + packageJson, e);
+        } finally {
+            reader.close();
+        }
+        if (anonymize) {
+            root.addProperty("name", ANONYMIZED);
+            root.addProperty("version", ANONYMIZED);
+        }
+        return root;
+    }
+
+    /**
+     * Writes json in the canonical form: properties sorted by name, pretty-printed with two-space indent,
+     * html-sensitive characters escaped and null properties omitted - which is what Gson's pretty printer does.
+     */
+    public static void writeCanonical(JsonElement element, Writer out) throws IOException {
+        final JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("  ");
+        writer.setHtmlSafe(true);
+        writer.setLenient(true);
+        writer.setSerializeNulls(false);
+        write(writer, element, true);
+        writer.flush();
+    }
+
+    /**
+     * @param sorted whether object properties are sorted; this reproduces {@link JsonUtils#sortJsonDeep}, which
+     * does not reach objects inside nested arrays
+     */
+    private static void write(JsonWriter writer, JsonElement element, boolean sorted) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            writer.nullValue();
+        } else if (element.isJsonPrimitive()) {
+            final JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                writer.value(primitive.getAsNumber());
+            } else if (primitive.isBoolean()) {
+                writer.value(primitive.getAsBoolean());
+            } else {
+                writer.value(primitive.getAsString());
+            }
+        } else if (element.isJsonArray()) {
+            writer.beginArray();
+            for (JsonElement item : element.getAsJsonArray()) {
+                write(writer, item, sorted && !item.isJsonArray());
+            }
+            writer.endArray();
+        } else {
+            final JsonObject object = element.getAsJsonObject();
+            final List<String> names = new ArrayList<String>();
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                names.add(entry.getKey());
+            }
+            if (sorted) {
+                Collections.sort(names);
+            }
+            writer.beginObject();
+            for (String name : names) {
+                writer.name(name);
+                write(writer, object.get(name), sorted);
+            }
+            writer.endObject();
+        }
+    }
+
+    static void copyNormalizingEols(File file, OutputStream out) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            boolean afterCr = false;
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    final byte b = buffer[i];
+                    if (b == '\r') {
+                        out.write(buffer, start, i - start);
+                        out.write('\n');
+                        start = i + 1;
+                    } else if (b == '\n' && afterCr) {
+                        // second half of CRLF, already written as LF
+                        start = i + 1;
+                    }
+                    afterCr = b == '\r';
+                }
+                out.write(buffer, start, n - start);
+            }
+        } finally {
+            is.close();
+        }
+    }
+}
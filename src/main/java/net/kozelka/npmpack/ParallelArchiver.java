@@ -0,0 +1,193 @@
+package net.kozelka.npmpack;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.compress.utils.IOUtils;
+import org.codehaus.plexus.util.DirectoryScanner;
+
+/**
+ * Creates archives of a directory, compressing on multiple threads.
+ * <p>Zip entries are compressed independently on a thread pool and then stitched into one archive with a regular central
+ * directory. Tar archives are compressed with {@link ParallelGzipOutputStream}.</p>
+ * <p>Files are selected the same way plexus archivers do: all files and directories, minus the given excludes
+ * and the {@link DirectoryScanner#DEFAULTEXCLUDES default excludes}.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class ParallelArchiver {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final String[] excludes;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Pruning pruning;
+
+    public ParallelArchiver(File directory, String[] excludes) {
+        this.directory = directory;
+        this.excludes = excludes;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param pruning leaves out more files; null means no pruning
+     */
+    public void setPruning(Pruning pruning) {
+        this.pruning = pruning;
+    }
+
+    /**
+     * Scans the directory like the archivers do.
+     */
+    public static DirectoryScanner scan(File directory, String[] excludes) {
+        return scan(directory, excludes, null);
+    }
+
+    /**
+     * Scans the directory like the archivers do, leaving out what the pruning says.
+     * Files kept by the pruning are found even inside pruned directories.
+     */
+    public static DirectoryScanner scan(File directory, String[] excludes, final Pruning pruning) {
+        final DirectoryScanner scanner = pruning == null || pruning.isEmpty() ? new DirectoryScanner() : new DirectoryScanner() {
+            @Override
+            protected boolean isExcluded(String name) {
+                return super.isExcluded(name) || pruning.isPruned(name);
+            }
+
+            @Override
+            protected boolean isExcluded(String name, String[] tokenizedName) {
+                return super.isExcluded(name, tokenizedName) || pruning.isPruned(name);
+            }
+        };
+        scanner.setBasedir(directory);
+        scanner.setExcludes(excludes);
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        return scanner;
+    }
+
+    public void createZip(File destFile) throws IOException {
+        final DirectoryScanner scanner = scan(directory, excludes, pruning);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final ParallelScatterZipCreator creator = new ParallelScatterZipCreator(executor);
+            for (String path : scanner.getIncludedDirectories()) {
+                if (path.length() > 0) {
+                    final File dir = new File(directory, path);
+                    final ZipArchiveEntry entry = new ZipArchiveEntry(entryName(path) + "/");
+                    entry.setMethod(ZipEntry.DEFLATED);
+                    entry.setTime(dir.lastModified());
+                    entry.setUnixMode(UnixStat.DIR_FLAG | Utils.unixMode(dir));
+                    creator.addArchiveEntry(entry, emptySupplier());
+                }
+            }
+            for (String path : scanner.getIncludedFiles()) {
+                final File file = new File(directory, path);
+                final ZipArchiveEntry entry = new ZipArchiveEntry(entryName(path));
+                entry.setMethod(ZipEntry.DEFLATED);
+                entry.setTime(file.lastModified());
+                entry.setUnixMode(UnixStat.FILE_FLAG | Utils.unixMode(file));
+                creator.addArchiveEntry(entry, fileSupplier(file));
+            }
+            final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(destFile);
+            try {
+                creator.writeTo(zos);
+            } finally {
+                zos.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Packing interrupted: " + destFile, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to pack " + destFile, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void createTarGz(File destFile) throws IOException {
+        writeTar(new ParallelGzipOutputStream(new BufferedOutputStream(new FileOutputStream(destFile), BUFFER_SIZE), threads));
+    }
+
+    /**
+     * Writes uncompressed tar stream of the directory, and closes it.
+     */
+    public void writeTar(OutputStream out) throws IOException {
+        final DirectoryScanner scanner = scan(directory, excludes, pruning);
+        final TarArchiveOutputStream tos = new TarArchiveOutputStream(out);
+        try {
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            for (String path : scanner.getIncludedDirectories()) {
+                if (path.length() > 0) {
+                    final File dir = new File(directory, path);
+                    final TarArchiveEntry entry = new TarArchiveEntry(dir, entryName(path));
+                    entry.setMode(UnixStat.DIR_FLAG | Utils.unixMode(dir));
+                    tos.putArchiveEntry(entry);
+                    tos.closeArchiveEntry();
+                }
+            }
+            for (String path : scanner.getIncludedFiles()) {
+                final File file = new File(directory, path);
+                final TarArchiveEntry entry = new TarArchiveEntry(file, entryName(path));
+                entry.setMode(UnixStat.FILE_FLAG | Utils.unixMode(file));
+                tos.putArchiveEntry(entry);
+                final InputStream is = new FileInputStream(file);
+                try {
+                    IOUtils.copy(is, tos, BUFFER_SIZE);
+                } finally {
+                    is.close();
+                }
+                tos.closeArchiveEntry();
+            }
+        } finally {
+            tos.close();
+        }
+    }
+
+    private static String entryName(String path) {
+        return path.replace(File.separatorChar, '/');
+    }
+
+    private static InputStreamSupplier emptySupplier() {
+        return new InputStreamSupplier() {
+            @Override
+            public InputStream get() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+        };
+    }
+
+    private static InputStreamSupplier fileSupplier(final File file) {
+        return new InputStreamSupplier() {
+            @Override
+            public InputStream get() {
+                try {
+                    return new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException("Cannot read " + file, e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,162 @@
+package net.kozelka.npmpack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compressing stream that deflates blocks of input in parallel, the way <code>pigz</code> does.
+ * <p>Each block is compressed independently, primed with the last 32k of the previous block as dictionary, and ends
+ * with a sync flush, so that the compressed blocks can be simply concatenated. The result is a single standard gzip
+ * member, readable by any gzip implementation.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+    private long totalSize;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] dictionary;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads) throws IOException {
+        this.out = out;
+        final int poolSize = Math.max(1, threads);
+        this.executor = Executors.newFixedThreadPool(poolSize);
+        this.maxPending = poolSize * 2;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        totalSize += len;
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            final int n = Math.min(remaining, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            remaining -= n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dict = dictionary;
+        if (!last) {
+            final int dictLength = Math.min(DICTIONARY_SIZE, length);
+            dictionary = new byte[dictLength];
+            System.arraycopy(data, length - dictLength, dictionary, 0, dictLength);
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+        }
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(data, length, dict, last);
+            }
+        }));
+        // bound the memory held by compressed blocks waiting for their turn
+        while (pending.size() > maxPending) {
+            writeFirstPending();
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeFirstPending() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compression interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock(true);
+            while (!pending.isEmpty()) {
+                writeFirstPending();
+            }
+            writeIntLE(crc.getValue());
+            writeIntLE(totalSize);
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void writeIntLE(long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+}
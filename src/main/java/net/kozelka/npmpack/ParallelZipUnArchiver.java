@@ -0,0 +1,42 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import org.codehaus.plexus.archiver.AbstractUnArchiver;
+import org.codehaus.plexus.archiver.ArchiverException;
+
+/**
+ * Plexus unarchiver facade for {@link ZipExtractor}.
+ *
+ * @author Petr Kozelka
+ */
+public class ParallelZipUnArchiver extends AbstractUnArchiver {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean memoryMapped;
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    @Override
+    protected void execute() throws ArchiverException {
+        execute("", getDestDirectory());
+    }
+
+    @Override
+    protected void execute(String path, File outputDirectory) throws ArchiverException {
+        final ZipExtractor extractor = new ZipExtractor(getSourceFile(), outputDirectory);
+        extractor.setThreads(threads);
+        extractor.setMemoryMapped(memoryMapped);
+        extractor.setUseJvmChmod(isUseJvmChmod());
+        try {
+            extractor.extractPath(path);
+        } catch (IOException e) {
+            throw new ArchiverException("Error while expanding " + getSourceFile().getAbsolutePath(), e);
+        }
+    }
+}
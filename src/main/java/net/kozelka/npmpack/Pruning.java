@@ -0,0 +1,203 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.codehaus.plexus.util.MatchPatterns;
+
+/**
+ * Decides which files of <code>node_modules</code> are left out of archives, because no build needs them:
+ * documentation, tests, examples, source maps and similar.
+ * <p>A named profile provides the base rules; user rules add more patterns to leave out (excludes), and patterns
+ * to keep even if the profile leaves them out (includes). Patterns are relative to <code>node_modules</code>,
+ * in the syntax of {@link org.codehaus.plexus.util.DirectoryScanner}.</p>
+ * <p>Each distinct set of rules has its own {@link #getId() id}, so that archives pruned differently never collide.</p>
+ *
+ * @author Petr Kozelka
+ */
+public final class Pruning {
+    public static final String NONE = "none";
+    private static final int ID_HASH_LENGTH = 8;
+
+    private static final String[] DOCS = {
+        "**/README", "**/README.*", "**/readme", "**/readme.*", "**/Readme.*",
+        "**/CHANGELOG", "**/CHANGELOG.*", "**/changelog", "**/changelog.*", "**/HISTORY.*", "**/History.*",
+        "**/CONTRIBUTING.*", "**/AUTHORS", "**/*.markdown",
+        "*/**/doc/**", "*/**/docs/**", "*/**/example/**", "*/**/examples/**",
+    };
+    private static final String[] STANDARD = {
+        "*/**/test/**", "*/**/tests/**", "*/**/__tests__/**", "*/**/spec/**", "*/**/coverage/**", "*/**/.nyc_output/**",
+        "**/*.test.js", "**/*.spec.js",
+        "**/*.map", "**/*.ts", "**/.travis.yml", "**/.eslintrc*", "**/.jshintrc", "**/.editorconfig", "**/.npmignore",
+    };
+    private static final String[] STANDARD_KEEP = {
+        // type declarations are used by the typescript compiler
+        "**/*.d.ts",
+    };
+    private static final String[] AGGRESSIVE = {
+        "**/*.md", "**/*.d.ts", "**/*.flow", "**/.github/**", "**/.idea/**", "**/.vscode/**",
+        "**/*.coffee", "**/*.tsbuildinfo", "**/tsconfig.json", "**/.babelrc", "**/.prettierrc*",
+    };
+
+    private static final Map<String, Pruning> PROFILES = new LinkedHashMap<String, Pruning>();
+
+    static {
+        PROFILES.put(NONE, new Pruning(NONE, new String[0], new String[0]));
+        PROFILES.put("docs", new Pruning("docs", DOCS, new String[0]));
+        PROFILES.put("standard", new Pruning("standard", concat(DOCS, STANDARD), STANDARD_KEEP));
+        PROFILES.put("aggressive", new Pruning("aggressive", concat(DOCS, STANDARD, AGGRESSIVE), new String[0]));
+    }
+
+    private final String profile;
+    private final List<String> excludes;
+    private final List<String> includes;
+    private final String id;
+    private final MatchPatterns excludePatterns;
+    private final MatchPatterns includePatterns;
+    private final String prefix;
+
+    private Pruning(String profile, String[] excludes, String[] includes) {
+        this(profile, Arrays.asList(excludes), Arrays.asList(includes), null);
+    }
+
+    private Pruning(Pruning pruning, String prefix) {
+        this.profile = pruning.profile;
+        this.excludes = pruning.excludes;
+        this.includes = pruning.includes;
+        this.id = pruning.id;
+        this.excludePatterns = pruning.excludePatterns;
+        this.includePatterns = pruning.includePatterns;
+        this.prefix = prefix;
+    }
+
+    private Pruning(String profile, List<String> excludes, List<String> includes, String id) {
+        this.profile = profile;
+        this.excludes = normalize(excludes);
+        this.includes = normalize(includes);
+        this.id = id != null ? id : (NONE.equals(profile) ? null : "pruned-" + profile);
+        this.excludePatterns = compile(this.excludes);
+        this.includePatterns = compile(this.includes);
+        this.prefix = "";
+    }
+
+    /**
+     * @return rules that prune nothing
+     */
+    public static Pruning none() {
+        return PROFILES.get(NONE);
+    }
+
+    /**
+     * @return names of the known profiles
+     */
+    public static Set<String> getProfiles() {
+        return Collections.unmodifiableSet(PROFILES.keySet());
+    }
+
+    /**
+     * @param profile one of {@link #getProfiles()}
+     * @param excludes user patterns of files to leave out, in addition to the profile
+     * @param includes user patterns of files to keep, even if the profile or the user excludes leave them out
+     * @throws IllegalArgumentException if the profile is unknown
+     */
+    public static Pruning create(String profile, List<String> excludes, List<String> includes) {
+        final Pruning base = PROFILES.get(profile);
+        if (base == null) {
+            throw new IllegalArgumentException(String.format("Unknown pruning profile '%s', use one of %s", profile, PROFILES.keySet()));
+        }
+        if (excludes.isEmpty() && includes.isEmpty()) {
+            return base;
+        }
+        final List<String> allExcludes = new ArrayList<String>(base.excludes);
+        allExcludes.addAll(excludes);
+        final List<String> allIncludes = new ArrayList<String>(base.includes);
+        allIncludes.addAll(includes);
+        // user rules are identified by their hash, to keep the id short
+        final String rules = "excludes=" + normalize(excludes) + ",includes=" + normalize(includes);
+        return new Pruning(profile, allExcludes, allIncludes, "pruned-" + profile + "-" + hash(rules));
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return identification of the rules, usable as artifact classifier; null if nothing is pruned
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param directory path of a subdirectory, relative to <code>node_modules</code>
+     * @return the same rules, for paths relative to the subdirectory
+     */
+    public Pruning under(String directory) {
+        return new Pruning(this, prefix + directory.replace('\\', '/') + "/");
+    }
+
+    public boolean isEmpty() {
+        return excludes.isEmpty();
+    }
+
+    /**
+     * @param path relative path of a file or directory
+     * @return true if the file should be left out
+     */
+    public boolean isPruned(String path) {
+        final String normalized = (prefix + path).replace('/', File.separatorChar);
+        return excludePatterns.matches(normalized, true) && !includePatterns.matches(normalized, true);
+    }
+
+    private static List<String> normalize(List<String> patterns) {
+        final List<String> result = new ArrayList<String>();
+        for (String pattern : patterns) {
+            String normalized = pattern.trim().replace('\\', '/');
+            if (normalized.endsWith("/")) {
+                // like DirectoryScanner does
+                normalized += "**";
+            }
+            if (normalized.length() > 0) {
+                result.add(normalized);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Patterns are matched with the platform separator, like {@link org.codehaus.plexus.util.DirectoryScanner} does.
+     */
+    private static MatchPatterns compile(List<String> patterns) {
+        final List<String> result = new ArrayList<String>();
+        for (String pattern : patterns) {
+            result.add(pattern.replace('/', File.separatorChar));
+        }
+        return MatchPatterns.from(result);
+    }
+
+    private static String[] concat(String[]... arrays) {
+        final List<String> result = new ArrayList<String>();
+        for (String[] array : arrays) {
+            result.addAll(Arrays.asList(array));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static String hash(String text) {
+        try {
+            return Utils.hex(MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"))).substring(0, ID_HASH_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
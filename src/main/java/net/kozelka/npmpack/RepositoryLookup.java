@@ -0,0 +1,103 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Looks up immutable artifacts - those whose version is a content hash - preferring the local repository.
+ * <p>An artifact that is already in the local repository can never change, so remote repositories are only asked
+ * for artifacts that are not there. When they do not have it either, the miss is remembered by a marker file next to
+ * the would-be local file; until the marker expires, further lookups fail immediately, without asking again.
+ * The marker is shared by all modules and builds using the same local repository.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class RepositoryLookup {
+    private static final String MISS_SUFFIX = ".npmpack-miss";
+
+    private final long missTtlMillis;
+
+    /**
+     * Result of a {@link #find lookup}.
+     */
+    public enum Result {
+        /**
+         * Found in the local repository.
+         */
+        LOCAL,
+        /**
+         * Downloaded from a remote repository.
+         */
+        DOWNLOADED,
+        /**
+         * Not found in any repository.
+         */
+        NOT_FOUND,
+        /**
+         * Not looked up, because it was not found recently.
+         */
+        KNOWN_MISSING;
+
+        public boolean isFound() {
+            return this == LOCAL || this == DOWNLOADED;
+        }
+    }
+
+    /**
+     * Downloads the artifact from remote repositories into the local one.
+     */
+    public interface Remote {
+        /**
+         * @return false if no remote repository has the artifact
+         */
+        boolean download() throws IOException;
+    }
+
+    /**
+     * @param missTtlMillis how long a miss is remembered; 0 means never
+     */
+    public RepositoryLookup(long missTtlMillis) {
+        this.missTtlMillis = Math.max(0, missTtlMillis);
+    }
+
+    /**
+     * @param localFile where the artifact is (or would be) in the local repository
+     * @param remote downloads the artifact, when it is not in the local repository
+     */
+    public Result find(File localFile, Remote remote) throws IOException {
+        final File missMarker = missMarker(localFile);
+        if (localFile.isFile()) {
+            missMarker.delete();
+            return Result.LOCAL;
+        }
+        if (isKnownMissing(localFile)) {
+            return Result.KNOWN_MISSING;
+        }
+        if (remote.download() && localFile.isFile()) {
+            missMarker.delete();
+            return Result.DOWNLOADED;
+        }
+        if (missTtlMillis > 0) {
+            missMarker.getParentFile().mkdirs();
+            FileUtils.fileWrite(missMarker, "UTF-8", String.valueOf(System.currentTimeMillis()));
+        }
+        return Result.NOT_FOUND;
+    }
+
+    /**
+     * @return true if the artifact was not found less than TTL ago
+     */
+    public boolean isKnownMissing(File localFile) {
+        final File missMarker = missMarker(localFile);
+        if (missTtlMillis == 0 || !missMarker.isFile()) {
+            return false;
+        }
+        final long age = System.currentTimeMillis() - missMarker.lastModified();
+        return age >= 0 && age < missTtlMillis;
+    }
+
+    public static File missMarker(File localFile) {
+        return new File(localFile.getPath() + MISS_SUFFIX);
+    }
+}
@@ -0,0 +1,83 @@
+package net.kozelka.npmpack;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.utils.IOUtils;
+import org.codehaus.plexus.archiver.AbstractArchiver;
+import org.codehaus.plexus.archiver.ArchiveEntry;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.archiver.ResourceIterator;
+import org.codehaus.plexus.components.io.resources.PlexusIoResource;
+
+/**
+ * Creates tar archives compressed with zstd, using a pure-java codec.
+ *
+ * @author Petr Kozelka
+ */
+public class TarZstdArchiver extends AbstractArchiver {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TarArchiveOutputStream tos;
+
+    @Override
+    protected void execute() throws ArchiverException, IOException {
+        if (!checkForced()) {
+            return;
+        }
+        final ResourceIterator iter = getResources();
+        if (!iter.hasNext()) {
+            throw new ArchiverException("You must set at least one file.");
+        }
+        tos = new TarArchiveOutputStream(new ZstdOutputStream(new BufferedOutputStream(new FileOutputStream(getDestFile()), BUFFER_SIZE)));
+        tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        while (iter.hasNext()) {
+            final ArchiveEntry entry = iter.next();
+            final PlexusIoResource resource = entry.getResource();
+            final boolean isDirectory = entry.getType() == ArchiveEntry.DIRECTORY;
+            String name = entry.getName().replace('\\', '/');
+            while (name.startsWith("/")) {
+                name = name.substring(1);
+            }
+            if (name.length() == 0) {
+                continue;
+            }
+            final TarArchiveEntry te = new TarArchiveEntry(isDirectory ? name + "/" : name);
+            te.setMode((isDirectory ? UnixStat.DIR_FLAG : UnixStat.FILE_FLAG) | (entry.getMode() & 07777));
+            if (resource.getLastModified() != PlexusIoResource.UNKNOWN_MODIFICATION_DATE) {
+                te.setModTime(resource.getLastModified());
+            }
+            if (!isDirectory) {
+                te.setSize(resource.getSize());
+            }
+            tos.putArchiveEntry(te);
+            if (!isDirectory) {
+                final InputStream is = entry.getInputStream();
+                try {
+                    IOUtils.copy(is, tos, BUFFER_SIZE);
+                } finally {
+                    is.close();
+                }
+            }
+            tos.closeArchiveEntry();
+        }
+    }
+
+    @Override
+    protected void close() throws IOException {
+        if (tos != null) {
+            tos.close();
+        }
+    }
+
+    @Override
+    protected String getArchiveType() {
+        return "tar.zst";
+    }
+}
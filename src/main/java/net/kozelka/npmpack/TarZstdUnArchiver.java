@@ -0,0 +1,110 @@
+package net.kozelka.npmpack;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.codehaus.plexus.archiver.AbstractUnArchiver;
+import org.codehaus.plexus.archiver.ArchiverException;
+
+/**
+ * Expands tar archives compressed with zstd, using a pure-java codec.
+ * <p>Entries are kept inside the destination directory by {@link ExtractionGuard}. Hard links must point to a regular
+ * file extracted before them.</p>
+ * <p>Modes and times of directories are restored after all entries are extracted, deepest first, so that read-only
+ * directories can still be filled.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class TarZstdUnArchiver extends AbstractUnArchiver {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    protected void execute() throws ArchiverException {
+        execute("", getDestDirectory());
+    }
+
+    @Override
+    protected void execute(String path, File outputDirectory) throws ArchiverException {
+        try {
+            final TarArchiveInputStream tis = new TarArchiveInputStream(
+                    new ZstdInputStream(new BufferedInputStream(new FileInputStream(getSourceFile()), BUFFER_SIZE)));
+            try {
+                final ExtractionGuard guard = new ExtractionGuard(outputDirectory);
+                final TreeMap<File, TarArchiveEntry> directories = new TreeMap<File, TarArchiveEntry>();
+                TarArchiveEntry entry = tis.getNextTarEntry();
+                while (entry != null) {
+                    if (entry.getName().startsWith(path)) {
+                        extractEntry(tis, entry, guard, directories);
+                    }
+                    entry = tis.getNextTarEntry();
+                }
+                // children sort after their parents
+                for (Map.Entry<File, TarArchiveEntry> directory : directories.descendingMap().entrySet()) {
+                    restoreAttributes(directory.getKey(), directory.getValue());
+                }
+            } finally {
+                tis.close();
+            }
+        } catch (IOException e) {
+            throw new ArchiverException("Error while expanding " + getSourceFile().getAbsolutePath(), e);
+        }
+    }
+
+    private void extractEntry(TarArchiveInputStream tis, TarArchiveEntry entry, ExtractionGuard guard, Map<File, TarArchiveEntry> directories) throws IOException {
+        final File target = guard.entryFile(entry.getName());
+        if (entry.isDirectory()) {
+            guard.checkDirectory(target);
+            target.mkdirs();
+            directories.put(target, entry);
+            return;
+        } else if (entry.isSymbolicLink()) {
+            guard.checkParents(target);
+            target.getParentFile().mkdirs();
+            final Path linkTarget = guard.linkTarget(target, entry.getLinkName());
+            Files.deleteIfExists(target.toPath());
+            Files.createSymbolicLink(target.toPath(), linkTarget);
+            return;
+        } else if (entry.isLink()) {
+            final File source = guard.entryFile(entry.getLinkName());
+            guard.checkParents(source);
+            if (!Files.isRegularFile(source.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException(String.format("Hard link %s must point to a regular file extracted before it: %s", entry.getName(), entry.getLinkName()));
+            }
+            guard.checkParents(target);
+            target.getParentFile().mkdirs();
+            Files.deleteIfExists(target.toPath());
+            Files.createLink(target.toPath(), source.toPath());
+            return;
+        } else {
+            guard.checkParents(target);
+            target.getParentFile().mkdirs();
+            final OutputStream os = Files.newOutputStream(target.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+            try {
+                IOUtils.copy(tis, os, BUFFER_SIZE);
+            } finally {
+                os.close();
+            }
+        }
+        restoreAttributes(target, entry);
+    }
+
+    private void restoreAttributes(File target, TarArchiveEntry entry) throws IOException {
+        target.setLastModified(entry.getModTime().getTime());
+        if (isUseJvmChmod()) {
+            Utils.chmod(target, entry.getMode());
+        }
+    }
+}
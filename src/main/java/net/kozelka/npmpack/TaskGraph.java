@@ -0,0 +1,228 @@
+package net.kozelka.npmpack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs named tasks with dependencies between them; independent tasks run concurrently on a bounded pool.
+ * <p>A task starts as soon as all tasks it depends on have finished. The first failure cancels (interrupts) the
+ * running tasks and prevents the waiting ones from starting. {@link #run()} does not return before the cancelled tasks
+ * have stopped, so tasks must respond to interruption.</p>
+ * <p>After {@link #run()}, the duration of each task and of the whole run tell how much time the concurrency saved.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class TaskGraph {
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long wallMillis;
+
+    private static final class Node {
+        private final String name;
+        private final Set<String> dependsOn;
+        private final Callable<Void> action;
+        private final List<Node> dependents = new ArrayList<Node>();
+        private int waitingFor;
+        private long millis = -1;
+
+        private Node(String name, Set<String> dependsOn, Callable<Void> action) {
+            this.name = name;
+            this.dependsOn = dependsOn;
+            this.action = action;
+        }
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param dependsOn names of tasks that must finish before this one starts
+     */
+    public void add(String name, Collection<String> dependsOn, Callable<Void> action) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate task: " + name);
+        }
+        nodes.put(name, new Node(name, new HashSet<String>(dependsOn), action));
+    }
+
+    /**
+     * Runs all tasks, and waits for them to finish.
+     * @throws IOException with the first failure as its cause, or the failure itself if it was an IOException
+     * @throws IllegalArgumentException if a dependency is unknown or there is a cycle
+     */
+    public void run() throws IOException, InterruptedException {
+        final List<Node> ready = link();
+        // set by the failing task itself, before its thread can take another task
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final long startTime = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, nodes.size())));
+        final CompletionService<Node> completion = new ExecutorCompletionService<Node>(executor);
+        final List<Future<Node>> running = new ArrayList<Future<Node>>();
+        try {
+            for (Node node : ready) {
+                running.add(completion.submit(toCallable(node, failure)));
+            }
+            int finished = 0;
+            while (finished < nodes.size()) {
+                final Future<Node> future = completion.take();
+                running.remove(future);
+                final Node node;
+                try {
+                    node = future.get();
+                } catch (ExecutionException e) {
+                    for (Future<Node> other : running) {
+                        other.cancel(true);
+                    }
+                    // tasks refused after the failure may complete before it
+                    final Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause.getMessage(), cause);
+                }
+                finished++;
+                for (Node dependent : node.dependents) {
+                    dependent.waitingFor--;
+                    if (dependent.waitingFor == 0) {
+                        running.add(completion.submit(toCallable(dependent, failure)));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+            wallMillis = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    /**
+     * Waits until all tasks are finished, so that none of them is still writing when the run is over.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return duration of the last {@link #run()}
+     */
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    /**
+     * @return sum of durations of all finished tasks, which is how long a sequential run would take
+     */
+    public long getTotalTaskMillis() {
+        long total = 0;
+        for (Node node : nodes.values()) {
+            total += Math.max(0, node.millis);
+        }
+        return total;
+    }
+
+    /**
+     * @return duration of each task that has finished, in the order of adding
+     */
+    public Map<String, Long> getTaskMillis() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Node node : nodes.values()) {
+            if (node.millis >= 0) {
+                result.put(node.name, node.millis);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves dependencies and detects cycles.
+     * @return tasks that depend on nothing
+     */
+    private List<Node> link() {
+        final List<Node> ready = new ArrayList<Node>();
+        for (Node node : nodes.values()) {
+            node.dependents.clear();
+            node.millis = -1;
+        }
+        for (Node node : nodes.values()) {
+            node.waitingFor = node.dependsOn.size();
+            for (String name : node.dependsOn) {
+                final Node dependency = nodes.get(name);
+                if (dependency == null) {
+                    throw new IllegalArgumentException(String.format("Task '%s' depends on unknown task '%s'", node.name, name));
+                }
+                dependency.dependents.add(node);
+            }
+            if (node.waitingFor == 0) {
+                ready.add(node);
+            }
+        }
+        // Kahn's algorithm: if some task is never reached, there is a cycle
+        final Map<Node, Integer> waiting = new HashMap<Node, Integer>();
+        final List<Node> queue = new ArrayList<Node>(ready);
+        int reached = 0;
+        while (!queue.isEmpty()) {
+            final Node node = queue.remove(queue.size() - 1);
+            reached++;
+            for (Node dependent : node.dependents) {
+                final Integer count = waiting.get(dependent);
+                final int remaining = (count == null ? dependent.waitingFor : count) - 1;
+                waiting.put(dependent, remaining);
+                if (remaining == 0) {
+                    queue.add(dependent);
+                }
+            }
+        }
+        if (reached < nodes.size()) {
+            throw new IllegalArgumentException("Cyclic dependencies between tasks: " + nodes.keySet());
+        }
+        return ready;
+    }
+
+    private static Callable<Node> toCallable(final Node node, final AtomicReference<Exception> failure) {
+        return new Callable<Node>() {
+            @Override
+            public Node call() throws Exception {
+                if (failure.get() != null) {
+                    throw new CancellationException("Not started after a failure: " + node.name);
+                }
+                final long startTime = System.currentTimeMillis();
+                try {
+                    node.action.call();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                }
+                node.millis = System.currentTimeMillis() - startTime;
+                return node;
+            }
+        };
+    }
+}
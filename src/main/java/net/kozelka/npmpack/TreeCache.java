@@ -0,0 +1,248 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps previously materialized directory trees, so that switching back to one of them is just a rename.
+ * <p>Each entry is a directory named by its key (typically the hash of package.json), with a small properties file
+ * next to it holding its size and the time it was stored. A tree is moved into the cache by {@link #put} and out of it
+ * by {@link #take}; both are renames, so the cache must be on the same filesystem as the trees.</p>
+ * <p>{@link #evict()} removes the least recently stored entries until the limits are met. Evicted trees are only
+ * {@link TreeDeleter#bury buried}; a {@link TreeDeleter} on the cache directory deletes them.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class TreeCache {
+    private static final String INFO_SUFFIX = ".properties";
+    private static final String SIZE = "size";
+    private static final String TIME = "time";
+
+    private final File directory;
+    private int maxEntries;
+    private long maxBytes;
+    private long minFreeBytes;
+
+    private static final class Entry {
+        private final String key;
+        private final long size;
+        private final long time;
+
+        private Entry(String key, long size, long time) {
+            this.key = key;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    public TreeCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param maxEntries maximum number of kept trees; 0 means unlimited
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+    }
+
+    /**
+     * @param maxBytes maximum total size of kept trees; 0 means unlimited
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @param minFreeBytes trees are evicted while the filesystem has less usable space than this; 0 means no limit
+     */
+    public void setMinFreeBytes(long minFreeBytes) {
+        this.minFreeBytes = Math.max(0, minFreeBytes);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean contains(String key) {
+        return new File(directory, key).isDirectory() && new File(directory, key + INFO_SUFFIX).isFile();
+    }
+
+    /**
+     * Moves the tree into the cache, replacing an older entry with the same key; its size is computed by walking it.
+     * @return false if the tree could not be moved, typically because it is on a different filesystem
+     */
+    public boolean put(String key, File tree) throws IOException {
+        return put(key, tree, -1);
+    }
+
+    /**
+     * Like {@link #put(String, File)}, with the size already known, like from the manifest of the tree.
+     * @param size total size of files in the tree; if negative, it is computed by walking the tree
+     */
+    public boolean put(String key, File tree, long size) throws IOException {
+        directory.mkdirs();
+        final File entry = new File(directory, key);
+        final File info = new File(directory, key + INFO_SUFFIX);
+        info.delete();
+        if (entry.exists()) {
+            TreeDeleter.bury(entry);
+        }
+        final long treeSize = size < 0 ? sizeOf(tree) : size;
+        if (!tree.renameTo(entry)) {
+            return false;
+        }
+        final Properties props = new Properties();
+        props.setProperty(SIZE, String.valueOf(treeSize));
+        props.setProperty(TIME, String.valueOf(System.currentTimeMillis()));
+        final OutputStream os = new FileOutputStream(info);
+        try {
+            props.store(os, "cached tree " + key);
+        } finally {
+            os.close();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the cached tree to the given location, which must not exist. The entry leaves the cache.
+     * @return false if there is no such entry, or it could not be moved
+     */
+    public boolean take(String key, File target) {
+        if (!contains(key)) {
+            return false;
+        }
+        if (!new File(directory, key).renameTo(target)) {
+            return false;
+        }
+        new File(directory, key + INFO_SUFFIX).delete();
+        return true;
+    }
+
+    /**
+     * Buries the least recently stored trees until all limits are met. Incomplete entries are always buried.
+     * @return keys of the evicted entries
+     */
+    public List<String> evict() throws IOException {
+        final List<String> evicted = new ArrayList<String>();
+        final List<Entry> entries = readEntries();
+        // newest first
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.time, a.time);
+            }
+        });
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+        long missingFree = minFreeBytes > 0 ? minFreeBytes - directory.getUsableSpace() : 0;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            final Entry entry = entries.get(i);
+            final boolean overCount = maxEntries > 0 && i >= maxEntries;
+            final boolean overSize = maxBytes > 0 && total > maxBytes;
+            if (!overCount && !overSize && missingFree <= 0) {
+                break;
+            }
+            remove(entry.key);
+            evicted.add(entry.key);
+            total -= entry.size;
+            missingFree -= entry.size;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return total size of all entries, as recorded when they were stored
+     */
+    public long getTotalBytes() throws IOException {
+        long total = 0;
+        for (Entry entry : readEntries()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    /**
+     * Reads all complete entries; trees without info, and info without trees, are removed.
+     */
+    private List<Entry> readEntries() throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                if (!new File(directory, name + INFO_SUFFIX).isFile()) {
+                    TreeDeleter.bury(file);
+                }
+                continue;
+            }
+            if (!name.endsWith(INFO_SUFFIX)) {
+                continue;
+            }
+            final String key = name.substring(0, name.length() - INFO_SUFFIX.length());
+            if (!new File(directory, key).isDirectory()) {
+                file.delete();
+                continue;
+            }
+            final Properties props = new Properties();
+            final InputStream is = new FileInputStream(file);
+            try {
+                props.load(is);
+            } finally {
+                is.close();
+            }
+            try {
+                entries.add(new Entry(key, Long.parseLong(props.getProperty(SIZE, "0")), Long.parseLong(props.getProperty(TIME, "0"))));
+            } catch (NumberFormatException e) {
+                // corrupted info; the tree cannot be trusted
+                remove(key);
+            }
+        }
+        return entries;
+    }
+
+    private void remove(String key) throws IOException {
+        new File(directory, key + INFO_SUFFIX).delete();
+        final File entry = new File(directory, key);
+        if (entry.exists()) {
+            TreeDeleter.bury(entry);
+        }
+    }
+
+    /**
+     * @return total size of all files in the tree, not following symlinks
+     */
+    static long sizeOf(File tree) throws IOException {
+        final long[] size = {0};
+        Files.walkFileTree(tree.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+}
@@ -0,0 +1,152 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Deletes directory trees in the background.
+ * <p>A tree is first {@link #bury buried}, that is, renamed to a unique tombstone name, which is cheap and makes its
+ * original location immediately reusable. All tombstones found in a directory are then deleted in parallel, on
+ * daemon threads, while the caller proceeds with other work. Tombstones left over by an interrupted build are
+ * picked up by the next one.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class TreeDeleter {
+    private static final String TOMBSTONE_PREFIX = ".tombstone-";
+
+    private final File directory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+    private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    private final List<File> tombstones = new ArrayList<File>();
+
+    /**
+     * @param directory the directory containing tombstones
+     */
+    public TreeDeleter(File directory) {
+        this.directory = directory;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Renames given file or directory to a tombstone in the same parent directory.
+     * @return the tombstone
+     */
+    public static File bury(File file) throws IOException {
+        final File tombstone = new File(file.getParentFile(), TOMBSTONE_PREFIX + UUID.randomUUID());
+        if (!file.renameTo(tombstone)) {
+            throw new IOException("Cannot rename " + file + " to " + tombstone);
+        }
+        return tombstone;
+    }
+
+    /**
+     * Starts deleting all tombstones in the directory. Returns immediately.
+     */
+    public void start() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "npmpack-delete");
+                // never keep the JVM alive; unfinished tombstones are deleted next time
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (File file : files) {
+            if (!file.getName().startsWith(TOMBSTONE_PREFIX)) {
+                continue;
+            }
+            tombstones.add(file);
+            final File[] children = file.listFiles();
+            if (children != null) {
+                // top-level packages are the units of parallel work
+                for (final File child : children) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            delete(child.toPath());
+                            return null;
+                        }
+                    }));
+                }
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Waits until all tombstones are deleted.
+     * @return number of deleted tombstones
+     * @throws IOException if something could not be deleted
+     */
+    public int join() throws IOException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Deleting interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to delete tombstone in " + directory, e.getCause());
+        } finally {
+            futures.clear();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        for (File tombstone : tombstones) {
+            delete(tombstone.toPath());
+        }
+        return tombstones.size();
+    }
+
+    /**
+     * Deletes file or directory tree, not following symlinks.
+     */
+    static void delete(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,124 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Materializes a directory tree by hardlinking its files into another location.
+ * <p>Directories are recreated, regular files are hardlinked and symlinks are recreated as symlinks.
+ * When hardlinking is not possible (typically because the source and target are on different filesystems),
+ * files are copied instead, and the linker does not attempt hardlinks for the rest of the tree.</p>
+ * <p>Hardlinked files share their content with the source; before modifying them in place, {@link #detach} them.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class TreeLinker {
+    private final File sourceDirectory;
+    private int linkCount;
+    private int copyCount;
+    private boolean hardlinksSupported = true;
+
+    public TreeLinker(File sourceDirectory) {
+        this.sourceDirectory = sourceDirectory;
+    }
+
+    /**
+     * Fills target directory with the content of source directory.
+     * @param targetDirectory the directory to create; must not exist yet, or be empty
+     * @throws IOException -
+     */
+    public void linkTo(File targetDirectory) throws IOException {
+        final Path source = sourceDirectory.toPath();
+        final Path target = targetDirectory.toPath();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path dest = target.resolve(source.relativize(file));
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(dest, Files.readSymbolicLink(file));
+                } else {
+                    linkOrCopy(file, dest);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void linkOrCopy(Path file, Path dest) throws IOException {
+        if (hardlinksSupported) {
+            try {
+                Files.createLink(dest, file);
+                linkCount++;
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException e) {
+                hardlinksSupported = false;
+            } catch (FileSystemException e) {
+                // most likely a cross-device link
+                hardlinksSupported = false;
+            }
+        }
+        Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+        copyCount++;
+    }
+
+    /**
+     * Replaces hardlinked files in given file or directory by private copies, so that they can be modified in place
+     * without affecting the other links. Where the link count is not available, all files are copied.
+     * @return number of files copied
+     * @throws IOException -
+     */
+    public static int detach(File fileOrDirectory) throws IOException {
+        final int[] count = new int[1];
+        if (!fileOrDirectory.exists()) {
+            return 0;
+        }
+        Files.walkFileTree(fileOrDirectory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && isShared(file)) {
+                    final Path copy = file.resolveSibling(file.getFileName() + ".npmpack-detach");
+                    Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(copy, file, StandardCopyOption.ATOMIC_MOVE);
+                    count[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    private static boolean isShared(Path file) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() > 1;
+        } catch (UnsupportedOperationException e) {
+            return true;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    public int getLinkCount() {
+        return linkCount;
+    }
+
+    public int getCopyCount() {
+        return copyCount;
+    }
+}
@@ -0,0 +1,93 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that a directory tree matches its {@link Manifest}.
+ * <p>Files are checked in parallel. Size and modification time are checked first; file content is read (to compute
+ * CRC32) only when the modification time differs from the manifest.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class TreeVerifier {
+    private static final int BATCH_SIZE = 256;
+
+    private final File directory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int hashedCount;
+
+    public TreeVerifier(File directory) {
+        this.directory = directory;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param manifest the expected content
+     * @return paths of files that are missing or differ from the manifest; empty if the tree is intact
+     * @throws IOException -
+     */
+    public List<String> verify(Manifest manifest) throws IOException {
+        final List<Manifest.Entry> entries = new ArrayList<Manifest.Entry>(manifest.getEntries());
+        final List<String> broken = Collections.synchronizedList(new ArrayList<String>());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < entries.size(); i += BATCH_SIZE) {
+                final List<Manifest.Entry> batch = entries.subList(i, Math.min(entries.size(), i + BATCH_SIZE));
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        int hashed = 0;
+                        for (Manifest.Entry entry : batch) {
+                            final File file = new File(directory, entry.getPath());
+                            if (!file.isFile() || file.length() != entry.getSize()) {
+                                broken.add(entry.getPath());
+                            } else if (file.lastModified() != entry.getTime()) {
+                                hashed++;
+                                if (Utils.crc32(file) != entry.getCrc()) {
+                                    broken.add(entry.getPath());
+                                }
+                            }
+                        }
+                        return hashed;
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                hashedCount += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification interrupted: " + directory, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to verify " + directory, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        Collections.sort(broken);
+        return broken;
+    }
+
+    /**
+     * @return number of files whose content had to be read during the last verification
+     */
+    public int getHashedCount() {
+        return hashedCount;
+    }
+}
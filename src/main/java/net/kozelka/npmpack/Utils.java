@@ -1,16 +1,28 @@
 package net.kozelka.npmpack;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * @author Petr Kozelka
  */
 public class Utils {
 
+    /**
+     * @deprecated encodes the text with platform charset; use {@link PackageJsonDigest} to hash package.json
+     */
+    @Deprecated
     public static String md5sum(String text) throws IOException, NoSuchAlgorithmException {
         final byte[] normalizedBytes = text.getBytes();
         final InputStream is = new ByteArrayInputStream(normalizedBytes);
@@ -37,6 +49,75 @@ public class Utils {
         }
     }
 
+    /**
+     * Computes CRC32 checksum of file content, the same way as zip archives do.
+     */
+    public static long crc32(File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[8192];
+            int numRead;
+            do {
+                numRead = is.read(buffer);
+                if (numRead > 0) {
+                    crc.update(buffer, 0, numRead);
+                }
+            } while (numRead != -1);
+            return crc.getValue();
+        } finally {
+            is.close();
+        }
+    }
+
+    public static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * Sets unix permissions of the file; does nothing on filesystems that do not support them.
+     * @param mode unix mode; only the permission bits are used
+     */
+    public static void chmod(File file, int mode) throws IOException {
+        if (isPosix()) {
+            Files.setPosixFilePermissions(file.toPath(), toPermissions(mode & 0777));
+        }
+    }
+
+    /**
+     * @return unix permission bits of the file; on filesystems without posix support, a guess based on executable flag
+     */
+    public static int unixMode(File file) throws IOException {
+        if (isPosix()) {
+            return toMode(Files.getPosixFilePermissions(file.toPath()));
+        }
+        return file.isDirectory() || file.canExecute() ? 0755 : 0644;
+    }
+
+    // PosixFilePermission constants are ordered from OWNER_READ (0400) down to OTHERS_EXECUTE (0001)
+
+    public static Set<PosixFilePermission> toPermissions(int mode) {
+        final Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        final PosixFilePermission[] values = PosixFilePermission.values();
+        for (int i = 0; i < values.length; i++) {
+            if ((mode & (0400 >> i)) != 0) {
+                permissions.add(values[i]);
+            }
+        }
+        return permissions;
+    }
+
+    public static int toMode(Set<PosixFilePermission> permissions) {
+        int mode = 0;
+        final PosixFilePermission[] values = PosixFilePermission.values();
+        for (int i = 0; i < values.length; i++) {
+            if (permissions.contains(values[i])) {
+                mode |= 0400 >> i;
+            }
+        }
+        return mode;
+    }
+
     public static String hex(byte[] bytes) throws IOException, NoSuchAlgorithmException {
         final StringBuilder result = new StringBuilder();
         for (byte b : bytes) {
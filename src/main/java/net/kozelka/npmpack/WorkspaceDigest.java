@@ -0,0 +1,287 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.codehaus.plexus.util.DirectoryScanner;
+
+/**
+ * Computes one hash identifying the dependencies of an npm workspace (monorepo): the root <code>package.json</code>,
+ * the <code>package.json</code> of each workspace member, and the lockfile.
+ * <p>Members are found by the patterns in the root's <code>workspaces</code> property (either an array, or an object
+ * with array <code>packages</code>, like yarn has it); patterns starting with <code>!</code> exclude.</p>
+ * <p>All files are parsed and written in canonical form in parallel, see {@link PackageJsonDigest}, and then digested
+ * in the order of their relative paths. When anonymizing, the root loses its name and version, and members lose their
+ * version; member names are kept, because <code>node_modules</code> links to members by name.
+ * <code>yarn.lock</code> is only normalized for line endings.</p>
+ * <p>Without {@link #setIncludeMembers members}, it is the hash of a single project with its lockfile.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class WorkspaceDigest {
+    private static final String PACKAGE_JSON = "package.json";
+    private static final List<String> JSON_LOCKFILES = Arrays.asList("npm-shrinkwrap.json", "package-lock.json");
+    private static final String YARN_LOCK = "yarn.lock";
+
+    private final File rootDir;
+    private final String algorithm;
+    private final boolean anonymize;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean includeMembers = true;
+    private final Map<String, String> members = new TreeMap<String, String>();
+    private final List<String> files = new ArrayList<String>();
+
+    /**
+     * @param rootPackageJson the <code>package.json</code> of the workspace root
+     */
+    public WorkspaceDigest(File rootPackageJson, String algorithm, boolean anonymize) throws NoSuchAlgorithmException {
+        // fail early on unknown algorithm
+        MessageDigest.getInstance(algorithm);
+        this.rootDir = rootPackageJson.getAbsoluteFile().getParentFile();
+        this.algorithm = algorithm;
+        this.anonymize = anonymize;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param includeMembers false to ignore the <code>workspaces</code> property, and digest only the root and the lockfile
+     */
+    public void setIncludeMembers(boolean includeMembers) {
+        this.includeMembers = includeMembers;
+    }
+
+    /**
+     * @return the hash as lowercase hexadecimal string
+     */
+    public String digest() throws IOException, NoSuchAlgorithmException {
+        final List<String> memberDirs;
+        if (includeMembers) {
+            final JsonObject root = PackageJsonDigest.parse(new File(rootDir, PACKAGE_JSON), false);
+            memberDirs = findMemberDirs(rootDir, workspacePatterns(root));
+        } else {
+            memberDirs = Collections.emptyList();
+        }
+        files.clear();
+        members.clear();
+        files.add(PACKAGE_JSON);
+        for (String dir : memberDirs) {
+            files.add(dir + "/" + PACKAGE_JSON);
+        }
+        for (File lockfile : findLockfiles(rootDir)) {
+            files.add(lockfile.getName());
+        }
+        Collections.sort(files);
+
+        final List<byte[]> contents = canonicalizeAll(memberDirs);
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        for (int i = 0; i < files.size(); i++) {
+            md.update(files.get(i).getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(contents.get(i));
+            md.update((byte) 0);
+        }
+        return Utils.hex(md.digest());
+    }
+
+    /**
+     * @return relative paths of the digested files, sorted, as of the last {@link #digest()}
+     */
+    public List<String> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return directory of each member, relative to the root, by member name; as of the last {@link #digest()}
+     */
+    public Map<String, String> getMembers() {
+        return Collections.unmodifiableMap(members);
+    }
+
+    /**
+     * @return lockfiles present in the directory: <code>npm-shrinkwrap.json</code>, <code>package-lock.json</code>,
+     * <code>yarn.lock</code>
+     */
+    public static List<File> findLockfiles(File directory) {
+        final List<File> lockfiles = new ArrayList<File>();
+        for (String name : JSON_LOCKFILES) {
+            final File lockfile = new File(directory, name);
+            if (lockfile.isFile()) {
+                lockfiles.add(lockfile);
+            }
+        }
+        final File yarnLock = new File(directory, YARN_LOCK);
+        if (yarnLock.isFile()) {
+            lockfiles.add(yarnLock);
+        }
+        return lockfiles;
+    }
+
+    /**
+     * @return true for lockfiles that <code>npm ci</code> installs from
+     */
+    public static boolean isNpmLockfile(File lockfile) {
+        return JSON_LOCKFILES.contains(lockfile.getName());
+    }
+
+    static List<String> workspacePatterns(JsonObject root) {
+        JsonElement workspaces = root.get("workspaces");
+        if (workspaces != null && workspaces.isJsonObject()) {
+            workspaces = workspaces.getAsJsonObject().get("packages");
+        }
+        final List<String> patterns = new ArrayList<String>();
+        if (workspaces != null && workspaces.isJsonArray()) {
+            for (JsonElement pattern : workspaces.getAsJsonArray()) {
+                if (pattern.isJsonPrimitive()) {
+                    patterns.add(pattern.getAsString());
+                }
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * @return relative paths of member directories, sorted
+     */
+    static List<String> findMemberDirs(File rootDir, List<String> patterns) {
+        final List<String> includes = new ArrayList<String>();
+        final List<String> excludes = new ArrayList<String>();
+        excludes.add("**/node_modules/**");
+        for (String pattern : patterns) {
+            final boolean negated = pattern.startsWith("!");
+            String path = (negated ? pattern.substring(1) : pattern).replace('\\', '/');
+            while (path.startsWith("./")) {
+                path = path.substring(2);
+            }
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            (negated ? excludes : includes).add(path + "/" + PACKAGE_JSON);
+        }
+        if (includes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(rootDir);
+        scanner.setIncludes(includes.toArray(new String[includes.size()]));
+        scanner.setExcludes(excludes.toArray(new String[excludes.size()]));
+        scanner.scan();
+        final List<String> dirs = new ArrayList<String>();
+        for (String path : scanner.getIncludedFiles()) {
+            final String normalized = path.replace(File.separatorChar, '/');
+            final String dir = normalized.substring(0, normalized.length() - PACKAGE_JSON.length() - 1);
+            if (dir.length() > 0) {
+                dirs.add(dir);
+            }
+        }
+        Collections.sort(dirs);
+        return dirs;
+    }
+
+    private List<byte[]> canonicalizeAll(final List<String> memberDirs) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (final String path : files) {
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return canonicalize(path, memberDirs);
+                    }
+                }));
+            }
+            final List<byte[]> contents = new ArrayList<byte[]>();
+            for (Future<byte[]> future : futures) {
+                contents.add(future.get());
+            }
+            return contents;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading workspace manifests", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private byte[] canonicalize(String path, List<String> memberDirs) throws IOException {
+        final File file = new File(rootDir, path);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (path.equals(YARN_LOCK)) {
+            PackageJsonDigest.copyNormalizingEols(file, out);
+            return out.toByteArray();
+        }
+        final JsonObject json;
+        if (path.equals(PACKAGE_JSON)) {
+            json = PackageJsonDigest.parse(file, anonymize);
+        } else if (JSON_LOCKFILES.contains(path)) {
+            json = PackageJsonDigest.parse(file, false);
+            if (anonymize) {
+                anonymizeLockfile(json, memberDirs);
+            }
+        } else {
+            json = PackageJsonDigest.parse(file, false);
+            final JsonElement name = json.get("name");
+            if (name != null && name.isJsonPrimitive()) {
+                synchronized (members) {
+                    members.put(name.getAsString(), path.substring(0, path.length() - PACKAGE_JSON.length() - 1));
+                }
+            }
+            if (anonymize) {
+                json.addProperty("version", PackageJsonDigest.ANONYMIZED);
+            }
+        }
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        PackageJsonDigest.writeCanonical(json, writer);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Replaces name and version of the root, and versions of members, the same way as in their package.json.
+     */
+    private static void anonymizeLockfile(JsonObject lockfile, List<String> memberDirs) {
+        lockfile.addProperty("name", PackageJsonDigest.ANONYMIZED);
+        lockfile.addProperty("version", PackageJsonDigest.ANONYMIZED);
+        final JsonElement packages = lockfile.get("packages");
+        if (packages == null || !packages.isJsonObject()) {
+            return;
+        }
+        final JsonObject entries = packages.getAsJsonObject();
+        final JsonElement rootEntry = entries.get("");
+        if (rootEntry != null && rootEntry.isJsonObject()) {
+            rootEntry.getAsJsonObject().addProperty("name", PackageJsonDigest.ANONYMIZED);
+            rootEntry.getAsJsonObject().addProperty("version", PackageJsonDigest.ANONYMIZED);
+        }
+        for (String dir : memberDirs) {
+            final JsonElement entry = entries.get(dir);
+            if (entry != null && entry.isJsonObject() && entry.getAsJsonObject().has("version")) {
+                entry.getAsJsonObject().addProperty("version", PackageJsonDigest.ANONYMIZED);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * Extracts zip archive using a bounded pool of worker threads.
+ * <p>The central directory is read just once, all directories are created upfront, and then the file entries are
+ * inflated and written in parallel, each worker using its own direct buffer.</p>
+ * <p>In memory-mapped mode, entries stored without compression are copied straight from the mapped archive into the
+ * output files.</p>
+ * <p>Symbolic links are created last, one by one, after all files are written; see {@link ExtractionGuard} for the
+ * rules that keep entries inside the destination directory.</p>
+ *
+ * @author Petr Kozelka
+ */
+public class ZipExtractor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 64;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File archive;
+    private final File destDirectory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean useJvmChmod = true;
+    private boolean memoryMapped;
+    private FileChannel archiveChannel;
+    private MappedByteBuffer[] segments;
+
+    public ZipExtractor(File archive, File destDirectory) {
+        this.archive = archive;
+        this.destDirectory = destDirectory;
+    }
+
+    /**
+     * @param threads number of worker threads; values below 1 mean "one"
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param useJvmChmod if true, unix permissions stored in the archive are restored on extracted files
+     */
+    public void setUseJvmChmod(boolean useJvmChmod) {
+        this.useJvmChmod = useJvmChmod;
+    }
+
+    /**
+     * @param memoryMapped if true, the archive is memory-mapped and stored (uncompressed) entries are copied directly
+     * from the mapping; compressed entries are still inflated as usual
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Extracts all entries.
+     * @throws IOException -
+     */
+    public void extract() throws IOException {
+        extract(null, "");
+    }
+
+    /**
+     * Extracts entries whose names start with the given path, keeping their full names.
+     * @param path prefix of entry names, like <code>pkg/lib/</code>
+     * @throws IOException -
+     */
+    public void extractPath(String path) throws IOException {
+        extract(null, path);
+    }
+
+    /**
+     * Extracts selected entries.
+     * Existing files are replaced rather than overwritten, so that hardlinks to them are not affected.
+     * @param entryNames names of entries to extract; <code>null</code> means all
+     * @throws IOException -
+     */
+    public void extract(Collection<String> entryNames) throws IOException {
+        extract(entryNames, "");
+    }
+
+    private void extract(Collection<String> entryNames, String path) throws IOException {
+        final ExtractionGuard guard = new ExtractionGuard(destDirectory);
+        final ZipFile zipFile = new ZipFile(archive);
+        try {
+            final List<ZipArchiveEntry> files = new ArrayList<ZipArchiveEntry>();
+            final List<ZipArchiveEntry> links = new ArrayList<ZipArchiveEntry>();
+            final Set<File> directories = new TreeSet<File>();
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntriesInPhysicalOrder())) {
+                if (!entry.getName().startsWith(path) || (entryNames != null && !entryNames.contains(entry.getName()))) {
+                    continue;
+                }
+                final File target = guard.entryFile(entry.getName());
+                if (entry.isDirectory()) {
+                    directories.add(target);
+                } else {
+                    directories.add(target.getParentFile());
+                    (entry.isUnixSymlink() ? links : files).add(entry);
+                }
+            }
+            // parents sort before children, so each mkdir is cheap
+            for (File directory : directories) {
+                guard.checkDirectory(directory);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create directory " + directory);
+                }
+            }
+            try {
+                if (memoryMapped) {
+                    map();
+                }
+                extractFiles(zipFile, files, entryNames != null);
+            } finally {
+                if (archiveChannel != null) {
+                    archiveChannel.close();
+                    archiveChannel = null;
+                    segments = null;
+                }
+            }
+            for (ZipArchiveEntry entry : links) {
+                final File link = guard.entryFile(entry.getName());
+                final Path target = guard.linkTarget(link, zipFile.getUnixSymlink(entry));
+                Files.deleteIfExists(link.toPath());
+                Files.createSymbolicLink(link.toPath(), target);
+            }
+            if (useJvmChmod && entryNames == null) {
+                // restore directory modes after their content is written
+                for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) {
+                    if (entry.isDirectory() && entry.getName().startsWith(path)) {
+                        chmod(guard.entryFile(entry.getName()), entry);
+                    }
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Maps the archive in segments; mappings are limited to 2G each.
+     */
+    private void map() throws IOException {
+        archiveChannel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        final long size = archiveChannel.size();
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+            final long start = i * SEGMENT_SIZE;
+            segments[i] = archiveChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    private void extractFiles(final ZipFile zipFile, List<ZipArchiveEntry> files, final boolean replace) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+                final List<ZipArchiveEntry> batch = files.subList(i, Math.min(files.size(), i + BATCH_SIZE));
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                        for (ZipArchiveEntry entry : batch) {
+                            extractFile(zipFile, entry, buffer, replace);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction interrupted: " + archive, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to extract " + archive, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void extractFile(ZipFile zipFile, ZipArchiveEntry entry, ByteBuffer buffer, boolean replace) throws IOException {
+        // names and parent directories are already verified
+        final File target = new File(destDirectory, entry.getName().replace('\\', '/'));
+        if (replace) {
+            Files.deleteIfExists(target.toPath());
+        }
+        if (segments != null && entry.getMethod() == ZipEntry.STORED && entry.getDataOffset() >= 0) {
+            copyMapped(entry, target);
+        } else {
+            inflate(zipFile, entry, target, buffer);
+        }
+        if (entry.getTime() != -1) {
+            target.setLastModified(entry.getTime());
+        }
+        if (useJvmChmod) {
+            chmod(target, entry);
+        }
+    }
+
+    private void copyMapped(ZipArchiveEntry entry, File target) throws IOException {
+        final long offset = entry.getDataOffset();
+        final long size = entry.getCompressedSize();
+        final int segment = (int) (offset / SEGMENT_SIZE);
+        final FileChannel out = FileChannel.open(target.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+        try {
+            if (size > 0 && (offset + size - 1) / SEGMENT_SIZE == segment) {
+                final int start = (int) (offset - segment * SEGMENT_SIZE);
+                final ByteBuffer data = segments[segment].duplicate();
+                data.limit(start + (int) size);
+                data.position(start);
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+            } else {
+                // rare: entry crosses the boundary of mapped segments
+                long copied = 0;
+                while (copied < size) {
+                    copied += archiveChannel.transferTo(offset + copied, size - copied, out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void inflate(ZipFile zipFile, ZipArchiveEntry entry, File target, ByteBuffer buffer) throws IOException {
+        final InputStream is = zipFile.getInputStream(entry);
+        try {
+            final ReadableByteChannel in = Channels.newChannel(is);
+            final FileChannel out = FileChannel.open(target.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+            try {
+                buffer.clear();
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void chmod(File file, ZipArchiveEntry entry) throws IOException {
+        if (entry.getPlatform() != ZipArchiveEntry.PLATFORM_UNIX) {
+            return;
+        }
+        final int mode = entry.getUnixMode() & 0777;
+        if (mode != 0) {
+            Utils.chmod(file, mode);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package net.kozelka.npmpack.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import net.kozelka.npmpack.Metrics;
+import net.kozelka.npmpack.ParallelZipUnArchiver;
+import net.kozelka.npmpack.Pruning;
+import net.kozelka.npmpack.TarZstdUnArchiver;
+import net.kozelka.npmpack.TreeCache;
+import net.kozelka.npmpack.WorkspaceDigest;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.archiver.AbstractUnArchiver;
+import org.codehaus.plexus.archiver.tar.TarGZipUnArchiver;
+import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Common base of the goals that prepare <code>node_modules</code>: {@link NodeModulesMojo} and {@link PrefetchMojo}.
+ * <p>Holds everything both need to agree on: how the hash is computed, which artifact it identifies, and how the
+ * artifact is unpacked. Configure both goals the same way, ideally in the plugin configuration shared by executions.</p>
+ *
+ * @author Petr Kozelka
+ */
+public abstract class AbstractNodeModulesMojo extends AbstractNpmpackMojo {
+    static final String FINGERPRINT_FILE = ".npmpack.fingerprint";
+    static final String LAYERS_TYPE_SUFFIX = ".layers";
+
+    /**
+     * The groupId under which to cache the npm artifacts in the repository.
+     * <p>Recommended use: preferably, do not change; but if you have a reason to do so, define once per whole project (or company), inside parent pom's pluginManagement.</p>
+     * @todo: think about use in released manner. Elaborate on various usages in docs.
+     */
+    @Parameter( defaultValue = "npmpack", required = true )
+    String binaryGroupId;
+
+    /**
+     * The artifactId to use for caching in maven repositories.
+     * <p>Recommended use: do not change</p>
+     */
+    @Parameter( defaultValue = "node_modules", required = true )
+    String binaryArtifactId;
+
+    /**
+     * Type of the resulting archive. Can be one of "zip", "tgz", "tar.gz", "tar.zst", "stored.zip".
+     * <ul>
+     *     <li>"tar.zst" is a tar archive compressed with zstd, which decompresses much faster than gzip;
+     *     a pure-java codec is used, so no native library or external tool is needed</li>
+     *     <li>"stored.zip" is a zip archive without compression; it is larger, but it is unpacked by copying
+     *     entries straight from the memory-mapped archive</li>
+     * </ul>
+     */
+    @Parameter(defaultValue = "zip", required = true)
+    String archiveType;
+
+    /**
+     * <p>If specified, npmpack uses this external command to unpack the binary, instead of internal (java-based) implementation.
+     * The purpose is to allow for a faster unzip if one is available on the given system.</p>
+     * <p>The command is expected (but not strictly checked to) include two <code>%s</code> placeholders, first for source archive file,
+     * second for the target directory. For example:</p>
+     * <ul>
+     *     <li>unzip %s -d %s</li>
+     *     <li>C:/bin/unzip.exe -q %s -d %s</li>
+     * </ul>
+     * <p>Method {@link String#format(java.util.Locale, String, Object...)} is used to interpolate these placeholders; feel free to use any of its tricks to achieve desired results</p>
+     * Note that paths with spaces in them can cause problems due to escaping.
+     */
+    @Parameter(defaultValue = "", property = "npmpack.unzip", required = false)
+    String unzipCommand;
+
+    /**
+     * <p>If positive, zip archives are unpacked by the built-in parallel extractor, using this number of threads.
+     * It reads the central directory once, creates all directories upfront and then inflates entries concurrently.</p>
+     * <p>When 0, the single-threaded plexus unarchiver is used. Not effective if {@link #unzipCommand} is specified.
+     * Archives of type "stored.zip" are always unpacked by the built-in extractor.</p>
+     */
+    @Parameter(defaultValue = "0", property = "npmpack.unpackThreads", required = true)
+    int unpackThreads;
+
+    /**
+     * <p>If set, each archive is unpacked just once, into a shared store, and <code>node_modules</code> is then
+     * populated with hardlinks to the stored files. Where hardlinks are not possible (different filesystems),
+     * files are copied instead.</p>
+     * <p>This saves both time and disk space when multiple modules use the same (anonymized) dependencies.
+     * Note that files under <code>node_modules</code> are then shared with other modules, and must not be modified in place.
+     * Packages that are rebuilt after unpacking (native addons and packages with install scripts) get private copies
+     * of their files for that reason.</p>
+     * <p>The store is never cleaned up by the plugin; it has one directory per archive. Delete old entries, or the whole
+     * store, while no build is running - trees that were already linked from them keep their files.</p>
+     */
+    @Parameter(defaultValue = "false", property = "npmpack.sharedStore", required = true)
+    boolean sharedStore;
+
+    /**
+     * <p>If set, an existing <code>node_modules</code> is updated in place when package.json changes: only files that
+     * differ from the new archive (by path, size and CRC32) are written, and files not in the archive are deleted.</p>
+     * <p>Without this, the whole directory is moved to backup and the new archive is unpacked from scratch.
+     * Only effective for zip archives.</p>
+     */
+    @Parameter(defaultValue = "false", property = "npmpack.incrementalUpdate", required = true)
+    boolean incrementalUpdate;
+
+    /**
+     * <p>If set, <code>node_modules</code> is cached in layers instead of one archive: each top-level package
+     * (including scoped ones like <code>@scope/name</code>) is archived separately, as artifact
+     * <code>${binaryArtifactId}-layer</code> with version made of package name, package version and content hash.
+     * Everything else under <code>node_modules</code> goes to the "root" layer. The artifact for package.json hash
+     * is then just a small index, of type <code>${archiveType}.layers</code>, listing the layers.</p>
+     * <p>When package.json changes, only the layers that differ are fetched and unpacked; the others are kept in place.
+     * Equal packages are stored just once in the repository, no matter how many dependency sets use them.
+     * When deploying to a remote repository, remember to deploy the new layer artifacts along with the index.</p>
+     * <p>Takes precedence over {@link #incrementalUpdate} and {@link #sharedStore}.</p>
+     */
+    @Parameter(defaultValue = "false", property = "npmpack.layered", required = true)
+    boolean layered;
+
+    /**
+     * <p>If positive, up to this many previous <code>node_modules</code> trees are kept, keyed by their package.json
+     * hash. When package.json changes to a hash that is kept (like after switching back to another branch), the tree
+     * is just moved in place - without resolving, unpacking or rebuilding. The replaced tree is kept instead of being
+     * deleted, and the least recently replaced trees are deleted when a limit is exceeded.</p>
+     * <p>With {@link #layered} or {@link #incrementalUpdate}, a replaced tree is normally updated in place, so only
+     * trees that could not be updated that way are kept.</p>
+     * <p>When 0, the replaced tree is always deleted.</p>
+     */
+    @Parameter(defaultValue = "0", property = "npmpack.treeCacheEntries", required = true)
+    int treeCacheEntries;
+
+    /**
+     * Where the trees are kept; must be on the same filesystem as <code>node_modules</code>.
+     * Set it outside the build directory to keep the trees across <code>mvn clean</code>.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/npmpack-trees", property = "npmpack.treeCacheDirectory", required = true)
+    File treeCacheDirectory;
+
+    /**
+     * <p>Named set of rules for leaving out files that no build needs from new archives: documentation, tests,
+     * examples, source maps and similar. Can be one of:</p>
+     * <ul>
+     *     <li>"none" - nothing is left out</li>
+     *     <li>"docs" - readmes, changelogs, <code>doc</code>, <code>docs</code> and <code>example(s)</code> directories</li>
+     *     <li>"standard" - docs, plus tests, coverage, source maps, typescript sources (but not <code>*.d.ts</code>)
+     *     and tool configurations</li>
+     *     <li>"aggressive" - standard, plus all markdown files, type declarations, and editor and CI configurations</li>
+     * </ul>
+     * <p>Fewer files make every unpack, rebuild and verification faster. Pruned archives get a classifier like
+     * <code>pruned-standard</code>, so they never collide with archives pruned otherwise.
+     * Rules only apply when a new archive is created; a changed profile takes effect when package.json changes
+     * or <code>node_modules</code> is removed.</p>
+     */
+    @Parameter(defaultValue = "none", property = "npmpack.pruneProfile", required = true)
+    String pruneProfile;
+
+    /**
+     * Comma-separated patterns of files to leave out of new archives, in addition to {@link #pruneProfile};
+     * relative to <code>node_modules</code>.
+     */
+    @Parameter(property = "npmpack.pruneExcludes")
+    String pruneExcludes;
+
+    /**
+     * Comma-separated patterns of files to keep in new archives, even if {@link #pruneProfile} or
+     * {@link #pruneExcludes} leave them out; relative to <code>node_modules</code>.
+     */
+    @Parameter(property = "npmpack.pruneIncludes")
+    String pruneIncludes;
+
+    /**
+     * <p>If set, {@link #packageJson} is the root of an npm workspace (monorepo), and the cache key covers the whole
+     * workspace: the root package.json, the package.json of each member listed by its <code>workspaces</code>
+     * property, and the lockfile (<code>package-lock.json</code>, <code>npm-shrinkwrap.json</code> or
+     * <code>yarn.lock</code>). All of them are canonicalized in parallel and folded into one hash, which keys a single
+     * archive of the hoisted root <code>node_modules</code>.</p>
+     * <p>The links from <code>node_modules</code> to the members are not archived; they are recreated after unpacking.
+     * With {@link #anonymize}, the root loses its name and version and the members lose their versions.</p>
+     */
+    @Parameter(defaultValue = "false", property = "npmpack.workspaces", required = true)
+    boolean workspaces;
+
+    /**
+     * <p>If set, the lockfile next to {@link #packageJson} (<code>npm-shrinkwrap.json</code>,
+     * <code>package-lock.json</code> or <code>yarn.lock</code>) is part of the hash, so that differently resolved
+     * trees never share an archive. Without a lockfile, the hash is the same as before.</p>
+     * <p>In {@link #workspaces} mode, the lockfile is always part of the hash.</p>
+     * <p>A new archive is then installed by <code>npm ci</code> (or <code>npm install</code> with just
+     * <code>yarn.lock</code>), and the build fails if npm modifies the lockfile, because the archive would no longer
+     * match its hash.</p>
+     */
+    @Parameter(defaultValue = "true", property = "npmpack.hashLockfile", required = true)
+    boolean hashLockfile;
+
+    Pruning pruning;
+    /**
+     * Directories of workspace members by name; known after {@link #computeHash()} in {@link #workspaces} mode.
+     */
+    Map<String, String> workspaceMembers = Collections.emptyMap();
+
+    boolean isZip() {
+        return archiveType.equals("zip") || isStoredZip();
+    }
+
+    boolean isStoredZip() {
+        return archiveType.equals("stored.zip");
+    }
+
+    boolean isTarZst() {
+        return archiveType.equals("tar.zst");
+    }
+
+    private AbstractUnArchiver createUnArchiver() {
+        if (isStoredZip() || (isZip() && unpackThreads > 0)) {
+            final ParallelZipUnArchiver unArchiver = new ParallelZipUnArchiver();
+            if (unpackThreads > 0) {
+                unArchiver.setThreads(unpackThreads);
+            }
+            unArchiver.setMemoryMapped(isStoredZip());
+            return unArchiver;
+        }
+        if (isZip()) {
+            return new ZipUnArchiver();
+        }
+        return isTarZst() ? new TarZstdUnArchiver() : new TarGZipUnArchiver();
+    }
+
+    /**
+     * @return true if {@link #treeCacheEntries the tree cache} holds the tree for the hash
+     */
+    boolean isTreeKept(String hash) {
+        return treeCacheEntries > 0 && new TreeCache(treeCacheDirectory).contains(hash);
+    }
+
+    void validateParameters() throws MojoExecutionException {
+        if (!"|zip|tgz|tar.gz|tar.zst|stored.zip|".contains("|"+archiveType+"|")) {
+            throw new MojoExecutionException("Invalid archive type: " + archiveType);
+        }
+        if (!packageJson.exists()) {
+            throw new MojoExecutionException("File not found: " + packageJson);
+        }
+        try {
+            pruning = Pruning.create(pruneProfile, split(pruneExcludes), split(pruneIncludes));
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates an artifact of the binary cache; pruned archives are distinguished by classifier, see {@link #pruneProfile}.
+     */
+    Artifact createBinaryArtifact(String artifactId, String version, String type) {
+        final String classifier = pruning.getId();
+        if (classifier == null) {
+            return factory.createBuildArtifact(binaryGroupId, artifactId, version, type);
+        }
+        return factory.createArtifactWithClassifier(binaryGroupId, artifactId, version, type, classifier);
+    }
+
+    /**
+     * Computes the hash of package.json, or of the whole workspace in {@link #workspaces} mode.
+     */
+    String computeHash() throws IOException, NoSuchAlgorithmException {
+        if (!workspaces && hashedLockfiles().isEmpty()) {
+            return hashPackageJson(packageJson);
+        }
+        final WorkspaceDigest digest = new WorkspaceDigest(packageJson, hashAlgorithm, anonymize);
+        if (!workspaces) {
+            digest.setIncludeMembers(false);
+            final String hash = digest.digest();
+            getLog().info(String.format("Hash #%s covers %s", hash, digest.getFiles()));
+            return hash;
+        }
+        final String hash = digest.digest();
+        workspaceMembers = digest.getMembers();
+        getLog().info(String.format("Workspace hash #%s covers %d files, %d members: %s", hash, digest.getFiles().size(),
+                workspaceMembers.size(), digest.getFiles()));
+        return hash;
+    }
+
+    /**
+     * @return the lockfiles that are part of the hash
+     */
+    List<File> hashedLockfiles() {
+        return workspaces || hashLockfile ? lockfiles() : Collections.<File>emptyList();
+    }
+
+    private List<File> lockfiles() {
+        return WorkspaceDigest.findLockfiles(packageJson.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * The fingerprint only covers package.json, so the variant also identifies the state of the lockfile.
+     */
+    String fingerprintVariant() {
+        final StringBuilder variant = new StringBuilder("anonymize=" + anonymize + ",algorithm=" + hashAlgorithm);
+        if (hashLockfile) {
+            for (File lockfile : lockfiles()) {
+                variant.append(String.format(",%s=%d@%d", lockfile.getName(), lockfile.length(), lockfile.lastModified()));
+            }
+        }
+        return variant.toString();
+    }
+
+    void extract(File binArtifactFile, File destDirectory) throws CommandLineException, InterruptedException, MojoExecutionException, IOException {
+        extract(binArtifactFile, destDirectory, metrics);
+    }
+
+    /**
+     * @param phaseMetrics where the unpack phase is recorded
+     */
+    void extract(File binArtifactFile, File destDirectory, Metrics phaseMetrics) throws CommandLineException, InterruptedException, MojoExecutionException, IOException {
+        getLog().info(String.format("Unpacking %s to %s", binArtifactFile, destDirectory));
+        final Metrics.Phase phase = phaseMetrics.start("unpack");
+        destDirectory.mkdirs();
+        if (StringUtils.isBlank(unzipCommand)) {
+            final AbstractUnArchiver unArchiver = createUnArchiver();
+            final int logLevel = getLog().isDebugEnabled() ? Logger.LEVEL_DEBUG : Logger.LEVEL_INFO;
+            unArchiver.enableLogging(new ConsoleLogger(logLevel, "unpack"));
+            unArchiver.setSourceFile(binArtifactFile);
+            unArchiver.setDestDirectory(destDirectory);
+            unArchiver.setUseJvmChmod(true);
+            final long startTime = System.currentTimeMillis();
+            unArchiver.extract();
+            getLog().info(String.format("Unpacking took %d millis", System.currentTimeMillis() - startTime));
+        } else {
+            if (!unzipCommand.replaceAll("[^%]", "").equals("%%")) {
+                throw new MojoExecutionException(unzipCommand.replaceAll("[^%]", "") + " : External unzip command must contain exactly 2 placeholders: '" + unzipCommand + "'");
+            }
+            final Commandline unzip = new Commandline(String.format(unzipCommand,
+                    binArtifactFile, destDirectory));
+            unzip.setWorkingDirectory(basedir);
+            super.executeCommandline("unpack", unzip);
+        }
+        phase.bytes(binArtifactFile.length()).stop();
+    }
+}
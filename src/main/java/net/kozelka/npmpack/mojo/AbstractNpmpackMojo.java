@@ -1,12 +1,15 @@
 package net.kozelka.npmpack.mojo;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import net.kozelka.npmpack.JsonUtils;
+import net.kozelka.npmpack.Metrics;
+import net.kozelka.npmpack.MetricsReport;
+import net.kozelka.npmpack.OutputPipeline;
+import net.kozelka.npmpack.PackageJsonDigest;
+import net.kozelka.npmpack.RepositoryLookup;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.factory.ArtifactFactory;
 import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
+import org.apache.maven.artifact.resolver.ArtifactResolutionException;
 import org.apache.maven.artifact.resolver.ArtifactResolver;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugins.annotations.Component;
@@ -20,7 +23,12 @@ import org.codehaus.plexus.util.cli.StreamConsumer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Base class for this plugin's mojos
@@ -28,6 +36,11 @@ import java.util.List;
  * @author Petr Kozelka
  */
 public abstract class AbstractNpmpackMojo extends AbstractMojo {
+    /**
+     * File inside <code>node_modules</code> holding the hash of package.json it was created from.
+     */
+    protected static final String HASH_MARKER = "package.json.hash";
+
     /**
      * Used to look up Artifacts in the remote repository.
      */
@@ -75,6 +88,30 @@ public abstract class AbstractNpmpackMojo extends AbstractMojo {
     @Parameter(defaultValue = "true", required = true)
     boolean anonymize;
 
+    /**
+     * Algorithm used to compute the hash of package.json, which identifies cached artifacts.
+     * <p>Any algorithm supported by {@link java.security.MessageDigest} can be used, for instance "SHA-256".
+     * The default "MD5" keeps the hashes compatible with artifacts cached by previous versions.</p>
+     */
+    @Parameter(defaultValue = "MD5", property = "npmpack.hashAlgorithm", required = true)
+    String hashAlgorithm;
+
+    /**
+     * <p>If set, cached artifacts (whose versions are content hashes, so they never change) are taken from the local
+     * repository without asking remote repositories; those are only asked for artifacts missing locally.</p>
+     * <p>If unset, remote repositories are always checked, as by previous versions.</p>
+     */
+    @Parameter(defaultValue = "true", property = "npmpack.localFirst", required = true)
+    boolean localFirst;
+
+    /**
+     * For how many seconds an artifact not found in remote repositories is considered missing, without asking again.
+     * The miss is remembered by file <code>*.npmpack-miss</code> in the local repository, so it is shared by all
+     * modules and builds; 0 disables this. Only effective with {@link #localFirst}.
+     */
+    @Parameter(defaultValue = "600", property = "npmpack.missTtl", required = true)
+    int missTtl;
+
     /**
      * Pointer to node_modules directory.
      * <p>Recommended use: do not change if you wish to use npm-based tools from commandline as well. Otherwise it might be practical to change this to "${project.build.directory}/node_modules".</p>
@@ -95,52 +132,66 @@ public abstract class AbstractNpmpackMojo extends AbstractMojo {
     @Parameter(defaultValue = "${basedir}", required = true)
     File basedir;
 
-    final class MyStreamConsumer implements StreamConsumer {
-        private final String prefix;
-        private final boolean isErr;
-        private int lineCount = 0;
+    /**
+     * Pointer to the build's working directory.
+     */
+    @Parameter( defaultValue = "${project.build.directory}", required = true)
+    File workdir;
 
-        MyStreamConsumer(String prefix, boolean isErr) {
-            this.prefix = prefix;
-            this.isErr = isErr;
-        }
+    /**
+     * How output of executed commands (npm, grunt, bower) is presented. Can be one of:
+     * <ul>
+     *     <li>"stream" - each line is logged, stdout as info, stderr as warning</li>
+     *     <li>"summary" - only the last {@link #outputSummaryLines} lines are kept, and logged if the command fails</li>
+     *     <li>"tee" - each line is logged, and the output is also saved to <code>${workdir}/npmpack-output/&lt;task&gt;.log</code></li>
+     * </ul>
+     * <p>In all modes, the output is read on separate threads, so a slow log never blocks the command.</p>
+     */
+    @Parameter(defaultValue = "stream", property = "npmpack.outputMode", required = true)
+    String outputMode;
 
-        @Override
-        public void consumeLine(String line) {
-            final String msg = prefix + line;
-            if (isErr) {
-                getLog().warn(msg);
-            } else {
-                getLog().info(msg);
-            }
-            lineCount++;
-        }
+    /**
+     * Number of last output lines kept in "summary" {@link #outputMode}.
+     */
+    @Parameter(defaultValue = "50", property = "npmpack.outputSummaryLines", required = true)
+    int outputSummaryLines;
 
-        public int getLineCount() {
-            return lineCount;
-        }
-    }
+    /**
+     * Where to write timing and throughput of the phases of all executions in the build, as json.
+     * <p>In multi-module builds, all modules write into the same file, under the directory where the build started.</p>
+     */
+    @Parameter(defaultValue = "${session.executionRootDirectory}/target/npmpack-metrics.json", property = "npmpack.metricsFile", required = true)
+    File metricsFile;
+
+    @Parameter(defaultValue = "${project.groupId}:${project.artifactId}", readonly = true, required = true)
+    String moduleId;
+
+    @Parameter(defaultValue = "${session.startTime}", readonly = true)
+    Date sessionStartTime;
+
+    protected final Metrics metrics = new Metrics();
 
     protected String readPackageJson(File packageJson, boolean anonymize) throws IOException {
-        final String text = FileUtils.fileRead(packageJson);
-        // always call this, to at least validate that it is correct json format
-        final JsonParser parser = new JsonParser();
-        final JsonObject root = (JsonObject) parser.parse(text);
-        //JSONML.toJSONObject(text);
         if (anonymize) {
             getLog().info("Anonymizing name and version in " + packageJson);
-            root.addProperty("name", "ANONYMIZED");
-            root.addProperty("version", "ANONYMIZED");
-            JsonUtils.sortJsonDeep(root);
-            final Gson gson = new GsonBuilder()
-                    .setPrettyPrinting()
-                    .create();
-            return gson.toJson(root);
+            final StringWriter sw = new StringWriter();
+            PackageJsonDigest.writeCanonical(PackageJsonDigest.parse(packageJson, true), sw);
+            return sw.toString();
         } else {
+            // always parse, to at least validate that it is correct json format
+            PackageJsonDigest.parse(packageJson, false);
+            final String text = FileUtils.fileRead(packageJson, "UTF-8");
             return text.replace("\r\n","\n").replace("\r", "\n");
         }
     }
 
+    /**
+     * Computes hash of package.json, as configured by {@link #anonymize} and {@link #hashAlgorithm}.
+     */
+    protected String hashPackageJson(File packageJson) throws IOException, NoSuchAlgorithmException {
+        return new PackageJsonDigest(hashAlgorithm, anonymize).digest(packageJson);
+    }
+
     /**
      * Selects configured executable.
      * If it consists of two comma-separated strings, the first is used on non-windows OS and the second on Windows.
@@ -172,28 +223,194 @@ public abstract class AbstractNpmpackMojo extends AbstractMojo {
      * @throws CommandLineException
      * @throws InterruptedException
      */
-    protected void executeCommandline(String taskName, Commandline commandline) throws CommandLineException, InterruptedException {
-        getLog().info(String.format(" :::%s::: executing %s", taskName, CommandLineUtils.toString(commandline.getShellCommandline())));
-        final MyStreamConsumer stdout = new MyStreamConsumer("   [" + taskName + "] ", false);
-        final MyStreamConsumer stderr = new MyStreamConsumer("!" + taskName + "! ", true);
+    protected void executeCommandline(String taskName, final Commandline commandline) throws CommandLineException, InterruptedException {
+        executeTask(taskName, CommandLineUtils.toString(commandline.getShellCommandline()), new TaskRunner() {
+            @Override
+            public int run(StreamConsumer stdout, StreamConsumer stderr) throws CommandLineException {
+                return CommandLineUtils.executeCommandLine(commandline, stdout, stderr);
+            }
+        });
+    }
+
+    /**
+     * Runs something that produces output lines and an exit code, like an external process.
+     */
+    protected interface TaskRunner {
+        int run(StreamConsumer stdout, StreamConsumer stderr) throws CommandLineException, IOException;
+    }
+
+    /**
+     * Runs given task, presenting its output the same way as {@link #executeCommandline} does.
+     * @param description what is executed, for the log
+     */
+    protected void executeTask(String taskName, String description, TaskRunner runner) throws CommandLineException, InterruptedException {
+        executeTask(taskName, description, runner, false);
+    }
+
+    /**
+     * @param buffered if true, the output is logged in one block after the task finishes; use when running tasks concurrently
+     */
+    protected void executeTask(String taskName, String description, TaskRunner runner, boolean buffered) throws CommandLineException, InterruptedException {
+        getLog().info(String.format(" :::%s::: executing %s", taskName, description));
+        final OutputPipeline.Sink logSink = createLogSink(taskName);
+        final OutputPipeline.BufferingSink buffer = buffered ? new OutputPipeline.BufferingSink(logSink) : null;
+        final OutputPipeline output = createOutputPipeline(taskName, buffer == null ? logSink : buffer);
         final long startTime = System.currentTimeMillis();
-        final int exitCode = CommandLineUtils.executeCommandLine(commandline, stdout, stderr);
-        getLog().info(String.format(" :::%s::: finished - exitCode: %d, duration: %d millis, output lines: %d on stdout, %d on stderr",
+        final Metrics.Phase phase = metrics.start("exec:" + taskName);
+        final int exitCode;
+        try {
+            output.start("npmpack-output-" + taskName);
+            try {
+                exitCode = runner.run(output.getStdout(), output.getStderr());
+            } finally {
+                try {
+                    output.close();
+                } finally {
+                    if (buffer != null) {
+                        buffer.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new CommandLineException(e.getMessage(), e);
+        }
+        phase.bytes(output.getStdoutBytes() + output.getStderrBytes()).stop();
+        getLog().info(String.format(" :::%s::: finished - exitCode: %d, duration: %d millis, output lines: %d on stdout, %d on stderr, output bytes: %d on stdout, %d on stderr",
                 taskName,
                 exitCode,
                 System.currentTimeMillis() - startTime,
-                stdout.getLineCount(),
-                stderr.getLineCount()
+                output.getStdoutLines(),
+                output.getStderrLines(),
+                output.getStdoutBytes(),
+                output.getStderrBytes()
         ));
         if (exitCode != 0) {
+            final int printed = output.printSummary();
+            if (buffer != null) {
+                buffer.flush();
+            }
+            if (printed > 0) {
+                getLog().warn(String.format(" :::%s::: only the last %d lines of output are shown; use outputMode \"stream\" or \"tee\" to see all", taskName, printed));
+            }
             final String javaVersion = System.getProperty("java.version");
             getLog().warn("Using java " + javaVersion + " from " + System.getProperty("java.home"));
             if (javaVersion.startsWith("1.7.0_25")) {
                 getLog().warn("Java 1.7.0. update 25 is known to cause problems in executing npm. Upgrade your jdk!");
                 getLog().warn("See http://stackoverflow.com/a/19318378/455449 for details");
             }
-            throw new CommandLineException(commandline + " has failed with exitCode = " + exitCode);
+            throw new CommandLineException(description + " has failed with exitCode = " + exitCode);
+        }
+    }
+
+    private OutputPipeline createOutputPipeline(String taskName, OutputPipeline.Sink sink) throws CommandLineException {
+        final OutputPipeline.Mode mode;
+        try {
+            mode = OutputPipeline.Mode.valueOf(outputMode.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new CommandLineException("Invalid outputMode: '" + outputMode + "'; use one of: stream, summary, tee");
+        }
+        return new OutputPipeline(mode, sink, outputSummaryLines, new File(workdir, "npmpack-output/" + taskName + ".log"));
+    }
+
+    private OutputPipeline.Sink createLogSink(String taskName) {
+        final String stdoutPrefix = "   [" + taskName + "] ";
+        final String stderrPrefix = "!" + taskName + "! ";
+        return new OutputPipeline.Sink() {
+            @Override
+            public void line(String line, boolean isErr) {
+                if (isErr) {
+                    getLog().warn(stderrPrefix + line);
+                } else {
+                    getLog().info(stdoutPrefix + line);
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds metrics of this execution to the build's {@link #metricsFile}.
+     */
+    protected void writeMetrics(String goal) {
+        final String sessionId = sessionStartTime == null ? metricsFile.getAbsolutePath() : String.valueOf(sessionStartTime.getTime());
+        try {
+            MetricsReport.append(metricsFile, sessionId, moduleId, goal, metrics);
+        } catch (IOException e) {
+            getLog().warn(String.format("Cannot write metrics to %s: %s", metricsFile, e.getMessage()));
+        }
+    }
+
+    /**
+     * Resolves an artifact whose version is a content hash, see {@link #localFirst}.
+     * @throws ArtifactNotFoundException if no repository has the artifact, or none had it less than {@link #missTtl} ago
+     */
+    protected void resolveImmutable(final Artifact artifact) throws IOException, ArtifactResolutionException, ArtifactNotFoundException {
+        if (!localFirst) {
+            resolver.resolveAlways(artifact, remoteRepositories, localRepository);
+            return;
+        }
+        final File localFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(artifact));
+        final RepositoryLookup.Result result = new RepositoryLookup(missTtl * 1000L).find(localFile, new RepositoryLookup.Remote() {
+            @Override
+            public boolean download() throws IOException {
+                try {
+                    resolver.resolveAlways(artifact, remoteRepositories, localRepository);
+                    return true;
+                } catch (ArtifactNotFoundException e) {
+                    return false;
+                } catch (ArtifactResolutionException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        });
+        getLog().debug(String.format("Lookup of %s: %s", artifact, result));
+        switch (result) {
+            case KNOWN_MISSING:
+                getLog().info(String.format("Artifact %s was not found in remote repositories less than %d seconds ago;"
+                        + " delete %s to look again", artifact, missTtl, RepositoryLookup.missMarker(localFile)));
+                throw new ArtifactNotFoundException("Not found recently", artifact);
+            case NOT_FOUND:
+                throw new ArtifactNotFoundException("Not found in any repository", artifact);
+            default:
+                artifact.setFile(localFile);
+                artifact.setResolved(true);
+        }
+    }
+
+    /**
+     * Generates minimal pom for the artifact in the local repository.
+     */
+    protected void writePom(Artifact artifact) throws IOException {
+        final Artifact pomArtifact = factory.createBuildArtifact(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion(), "pom");
+        final File pomFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(pomArtifact));
+        pomFile.getParentFile().mkdirs();
+        getLog().info(String.format("Generating pom in %s", pomFile));
+        FileUtils.fileWrite(pomFile, String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n" +
+                "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">%n" +
+                "  <modelVersion>4.0.0</modelVersion>%n" +
+                "  <groupId>%s</groupId>%n" +
+                "  <artifactId>%s</artifactId>%n" +
+                "  <version>%s</version>%n" +
+                "  <packaging>pom</packaging>%n" +
+                "  <description>generated by npmpack-maven-plugin</description>%n" +
+                "</project>%n",
+                artifact.getGroupId(),
+                artifact.getArtifactId(),
+                artifact.getVersion()));
+    }
+
+    /**
+     * Splits comma-separated values, dropping empty ones.
+     */
+    protected static List<String> split(String values) {
+        final List<String> result = new ArrayList<String>();
+        if (values != null) {
+            for (String value : values.split(",")) {
+                if (value.trim().length() > 0) {
+                    result.add(value.trim());
+                }
+            }
         }
+        return result;
     }
 
     protected void npm(String taskName, String... arguments) throws InterruptedException, CommandLineException {
@@ -1,24 +1,45 @@
 package net.kozelka.npmpack.mojo;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import java.io.File;
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import net.kozelka.npmpack.ArtifactLock;
+import net.kozelka.npmpack.Metrics;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
+import org.apache.maven.artifact.resolver.ArtifactResolutionException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.archiver.zip.ZipArchiver;
+import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
 /**
+ * Prepares bower components in {@link #bowerOutputDirectory}.
+ * <p>Works like the <code>node_modules</code> goal: the components are unpacked from an artifact identified by hash of
+ * bower.json, and a hash marker makes unchanged bower.json a no-op. Only in {@link #manualMode}, bower is executed
+ * to create a missing artifact, so regular builds neither run bower nor access the network.</p>
+ *
  * @author Petr Kozelka
  */
 @Mojo(name="bower", defaultPhase = LifecyclePhase.GENERATE_RESOURCES, requiresProject = true, threadSafe = true)
 public class BowerMojo extends AbstractNpmpackMojo {
+    private static final String BOWER_HASH_MARKER = "bower.json.hash";
+    private static final String ARCHIVE_TYPE = "zip";
+    private static final String[] PACK_EXCLUDES = {BOWER_HASH_MARKER};
+    private static final String BOWER_DEFAULT_DIRECTORY = "bower_components";
+
     /**
      * The executable to run as grunt. We expect that it resides under node_modules/.bin.
      */
@@ -55,6 +76,25 @@ public class BowerMojo extends AbstractNpmpackMojo {
     @Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}/lib")
     File bowerOutputDirectory;
 
+    /**
+     * Pointer to bower.json file. Its hash identifies the cached artifact, the same way as package.json does for
+     * node_modules; see {@link #anonymize} and {@link #hashAlgorithm}.
+     */
+    @Parameter(defaultValue = "bower.json", required = true)
+    File bowerJson;
+
+    /**
+     * The groupId under which to cache the bower components in the repository.
+     */
+    @Parameter(defaultValue = "npmpack", required = true)
+    String binaryGroupId;
+
+    /**
+     * The artifactId to use for caching bower components in maven repositories.
+     */
+    @Parameter(defaultValue = "bower_components", required = true)
+    String binaryArtifactId;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         try {
@@ -67,39 +107,145 @@ public class BowerMojo extends AbstractNpmpackMojo {
                 getLog().info("Bower execution is skipped: " + CommandLineUtils.toString(commandline.getShellCommandline()));
                 return;
             }
+            if (!bowerJson.exists()) {
+                throw new MojoExecutionException("File not found: " + bowerJson);
+            }
 
             final File bowerrcFile = new File(basedir, ".bowerrc");
             final boolean temporary = !bowerrcFile.exists();
             if (! temporary) {
-                final JsonObject bowerrc = readBowerRc(bowerrcFile);
-                bowerOutputDirectory = new File(bowerrc.get("directory").getAsString());
+                readOutputDirectory(bowerrcFile);
                 getLog().info(".bowerrc/directory=" + bowerOutputDirectory);
             }
-            // TODO: check that current content of bowerOutputDirectory matches bower.json (use checksum of anonymized canonicalized clone)
-            // TODO: add the trick to avoid the need for calling bower in regular builds!
-            if (manualMode) {
-                // TODO: make sure that bower is in node_modules ? Like, by using "npm install bower" ?
-                if (temporary) {
-                    FileUtils.fileWrite(bowerrcFile, "{\n    directory: \""+ jsonEscape(bowerOutputDirectory.getAbsolutePath()) +"\"\n}");
-                    bowerrcFile.deleteOnExit();
-                }
-                executeCommandline("bower", commandline);
-                if (temporary) {
-                    bowerrcFile.delete();
+
+            final Metrics.Phase hashPhase = metrics.start("hash");
+            final String bowerJsonHash = hashPackageJson(bowerJson);
+            hashPhase.bytes(bowerJson.length()).stop();
+            final File oldHashFile = new File(bowerOutputDirectory, BOWER_HASH_MARKER);
+            if (isUpToDate(bowerJsonHash)) {
+                getLog().info(String.format("No change in %s (#%s), keeping %s", bowerJson, bowerJsonHash, bowerOutputDirectory));
+                return;
+            }
+            getLog().info(String.format("Differs from previous hash, updating content of %s", bowerOutputDirectory));
+            getLog().info(String.format("Artifact %s:%s:%s", binaryGroupId, binaryArtifactId, bowerJsonHash));
+            final Artifact artifact = factory.createBuildArtifact(binaryGroupId, binaryArtifactId, bowerJsonHash, ARCHIVE_TYPE);
+
+            // only one execution (in this reactor or in another maven process) produces the artifact at a time
+            final File archiveFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(artifact));
+            final ArtifactLock lock = ArtifactLock.acquire(artifact.getId(), new File(archiveFile.getPath() + ".lock"));
+            try {
+                if (lock.hasWaited() && archiveFile.isFile()) {
+                    artifact.setFile(archiveFile);
+                    unpack(archiveFile);
+                } else if (resolve(artifact)) {
+                    unpack(artifact.getFile());
+                } else if (manualMode) {
+                    // TODO: make sure that bower is in node_modules ? Like, by using "npm install bower" ?
+                    if (bowerOutputDirectory.exists()) {
+                        FileUtils.deleteDirectory(bowerOutputDirectory);
+                    }
+                    if (temporary) {
+                        FileUtils.fileWrite(bowerrcFile, "{\n    directory: \""+ jsonEscape(bowerOutputDirectory.getAbsolutePath()) +"\"\n}");
+                        bowerrcFile.deleteOnExit();
+                    }
+                    executeCommandline("bower", commandline);
+                    if (temporary) {
+                        bowerrcFile.delete();
+                    }
+                    pack(artifact, archiveFile);
+                } else {
+                    throw new MojoExecutionException("Bower artifact not found, cannot create one in regular mode. Add '-Dnpmpack.manual' to Maven commandline to prepare one.");
                 }
-                //TODO: package the files in bowerOutputDirectory and put in local/remote repo
-            } else {
-                throw new MojoExecutionException("Bower artifact not found, cannot create one in regular mode. Add '-DmanualMode' to Maven commandline to prepare one.");
+            } finally {
+                lock.release();
             }
+
+            getLog().info(String.format("Saving hash marker into %s", oldHashFile));
+            FileUtils.fileWrite(oldHashFile, bowerJsonHash);
         } catch (InterruptedException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (CommandLineException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (ArtifactResolutionException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            writeMetrics("bower");
         }
     }
 
+    /**
+     * Takes {@link #bowerOutputDirectory} from the <code>directory</code> of given <code>.bowerrc</code>, relative to
+     * {@link #basedir}; without it, bower uses <code>bower_components</code>.
+     */
+    void readOutputDirectory(File bowerrcFile) throws IOException {
+        final JsonElement directory = readBowerRc(bowerrcFile).get("directory");
+        final String path = directory != null && directory.isJsonPrimitive() ? directory.getAsString() : BOWER_DEFAULT_DIRECTORY;
+        bowerOutputDirectory = FileUtils.resolveFile(basedir, path);
+    }
+
+    /**
+     * @return true if {@link #bowerOutputDirectory} was prepared for given hash of bower.json
+     */
+    boolean isUpToDate(String bowerJsonHash) throws IOException {
+        final File hashFile = new File(bowerOutputDirectory, BOWER_HASH_MARKER);
+        return hashFile.isFile() && FileUtils.fileRead(hashFile).equals(bowerJsonHash);
+    }
+
+    /**
+     * @return false if the artifact does not exist in any repository
+     */
+    private boolean resolve(Artifact artifact) throws IOException, ArtifactResolutionException {
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("resolve");
+        try {
+            getLog().info(String.format("Trying to resolve artifact %s", artifact));
+            resolveImmutable(artifact);
+            phase.bytes(artifact.getFile().length()).files(1).stop();
+            getLog().info(String.format("Resolution (possibly including downloads) took %d millis", System.currentTimeMillis() - startTime));
+            return true;
+        } catch (ArtifactNotFoundException e) {
+            phase.files(0).stop();
+            getLog().warn(String.format("Resolution failed after %d millis", System.currentTimeMillis() - startTime));
+            return false;
+        }
+    }
+
+    private void unpack(File archiveFile) throws IOException {
+        if (bowerOutputDirectory.exists()) {
+            FileUtils.deleteDirectory(bowerOutputDirectory);
+        }
+        bowerOutputDirectory.mkdirs();
+        getLog().info(String.format("Unpacking %s to %s", archiveFile, bowerOutputDirectory));
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("unpack");
+        final ZipUnArchiver unArchiver = new ZipUnArchiver(archiveFile);
+        unArchiver.enableLogging(new ConsoleLogger(getLog().isDebugEnabled() ? Logger.LEVEL_DEBUG : Logger.LEVEL_INFO, "unpack"));
+        unArchiver.setDestDirectory(bowerOutputDirectory);
+        unArchiver.extract();
+        phase.bytes(archiveFile.length()).stop();
+        getLog().info(String.format("Unpacking took %d millis", System.currentTimeMillis() - startTime));
+    }
+
+    private void pack(Artifact artifact, File archiveFile) throws IOException {
+        final File archiveFileTmp = new File(workdir, archiveFile.getName());
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("pack");
+        final ZipArchiver archiver = new ZipArchiver();
+        archiver.setDestFile(archiveFileTmp);
+        archiver.addDirectory(bowerOutputDirectory, null, PACK_EXCLUDES);
+        archiver.createArchive();
+        phase.bytes(archiveFileTmp.length()).stop();
+        getLog().info(String.format("Packing took %d millis", System.currentTimeMillis() - startTime));
+        writePom(artifact);
+        getLog().info(String.format("Moving artifact to local repository: %s (%d bytes)", archiveFile, archiveFileTmp.length()));
+        archiveFile.getParentFile().mkdirs();
+        FileUtils.rename(archiveFileTmp, archiveFile);
+    }
+
     private JsonObject readBowerRc(File bowerrcFile) throws IOException {
         final String text = FileUtils.fileRead(bowerrcFile);
         // always call this, to at least validate that it is correct json format
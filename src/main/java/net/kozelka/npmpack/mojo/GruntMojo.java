@@ -1,15 +1,39 @@
 package net.kozelka.npmpack.mojo;
 
+import net.kozelka.npmpack.GruntDaemon;
+import net.kozelka.npmpack.InputFingerprinter;
+import net.kozelka.npmpack.Metrics;
+import net.kozelka.npmpack.TaskGraph;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
+import org.apache.maven.artifact.resolver.ArtifactResolutionException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.archiver.zip.ZipArchiver;
+import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Executes grunt in order to perform grunt-based build.
@@ -18,6 +42,10 @@ import java.io.File;
  */
 @Mojo(name="grunt", defaultPhase = LifecyclePhase.PACKAGE, requiresProject = true, threadSafe = true)
 public class GruntMojo extends AbstractNpmpackMojo {
+    private static final String CACHE_DIRECTORY = "npmpack-grunt-cache";
+    private static final String INPUT_STATS = "inputs.stat";
+    private static final String OUTPUT_ARTIFACT_ID = "grunt-output";
+    private static final int LOCAL_CACHE_ENTRIES = 3;
 
     /**
      * The name to be used in prefix of this grunt command execution
@@ -38,29 +66,381 @@ public class GruntMojo extends AbstractNpmpackMojo {
     @Parameter(defaultValue = "build", required = true)
     String gruntCommand;
 
+    /**
+     * Grunt executions to run instead of the single {@link #gruntCommand}. Tasks that do not depend on each other
+     * run concurrently, see {@link #taskThreads}; the output of each is logged in one block when it finishes.
+     * The first failure cancels the other tasks. For example:
+     * <pre>
+     * &lt;tasks&gt;
+     *     &lt;task&gt;&lt;name&gt;lint&lt;/name&gt;&lt;command&gt;jshint&lt;/command&gt;&lt;/task&gt;
+     *     &lt;task&gt;&lt;name&gt;less&lt;/name&gt;&lt;command&gt;less&lt;/command&gt;&lt;/task&gt;
+     *     &lt;task&gt;&lt;name&gt;uglify&lt;/name&gt;&lt;command&gt;uglify&lt;/command&gt;&lt;/task&gt;
+     *     &lt;task&gt;&lt;name&gt;test&lt;/name&gt;&lt;command&gt;karma:unit&lt;/command&gt;&lt;dependsOn&gt;lint,uglify&lt;/dependsOn&gt;&lt;/task&gt;
+     * &lt;/tasks&gt;
+     * </pre>
+     */
+    @Parameter
+    List<GruntTask> tasks;
+
+    /**
+     * Maximum number of {@link #tasks} running at once; 0 means the number of processors.
+     * With {@link #daemon}, tasks always run one at a time.
+     */
+    @Parameter(defaultValue = "0", property = "grunt.taskThreads", required = true)
+    int taskThreads;
+
     /**
      * The execution is skipped it this is true.
      */
     @Parameter(defaultValue = "false", required = true, property = "grunt.skip")
     boolean skip;
 
+    /**
+     * <p>If set, grunt runs inside a long-lived Node worker, shared by all modules of the build, instead of a new
+     * process for each execution. This saves the startup of Node, grunt and its plugins.</p>
+     * <p>The worker uses the <code>grunt</code> module from {@link #node_modules}; if it is not there, a regular
+     * process is used. Runs are served one at a time. After a failed run, the worker is replaced by a fresh one.
+     * The worker is stopped when the build ends.</p>
+     */
+    @Parameter(defaultValue = "false", property = "grunt.daemon", required = true)
+    boolean daemon;
+
+    /**
+     * The executable to run the grunt {@link #daemon} with. By default, we expect that it is available on PATH.
+     */
+    @Parameter(defaultValue = "node,node.exe", required = true, property = "node.executable")
+    String nodeExecutables;
+
+    /**
+     * Seconds after which an idle grunt {@link #daemon} exits; 0 means that it runs until the build ends.
+     */
+    @Parameter(defaultValue = "300", property = "grunt.daemonIdleTimeout", required = true)
+    int daemonIdleTimeout;
+
+    /**
+     * Caching of grunt outputs. Can be one of:
+     * <ul>
+     *     <li>"none" - grunt always runs</li>
+     *     <li>"local" - outputs are cached under <code>${workdir}/npmpack-grunt-cache</code></li>
+     *     <li>"repository" - outputs are cached as artifact <code>${cacheGroupId}:grunt-output:&lt;fingerprint&gt;:zip</code>,
+     *     the same way as node_modules; deploy it to share the outputs with other builds</li>
+     * </ul>
+     * <p>The fingerprint covers the {@link #inputs}, {@link #gruntCommand} and the hash of package.json that
+     * {@link #node_modules} was created from. When a cached entry matches, the {@link #outputs} are restored from it
+     * and grunt is not run at all.</p>
+     */
+    @Parameter(defaultValue = "none", property = "grunt.cache", required = true)
+    String cache;
+
+    /**
+     * Comma-separated patterns of files that grunt reads, relative to basedir.
+     */
+    @Parameter(defaultValue = "**", property = "grunt.inputs", required = true)
+    String inputs;
+
+    /**
+     * Comma-separated patterns of files that are not inputs. The {@link #outputs} and {@link #node_modules}
+     * are never inputs.
+     */
+    @Parameter(defaultValue = "target/**,bower_components/**", property = "grunt.inputExcludes")
+    String inputExcludes;
+
+    /**
+     * Comma-separated patterns of files that grunt produces, relative to basedir. Required when {@link #cache} is used.
+     */
+    @Parameter(property = "grunt.outputs")
+    String outputs;
+
+    /**
+     * The groupId under which to cache grunt outputs in the repository, in "repository" {@link #cache} mode.
+     */
+    @Parameter(defaultValue = "npmpack", required = true)
+    String cacheGroupId;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         try {
-            final Commandline commandline = new Commandline();
-            commandline.setWorkingDirectory(basedir);
-            final File localBin = new File(node_modules, ".bin");
-            commandline.setExecutable(new File(localBin, selectAlternative(gruntExecutables)).getAbsolutePath());
-            commandline.addArguments(gruntCommand.split("\\s+"));
             if (skip) {
+                final Commandline commandline = createCommandline(gruntCommand.split("\\s+"));
                 getLog().info("Grunt execution is skipped: " + CommandLineUtils.toString(commandline.getShellCommandline()));
+                return;
+            }
+            final String fingerprint = fingerprintInputs();
+            if (fingerprint != null && restoreOutputs(fingerprint)) {
+                return;
+            }
+            if (tasks == null || tasks.isEmpty()) {
+                runGrunt(taskName, gruntCommand, false);
             } else {
-                executeCommandline(taskName, commandline);
+                runTasks();
+            }
+            if (fingerprint != null) {
+                saveOutputs(fingerprint);
             }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
         } catch (InterruptedException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (CommandLineException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            writeMetrics("grunt");
+        }
+    }
+
+    private Commandline createCommandline(String[] arguments) throws CommandLineException {
+        final Commandline commandline = new Commandline();
+        commandline.setWorkingDirectory(basedir);
+        final File localBin = new File(node_modules, ".bin");
+        commandline.setExecutable(new File(localBin, selectAlternative(gruntExecutables)).getAbsolutePath());
+        commandline.addArguments(arguments);
+        return commandline;
+    }
+
+    /**
+     * @param buffered whether to log the output in one block, when grunt finishes
+     */
+    private void runGrunt(String name, String command, boolean buffered) throws CommandLineException, InterruptedException {
+        final String[] arguments = command.trim().split("\\s+");
+        final File gruntModule = new File(node_modules, "grunt");
+        if (daemon && new File(gruntModule, "package.json").isFile()) {
+            final GruntDaemon gruntDaemon = GruntDaemon.get(selectAlternative(nodeExecutables), daemonIdleTimeout);
+            executeTask(name, "grunt daemon " + command, new TaskRunner() {
+                @Override
+                public int run(StreamConsumer stdout, StreamConsumer stderr) throws IOException {
+                    return gruntDaemon.run(basedir, gruntModule, Arrays.asList(arguments), stdout, stderr);
+                }
+            }, buffered);
+        } else {
+            if (daemon) {
+                getLog().warn(String.format("Cannot use grunt daemon, module not found: %s", gruntModule));
+            }
+            final Commandline commandline = createCommandline(arguments);
+            executeTask(name, CommandLineUtils.toString(commandline.getShellCommandline()), new TaskRunner() {
+                @Override
+                public int run(StreamConsumer stdout, StreamConsumer stderr) throws CommandLineException {
+                    return CommandLineUtils.executeCommandLine(commandline, stdout, stderr);
+                }
+            }, buffered);
+        }
+    }
+
+    /**
+     * Runs {@link #tasks}, concurrently where dependencies allow.
+     */
+    private void runTasks() throws MojoExecutionException, IOException, InterruptedException {
+        final TaskGraph graph = new TaskGraph();
+        if (daemon) {
+            // the worker serves one run at a time, and a run cannot be interrupted
+            getLog().info("Grunt daemon runs tasks one at a time, taskThreads is ignored");
+            graph.setThreads(1);
+        } else if (taskThreads > 0) {
+            graph.setThreads(taskThreads);
+        }
+        for (final GruntTask task : tasks) {
+            if (StringUtils.isBlank(task.getName()) || StringUtils.isBlank(task.getCommand())) {
+                throw new MojoExecutionException("Each grunt task needs a name and a command");
+            }
+            try {
+                graph.add(task.getName(), split(task.getDependsOn()), new Callable<Void>() {
+                    @Override
+                    public Void call() throws CommandLineException, InterruptedException {
+                        runGrunt(task.getName(), task.getCommand(), true);
+                        return null;
+                    }
+                });
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage(), e);
+            }
         }
+        try {
+            graph.run();
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            final long total = graph.getTotalTaskMillis();
+            getLog().info(String.format("Grunt tasks took %d millis; run one after another, they would take %d millis, so %d millis were saved",
+                    graph.getWallMillis(), total, Math.max(0, total - graph.getWallMillis())));
+            for (Map.Entry<String, Long> entry : graph.getTaskMillis().entrySet()) {
+                getLog().info(String.format("  %s: %d millis", entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @return what grunt is asked to do, for the fingerprint
+     */
+    private String describeCommands() {
+        if (tasks == null || tasks.isEmpty()) {
+            return gruntCommand;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (GruntTask task : tasks) {
+            sb.append(task.getName()).append('=').append(task.getCommand()).append('<').append(task.getDependsOn()).append(';');
+        }
+        return sb.toString();
+    }
+
+    private boolean isCacheRepository() {
+        return cache.equals("repository");
+    }
+
+    private File getCacheDirectory() {
+        return new File(workdir, CACHE_DIRECTORY + "/" + taskName);
+    }
+
+    /**
+     * @return fingerprint of the inputs, or null if caching is disabled
+     */
+    private String fingerprintInputs() throws MojoExecutionException, IOException, NoSuchAlgorithmException {
+        if (!"|none|local|repository|".contains("|" + cache + "|")) {
+            throw new MojoExecutionException("Invalid cache: '" + cache + "'; use one of: none, local, repository");
+        }
+        if (cache.equals("none")) {
+            return null;
+        }
+        if (StringUtils.isBlank(outputs)) {
+            throw new MojoExecutionException("Parameter 'outputs' is required when cache is used");
+        }
+        final List<String> excludes = new ArrayList<String>();
+        excludes.addAll(split(inputExcludes));
+        excludes.addAll(split(outputs));
+        final String nodeModulesPath = basedir.getAbsoluteFile().toURI().relativize(node_modules.getAbsoluteFile().toURI()).getPath();
+        if (!new File(nodeModulesPath).isAbsolute()) {
+            excludes.add(StringUtils.stripEnd(nodeModulesPath, "/") + "/**");
+        }
+        final List<String> includes = split(inputs);
+        final InputFingerprinter fingerprinter = new InputFingerprinter(basedir,
+                includes.toArray(new String[includes.size()]),
+                excludes.toArray(new String[excludes.size()]),
+                hashAlgorithm);
+        fingerprinter.setStatCache(new File(getCacheDirectory(), INPUT_STATS));
+
+        final File hashMarker = new File(node_modules, HASH_MARKER);
+        final String nodeModulesHash = hashMarker.isFile() ? FileUtils.fileRead(hashMarker) : "";
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("fingerprint-inputs");
+        final String fingerprint = fingerprinter.fingerprint("command=" + describeCommands(), "node_modules=" + nodeModulesHash);
+        phase.bytes(fingerprinter.getHashedBytes()).files(fingerprinter.getFileCount()).stop();
+        getLog().info(String.format("Fingerprint of %d input files took %d millis, content of %d files was read: %s",
+                fingerprinter.getFileCount(), System.currentTimeMillis() - startTime, fingerprinter.getHashedCount(), fingerprint));
+        return fingerprint;
+    }
+
+    /**
+     * @return true if the outputs have been restored from cache
+     */
+    private boolean restoreOutputs(String fingerprint) throws IOException {
+        final File cached;
+        if (isCacheRepository()) {
+            final Artifact artifact = createOutputArtifact(fingerprint);
+            try {
+                resolveImmutable(artifact);
+            } catch (ArtifactNotFoundException e) {
+                getLog().info(String.format("Grunt outputs not cached: %s", artifact));
+                return false;
+            } catch (ArtifactResolutionException e) {
+                getLog().warn(String.format("Cannot resolve cached grunt outputs %s: %s", artifact, e.getMessage()));
+                return false;
+            }
+            cached = artifact.getFile();
+        } else {
+            cached = new File(getCacheDirectory(), fingerprint + ".zip");
+            if (!cached.isFile()) {
+                getLog().info(String.format("Grunt outputs not cached: %s", cached));
+                return false;
+            }
+        }
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("restore-outputs");
+        int deleted = 0;
+        for (String path : scanOutputs()) {
+            FileUtils.forceDelete(new File(basedir, path));
+            deleted++;
+        }
+        final ZipUnArchiver unArchiver = new ZipUnArchiver(cached);
+        unArchiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "restore"));
+        unArchiver.setDestDirectory(basedir);
+        unArchiver.extract();
+        phase.bytes(cached.length()).stop();
+        // mark as recently used
+        cached.setLastModified(System.currentTimeMillis());
+        getLog().info(String.format("Inputs unchanged, grunt outputs restored from %s in %d millis (%d stale files replaced)",
+                cached, System.currentTimeMillis() - startTime, deleted));
+        return true;
+    }
+
+    private void saveOutputs(String fingerprint) throws IOException {
+        final String[] paths = scanOutputs();
+        if (paths.length == 0) {
+            getLog().warn(String.format("No grunt outputs match '%s', nothing to cache", outputs));
+            return;
+        }
+        final File cacheDirectory = getCacheDirectory();
+        cacheDirectory.mkdirs();
+        final File tmp = new File(cacheDirectory, fingerprint + ".zip.tmp");
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("save-outputs");
+        final ZipArchiver archiver = new ZipArchiver();
+        archiver.setDestFile(tmp);
+        for (String path : paths) {
+            archiver.addFile(new File(basedir, path), path.replace(File.separatorChar, '/'));
+        }
+        archiver.createArchive();
+        phase.bytes(tmp.length()).files(paths.length).stop();
+
+        final File cached;
+        if (isCacheRepository()) {
+            final Artifact artifact = createOutputArtifact(fingerprint);
+            cached = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(artifact));
+            writePom(artifact);
+        } else {
+            cached = new File(cacheDirectory, fingerprint + ".zip");
+        }
+        FileUtils.rename(tmp, cached);
+        getLog().info(String.format("Cached %d grunt outputs in %s in %d millis", paths.length, cached, System.currentTimeMillis() - startTime));
+        if (!isCacheRepository()) {
+            evictLocal(cacheDirectory);
+        }
+    }
+
+    /**
+     * Keeps only the most recently used entries of the local cache.
+     */
+    private void evictLocal(File cacheDirectory) {
+        final File[] entries = cacheDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".zip");
+            }
+        });
+        if (entries == null || entries.length <= LOCAL_CACHE_ENTRIES) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        for (int i = LOCAL_CACHE_ENTRIES; i < entries.length; i++) {
+            getLog().debug("Evicting " + entries[i]);
+            entries[i].delete();
+        }
+    }
+
+    private String[] scanOutputs() {
+        final List<String> includes = split(outputs);
+        final DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(basedir);
+        scanner.setIncludes(includes.toArray(new String[includes.size()]));
+        scanner.scan();
+        return scanner.getIncludedFiles();
+    }
+
+    private Artifact createOutputArtifact(String fingerprint) {
+        return factory.createBuildArtifact(cacheGroupId, OUTPUT_ARTIFACT_ID, fingerprint, "zip");
     }
 }
@@ -0,0 +1,35 @@
+package net.kozelka.npmpack.mojo;
+
+/**
+ * One grunt execution within {@link GruntMojo#tasks}.
+ *
+ * @author Petr Kozelka
+ */
+public class GruntTask {
+    /**
+     * Name of the task, used as output prefix and in {@link #dependsOn} of other tasks.
+     */
+    String name;
+
+    /**
+     * The grunt command; passed as the (whitespace separated) argument list to grunt.
+     */
+    String command;
+
+    /**
+     * Comma-separated names of tasks that must finish before this one starts.
+     */
+    String dependsOn;
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getDependsOn() {
+        return dependsOn;
+    }
+}
@@ -3,7 +3,32 @@ package net.kozelka.npmpack.mojo;
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
-import net.kozelka.npmpack.Utils;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import net.kozelka.npmpack.ArtifactLock;
+import net.kozelka.npmpack.BinLinker;
+import net.kozelka.npmpack.FingerprintCache;
+import net.kozelka.npmpack.IncrementalUpdater;
+import net.kozelka.npmpack.LayerIndex;
+import net.kozelka.npmpack.Manifest;
+import net.kozelka.npmpack.Metrics;
+import net.kozelka.npmpack.ParallelArchiver;
+import net.kozelka.npmpack.Pruning;
+import net.kozelka.npmpack.TarZstdArchiver;
+import net.kozelka.npmpack.TreeCache;
+import net.kozelka.npmpack.TreeDeleter;
+import net.kozelka.npmpack.TreeLinker;
+import net.kozelka.npmpack.TreeVerifier;
+import net.kozelka.npmpack.WorkspaceDigest;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
 import org.apache.maven.artifact.resolver.ArtifactResolutionException;
@@ -12,18 +37,15 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.codehaus.plexus.archiver.AbstractUnArchiver;
 import org.codehaus.plexus.archiver.Archiver;
 import org.codehaus.plexus.archiver.tar.TarArchiver;
-import org.codehaus.plexus.archiver.tar.TarGZipUnArchiver;
+import org.codehaus.plexus.archiver.util.DefaultFileSet;
 import org.codehaus.plexus.archiver.zip.ZipArchiver;
-import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
-import org.codehaus.plexus.logging.Logger;
-import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.components.io.fileselectors.FileInfo;
+import org.codehaus.plexus.components.io.fileselectors.FileSelector;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
-import org.codehaus.plexus.util.cli.Commandline;
 
 /**
  * Prepares the <code>node_modules</code> directory.
@@ -32,71 +54,118 @@ import org.codehaus.plexus.util.cli.Commandline;
  * @author Petr Kozelka
  */
 @Mojo(name = "node_modules", defaultPhase = LifecyclePhase.COMPILE, requiresProject = true, threadSafe = true)
-public class NodeModulesMojo extends AbstractNpmpackMojo {
+public class NodeModulesMojo extends AbstractNodeModulesMojo {
+    private static final String MANIFEST_FILE = ".npmpack.manifest";
+    private static final String MANIFEST_CLASSIFIER = "manifest";
+    private static final String MANIFEST_TYPE = "bin";
+    private static final String LAYERS_FILE = ".npmpack.layers";
+    private static final String LAYER_ARTIFACT_SUFFIX = "-layer";
+    //NOTE: .bin dirs will be recreated by rebuild(); that makes the archive platform independent
+    private static final String[] PACK_EXCLUDES = {"**/.bin/**", HASH_MARKER, MANIFEST_FILE, FINGERPRINT_FILE, LAYERS_FILE};
+    private static final String NPM_CACHE_VERSION_FILE = ".npmpack.version";
+    //NOTE: logs and unfinished downloads are of no use to other machines
+    private static final String[] NPM_CACHE_EXCLUDES = {NPM_CACHE_VERSION_FILE, "_logs/**", "_cacache/tmp/**", "_update-notifier-last-checked"};
 
     /**
-     * The groupId under which to cache the npm artifacts in the repository.
-     * <p>Recommended use: preferably, do not change; but if you have a reason to do so, define once per whole project (or company), inside parent pom's pluginManagement.</p>
-     * @todo: think about use in released manner. Elaborate on various usages in docs.
+     * Enable this flag to allow the <code>npm install</code> command. By default, this is disabled, because this command
+     * downloads from (potentially) many internet sites, which would make the build very. Therefore, whenever this is
+     * needed - which means, when <code>package.json</code> is changed - the developer is supposed to manually run the
+     * build with this flag turned on, and ideally deploy the resulting artifact into the maven repository. Then the
+     * subsequent builds are free of uncontrolled internet access and thus more reliable and deterministic.
      */
-    @Parameter( defaultValue = "npmpack", required = true )
-    String binaryGroupId;
+    @Parameter(defaultValue = "false", property = "npmpack.allowNpmInstall", required = true)
+    boolean allowNpmInstall;
+
+    @Parameter(defaultValue = "To generate new npmpack, please add option '-Dnpmpack.allowNpmInstall' to your commandline. Remember to upload the resulting pom and binary to your nearest maven repository, so that other users do not need to do the same.",
+            property = "npmpack.allowNpmInstall", required = true)
+    String npmInstallNotAllowedMsg;
 
     /**
-     * The artifactId to use for caching in maven repositories.
-     * <p>Recommended use: do not change</p>
+     * <p>If positive, new archives are created by the built-in parallel archiver, using this number of threads.
+     * Zip entries are compressed independently and then stitched into one archive; tar archives are gzipped
+     * in parallel blocks, which still gives a standard gzip stream.</p>
+     * <p>When 0, the single-threaded plexus archiver is used.</p>
      */
-    @Parameter( defaultValue = "node_modules", required = true )
-    String binaryArtifactId;
+    @Parameter(defaultValue = "0", property = "npmpack.packThreads", required = true)
+    int packThreads;
 
     /**
-     * Type of the resulting archive. Can be one of "zip", "tgz", "tar.gz".
+     * Location of the shared store used when {@link #sharedStore} is set.
+     * Defaults to directory <code>npmpack-store</code> next to the local repository.
      */
-    @Parameter(defaultValue = "zip", required = true)
-    String archiveType;
+    @Parameter(property = "npmpack.sharedStoreDirectory")
+    File sharedStoreDirectory;
 
     /**
-     * Pointer to the build's working directory.
+     * <p>If set, the <code>.bin</code> links (which are not stored in archives) are created by the plugin itself,
+     * from the <code>bin</code> field (or <code>directories.bin</code>) of each package, and <code>npm rebuild</code> is only invoked for packages
+     * that have <code>binding.gyp</code> or an install script. When there are no such packages, npm is not run at all.</p>
+     * <p>If unset, plain <code>npm rebuild</code> processes the whole tree after each unpack.</p>
      */
-    @Parameter( defaultValue = "${project.build.directory}", required = true)
-    File workdir;
+    @Parameter(defaultValue = "true", property = "npmpack.selectiveRebuild", required = true)
+    boolean selectiveRebuild;
 
     /**
-     * Enable this flag to allow the <code>npm install</code> command. By default, this is disabled, because this command
-     * downloads from (potentially) many internet sites, which would make the build very. Therefore, whenever this is
-     * needed - which means, when <code>package.json</code> is changed - the developer is supposed to manually run the
-     * build with this flag turned on, and ideally deploy the resulting artifact into the maven repository. Then the
-     * subsequent builds are free of uncontrolled internet access and thus more reliable and deterministic.
+     * <p>If set, an unchanged <code>node_modules</code> is verified against the manifest recorded when it was unpacked,
+     * and updated if any file is missing or modified.</p>
+     * <p>Files are checked in parallel by size and modification time; content is read only when the time differs.
+     * Whenever a new archive is created, its manifest is stored next to it, as an artifact with classifier
+     * <code>manifest</code>; for zip archives, the manifest is derived from the archive itself. Packages that are
+     * rebuilt after unpacking are recorded as they are after the rebuild.</p>
      */
-    @Parameter(defaultValue = "false", property = "npmpack.allowNpmInstall", required = true)
-    boolean allowNpmInstall;
+    @Parameter(defaultValue = "false", property = "npmpack.verify", required = true)
+    boolean verify;
 
-    @Parameter(defaultValue = "To generate new npmpack, please add option '-Dnpmpack.allowNpmInstall' to your commandline. Remember to upload the resulting pom and binary to your nearest maven repository, so that other users do not need to do the same.",
-            property = "npmpack.allowNpmInstall", required = true)
-    String npmInstallNotAllowedMsg;
+    /**
+     * Maximum total size of the trees kept by {@link #treeCacheEntries}, in megabytes; 0 means unlimited.
+     */
+    @Parameter(defaultValue = "0", property = "npmpack.treeCacheMaxMegabytes", required = true)
+    long treeCacheMaxMegabytes;
 
     /**
-     * <p>If specified, npmpack uses this external command to unpack the binary, instead of internal (java-based) implementation.
-     * The purpose is to allow for a faster unzip if one is available on the given system.</p>
-     * <p>The command is expected (but not strictly checked to) include two <code>%s</code> placeholders, first for source archive file,
-     * second for the target directory. For example:</p>
-     * <ul>
-     *     <li>unzip %s -d %s</li>
-     *     <li>C:/bin/unzip.exe -q %s -d %s</li>
-     * </ul>
-     * <p>Method {@link String#format(java.util.Locale, String, Object...)} is used to interpolate these placeholders; feel free to use any of its tricks to achieve desired results</p>
-     * Note that paths with spaces in them can cause problems due to escaping.
+     * Kept trees are deleted while the filesystem has less usable space than this, in megabytes; 0 means no limit.
      */
-    @Parameter(defaultValue = "", property = "npmpack.unzip", required = false)
-    String unzipCommand;
+    @Parameter(defaultValue = "0", property = "npmpack.treeCacheMinFreeMegabytes", required = true)
+    long treeCacheMinFreeMegabytes;
 
-    private boolean isZip() {
-        return archiveType.equals("zip");
-    }
+    /**
+     * <p>If specified, npm's own download cache is kept in the repository as artifact
+     * <code>{@link #binaryGroupId}:{@link #npmCacheArtifactId}:&lt;npmCacheVersion&gt;</code>, and
+     * <code>npm install</code> uses it with <code>--prefer-offline</code>. Regenerating an archive after a small change
+     * then downloads only the new packages.</p>
+     * <p>The artifact is restored before install; when it does not exist, it is created from the cache after install.
+     * It is never updated - to include newer packages, change the version.</p>
+     */
+    @Parameter(property = "npmpack.npmCacheVersion")
+    String npmCacheVersion;
+
+    @Parameter(defaultValue = "npm-cache", property = "npmpack.npmCacheArtifactId", required = true)
+    String npmCacheArtifactId;
+
+    /**
+     * Where npm's download cache is restored to, see {@link #npmCacheVersion}.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/npm-cache", property = "npmpack.npmCacheDirectory", required = true)
+    File npmCacheDirectory;
+
+    /**
+     * If set, <code>npm install</code> runs with <code>--offline</code>: all packages must come from
+     * the {@link #npmCacheVersion npm cache}, and nothing is downloaded.
+     */
+    @Parameter(defaultValue = "false", property = "npmpack.npmOffline", required = true)
+    boolean npmOffline;
+
+    private TreeDeleter backupDeleter;
+    private TreeDeleter treeCacheDeleter;
 
     private Archiver createArchiver() {
         if (isZip()) {
-            return new ZipArchiver();
+            final ZipArchiver archiver = new ZipArchiver();
+            archiver.setCompress(!isStoredZip());
+            return archiver;
+        }
+        if (isTarZst()) {
+            return new TarZstdArchiver();
         }
         final TarArchiver archiver = new TarArchiver();
         final TarArchiver.TarCompressionMethod tarCompressionMethod = new TarArchiver.TarCompressionMethod();
@@ -105,19 +174,6 @@ public class NodeModulesMojo extends AbstractNpmpackMojo {
         return archiver;
     }
 
-    private AbstractUnArchiver createUnArchiver() {
-        return (isZip()) ? new ZipUnArchiver() : new TarGZipUnArchiver();
-    }
-
-    private void validateParameters() throws MojoExecutionException {
-        if (!"|zip|tgz|tar.gz|".contains("|"+archiveType+"|")) {
-            throw new MojoExecutionException("Invalid archive type: " + archiveType);
-        }
-        if (!packageJson.exists()) {
-            throw new MojoExecutionException("File not found: " + packageJson);
-        }
-    }
-
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         validateParameters();
@@ -128,49 +184,75 @@ public class NodeModulesMojo extends AbstractNpmpackMojo {
         - look it up in repo
             - if NOT FOUND, create one
         - unpack it into node_modules
-        - invoke "npm rebuild" to adjust symlinks, executable flags etc
+        - recreate .bin links and rebuild native addons (see rebuild())
         */
 
         try {
-            final String normalizedPackageJson = readPackageJson(packageJson, anonymize);
-            final String packageJsonHash = Utils.md5sum(normalizedPackageJson);
-            final File oldHashFile = new File(node_modules, "package.json.hash");
+            // unchanged package.json does not need to be parsed and normalized again
+            final FingerprintCache fingerprintCache = new FingerprintCache(new File(node_modules, FINGERPRINT_FILE));
+            final String fingerprintVariant = fingerprintVariant();
+            final Metrics.Phase fingerprintPhase = metrics.start("fingerprint");
+            // a workspace consists of many files, which the fingerprint does not cover
+            String packageJsonHash = workspaces ? null : fingerprintCache.lookup(packageJson, fingerprintVariant);
+            fingerprintPhase.bytes(packageJson.length()).stop();
+            final boolean fingerprintMatched = packageJsonHash != null;
+            if (!fingerprintMatched) {
+                final Metrics.Phase hashPhase = metrics.start("hash");
+                packageJsonHash = computeHash();
+                hashPhase.bytes(packageJson.length()).stop();
+            }
+            final File oldHashFile = new File(node_modules, HASH_MARKER);
             final String oldHash = oldHashFile.exists() ? FileUtils.fileRead(oldHashFile) : "__NONE__";
-            if (oldHash.equals(packageJsonHash)) {
+            boolean upToDate = oldHash.equals(packageJsonHash);
+            if (upToDate && verify && !isIntact()) {
+                upToDate = false;
+                // a broken tree must not be kept under its hash
+                oldHashFile.delete();
+            }
+            if (upToDate) {
                 getLog().info(String.format("No change in %s (#%s), keeping %s", packageJson, packageJsonHash, node_modules));
             } else {
                 getLog().info(String.format("Differs from previous hash: %s, updating content of %s", oldHash, node_modules));
 
-                // repository lookup
-                getLog().info(String.format("Artifact %s:%s:%s", binaryGroupId, binaryArtifactId, packageJsonHash));
-                final Artifact artifact = factory.createBuildArtifact(binaryGroupId, binaryArtifactId, packageJsonHash, archiveType);
+                final boolean restored = restoreCachedTree(packageJsonHash);
+                final PrefetchMojo.Prefetched prefetched = restored ? null : awaitPrefetch(packageJsonHash);
+                if (restored) {
+                    // the tree was resolved, unpacked and rebuilt for this hash before
+                    getLog().info(String.format("Restored %s from %s", node_modules, treeCacheDirectory));
+                } else if (layered) {
+                    updateLayers(packageJsonHash, oldHashFile, prefetched);
+                } else {
+                    // repository lookup
+                    getLog().info(String.format("Artifact %s:%s:%s", binaryGroupId, binaryArtifactId, packageJsonHash));
+                    final Artifact artifact = createBinaryArtifact(binaryArtifactId, packageJsonHash, archiveType);
 
-                if (node_modules.isDirectory()) {
-                    final File backup = new File(workdir, "backup/" + node_modules.getName());
-                    if (backup.isDirectory()) {
-                        FileUtils.deleteDirectory(backup);
-                    } else if (backup.exists()) {
-                        backup.delete();
+                    // incremental update needs the old tree, so it is thrashed only if the artifact is not available
+                    final boolean incremental = incrementalUpdate && isZip() && node_modules.isDirectory();
+                    if (incremental) {
+                        oldHashFile.delete();
+                    } else {
+                        thrash();
                     }
-                    getLog().info(String.format("Thrashing %s to %s", node_modules, backup));
-                    FileUtils.rename(node_modules, backup);
-                }
-                final long startTime = System.currentTimeMillis();
-                try {
-                    getLog().info(String.format("Trying to resolve artifact %s", artifact));
-                    resolver.resolveAlways(artifact, remoteRepositories, localRepository);
-                    getLog().info(String.format("Resolution (possibly including downloads) took %d millis", System.currentTimeMillis() - startTime));
-                    unpack(artifact.getFile());
-                } catch (ArtifactNotFoundException e) {
-                    getLog().warn(String.format("Resolution failed after %d millis", System.currentTimeMillis() - startTime));
-                    //TODO: only if allowNpmInstall; otherwise inform the user to set this flag and deploy
-                    // resulting artifact to a repository shared with others, so that insecure network access is
-                    // minimized and under supervision of a user
-                    if (allowNpmInstall) {
-                        pack(artifact, normalizedPackageJson);
+                    final boolean packed;
+                    if (prefetched != null && prefetched.artifactFile != null) {
+                        artifact.setFile(prefetched.artifactFile);
+                        artifact.setResolved(true);
+                        packed = false;
                     } else {
-                        getLog().error(npmInstallNotAllowedMsg);
-                        throw new MojoExecutionException("Invoking npm install is NOT allowed");
+                        packed = resolveLocked(artifact, incremental);
+                    }
+                    if (!packed) {
+                        if (prefetched != null && prefetched.stagedTree != null && !incremental) {
+                            swapIn(prefetched.stagedTree, artifact.getFile());
+                            recordManifest(artifact);
+                        } else if (incremental) {
+                            updateIncrementally(artifact.getFile());
+                        } else {
+                            unpack(artifact.getFile());
+                            recordManifest(artifact);
+                        }
+                        // files kept by incremental update may still be linked from the shared store
+                        rebuild(sharedStore);
                     }
                 }
 
@@ -179,6 +261,9 @@ public class NodeModulesMojo extends AbstractNpmpackMojo {
                 FileUtils.fileWrite(oldHashFile, packageJsonHash);
                 getLog().info(String.format("Directory %s has been successfully recreated", node_modules));
             }
+            if (!fingerprintMatched && !workspaces) {
+                fingerprintCache.store(packageJson, fingerprintVariant, packageJsonHash);
+            }
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (NoSuchAlgorithmException e) {
@@ -189,73 +274,764 @@ public class NodeModulesMojo extends AbstractNpmpackMojo {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (InterruptedException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            joinBackupDeleter();
+            joinTreeCacheDeleter();
+            writeMetrics("node_modules");
         }
     }
 
-    private void unpack(File binArtifactFile) throws CommandLineException, InterruptedException, MojoExecutionException {
-        // unpack
-        getLog().info(String.format("Unpacking %s to %s", binArtifactFile, node_modules));
-        node_modules.mkdirs();
-        if (StringUtils.isBlank(unzipCommand)) {
-            final AbstractUnArchiver unArchiver = createUnArchiver();
-            final int logLevel = getLog().isDebugEnabled() ? Logger.LEVEL_DEBUG : Logger.LEVEL_INFO;
-            unArchiver.enableLogging(new ConsoleLogger(logLevel, "unpack"));
-            unArchiver.setSourceFile(binArtifactFile);
-            unArchiver.setDestDirectory(node_modules);
-            unArchiver.setUseJvmChmod(true);
-            final long startTime = System.currentTimeMillis();
-            unArchiver.extract();
-            getLog().info(String.format("Unpacking took %d millis", System.currentTimeMillis() - startTime));
+    /**
+     * @return {@link #PACK_EXCLUDES}, plus links to workspace members
+     */
+    private String[] packExcludes() {
+        final List<String> excludes = new ArrayList<String>(Arrays.asList(PACK_EXCLUDES));
+        for (String name : workspaceMembers.keySet()) {
+            excludes.add(name);
+            excludes.add(name + "/**");
+        }
+        return excludes.toArray(new String[excludes.size()]);
+    }
+
+    /**
+     * Links workspace members into <code>node_modules</code> by name, the way npm does.
+     */
+    private void linkWorkspaceMembers() throws IOException {
+        if (workspaceMembers.isEmpty()) {
+            return;
+        }
+        final Path workspaceRoot = packageJson.getAbsoluteFile().getParentFile().toPath();
+        for (Map.Entry<String, String> member : workspaceMembers.entrySet()) {
+            final Path link = node_modules.getAbsoluteFile().toPath().resolve(member.getKey());
+            if (Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+                continue;
+            }
+            Files.createDirectories(link.getParent());
+            Files.createSymbolicLink(link, link.getParent().relativize(workspaceRoot.resolve(member.getValue())));
+        }
+        getLog().info(String.format("Linked %d workspace members", workspaceMembers.size()));
+    }
+
+    /**
+     * Waits for the result of the <code>prefetch</code> goal, if it was started for this hash.
+     * @return the result, or null if there is none
+     */
+    private PrefetchMojo.Prefetched awaitPrefetch(String hash) throws InterruptedException {
+        final PrefetchMojo.Prefetch prefetch = PrefetchMojo.take(node_modules, hash);
+        if (prefetch == null) {
+            return null;
+        }
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("prefetch-wait");
+        try {
+            final PrefetchMojo.Prefetched prefetched = prefetch.future.get();
+            metrics.addAll("prefetch-", prefetched.metrics);
+            getLog().info(String.format("Waited %d millis for prefetch started %d millis ago",
+                    System.currentTimeMillis() - startTime, System.currentTimeMillis() - prefetch.startTime));
+            return prefetched;
+        } catch (ExecutionException e) {
+            getLog().warn("Prefetch failed, continuing without it: " + e.getCause());
+            return null;
+        } finally {
+            phase.stop();
+        }
+    }
+
+    /**
+     * Moves the tree unpacked by prefetch in place of (already thrashed) <code>node_modules</code>.
+     */
+    private void swapIn(File stagedTree, File binArtifactFile) throws IOException, CommandLineException, InterruptedException, MojoExecutionException {
+        final Metrics.Phase phase = metrics.start("swap");
+        final boolean moved = stagedTree.renameTo(node_modules);
+        phase.stop();
+        if (moved) {
+            getLog().info(String.format("Moved prefetched %s to %s", stagedTree, node_modules));
+        } else {
+            getLog().warn(String.format("Cannot move %s to %s, unpacking again", stagedTree, node_modules));
+            FileUtils.deleteDirectory(stagedTree);
+            unpack(binArtifactFile);
+        }
+    }
+
+    /**
+     * Like {@link #resolveOrPack}, but only one execution (in this reactor or in another maven process) produces
+     * the artifact at a time; the others wait for it and reuse it.
+     */
+    private boolean resolveLocked(Artifact artifact, boolean treeKept) throws IOException, CommandLineException, InterruptedException, MojoExecutionException, ArtifactResolutionException {
+        final File archiveFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(artifact));
+        final long lockTime = System.currentTimeMillis();
+        final Metrics.Phase lockPhase = metrics.start("lock");
+        final ArtifactLock lock = ArtifactLock.acquire(artifact.getId(), new File(archiveFile.getPath() + ".lock"));
+        lockPhase.stop();
+        try {
+            if (lock.hasWaited() && archiveFile.isFile()) {
+                getLog().info(String.format("Reusing %s, produced by concurrent execution while waiting %d millis",
+                        archiveFile, System.currentTimeMillis() - lockTime));
+                artifact.setFile(archiveFile);
+                artifact.setResolved(true);
+                return false;
+            }
+            return resolveOrPack(artifact, treeKept);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Resolves the artifact; if it does not exist, creates it by "npm install", if allowed.
+     * @param treeKept true if the current <code>node_modules</code> has not been thrashed yet
+     * @return true if the artifact has been packed from freshly installed <code>node_modules</code>
+     */
+    private boolean resolveOrPack(Artifact artifact, boolean treeKept) throws IOException, CommandLineException, InterruptedException, MojoExecutionException, ArtifactResolutionException {
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase resolvePhase = metrics.start("resolve");
+        try {
+            getLog().info(String.format("Trying to resolve artifact %s", artifact));
+            resolveImmutable(artifact);
+            resolvePhase.bytes(artifact.getFile().length()).files(1).stop();
+            getLog().info(String.format("Resolution (possibly including downloads) took %d millis", System.currentTimeMillis() - startTime));
+            return false;
+        } catch (ArtifactNotFoundException e) {
+            resolvePhase.files(0).stop();
+            getLog().warn(String.format("Resolution failed after %d millis", System.currentTimeMillis() - startTime));
+            //TODO: only if allowNpmInstall; otherwise inform the user to set this flag and deploy
+            // resulting artifact to a repository shared with others, so that insecure network access is
+            // minimized and under supervision of a user
+            if (allowNpmInstall) {
+                if (treeKept) {
+                    thrash();
+                }
+                pack(artifact, readPackageJson(packageJson, anonymize));
+                return true;
+            } else {
+                getLog().error(npmInstallNotAllowedMsg);
+                throw new MojoExecutionException("Invoking npm install is NOT allowed");
+            }
+        }
+    }
+
+    /**
+     * Verifies <code>node_modules</code> against its manifest.
+     * @return false if some files are missing or modified
+     */
+    private boolean isIntact() throws IOException {
+        final File manifestFile = new File(node_modules, MANIFEST_FILE);
+        if (!manifestFile.isFile()) {
+            getLog().warn(String.format("Cannot verify %s, manifest not found: %s", node_modules, manifestFile));
+            return true;
+        }
+        final TreeVerifier verifier = new TreeVerifier(node_modules);
+        if (unpackThreads > 0) {
+            verifier.setThreads(unpackThreads);
+        }
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("verify");
+        final Manifest manifest = Manifest.read(manifestFile);
+        final List<String> broken = verifier.verify(manifest);
+        phase.files(manifest.size()).stop();
+        getLog().info(String.format("Verification of %d files took %d millis, content of %d files was checked",
+                manifest.size(), System.currentTimeMillis() - startTime, verifier.getHashedCount()));
+        if (broken.isEmpty()) {
+            return true;
+        }
+        getLog().warn(String.format("%s does not match its manifest; %d files are missing or modified, for instance %s",
+                node_modules, broken.size(), broken.subList(0, Math.min(5, broken.size()))));
+        return false;
+    }
+
+    /**
+     * Remembers what was unpacked into <code>node_modules</code>, so that it can be verified or incrementally updated later.
+     */
+    private void recordManifest(Artifact artifact) throws IOException {
+        final File manifestFile = new File(node_modules, MANIFEST_FILE);
+        if (isZip()) {
+            // unpacking preserves the entry times, so the archive tells everything
+            Manifest.fromZip(artifact.getFile()).write(manifestFile);
+            return;
+        }
+        final Artifact manifestArtifact = createManifestArtifact(artifact);
+        try {
+            resolveImmutable(manifestArtifact);
+            Manifest.read(manifestArtifact.getFile()).withTimesFrom(node_modules).write(manifestFile);
+        } catch (ArtifactResolutionException e) {
+            getLog().info(String.format("Manifest %s not available: %s", manifestArtifact, e.getMessage()));
+        } catch (ArtifactNotFoundException e) {
+            getLog().info(String.format("Manifest %s not available: %s", manifestArtifact, e.getMessage()));
+        }
+    }
+
+    private Artifact createManifestArtifact(Artifact artifact) {
+        final String classifier = artifact.getClassifier() == null ? MANIFEST_CLASSIFIER : artifact.getClassifier() + "-" + MANIFEST_CLASSIFIER;
+        return factory.createArtifactWithClassifier(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion(),
+                MANIFEST_TYPE, classifier);
+    }
+
+    /**
+     * Moves current <code>node_modules</code> directory aside, into backup.
+     */
+    private void thrash() throws IOException {
+        if (!node_modules.isDirectory() || keepInTreeCache()) {
+            return;
+        }
+        final Metrics.Phase phase = metrics.start("backup");
+        final File backupDirectory = new File(workdir, "backup");
+        final File backup = new File(backupDirectory, node_modules.getName());
+        if (backup.exists()) {
+            try {
+                TreeDeleter.bury(backup);
+            } catch (IOException e) {
+                getLog().debug(e.getMessage());
+                FileUtils.forceDelete(backup);
+            }
+        }
+        getLog().info(String.format("Thrashing %s to %s", node_modules, backup));
+        FileUtils.rename(node_modules, backup);
+        if (backupDeleter == null) {
+            backupDeleter = new TreeDeleter(backupDirectory);
+            backupDeleter.start();
+        }
+        phase.stop();
+    }
+
+    /**
+     * @return the cache of previous trees, or null if disabled; see {@link #treeCacheEntries}
+     */
+    TreeCache createTreeCache() {
+        if (treeCacheEntries <= 0) {
+            return null;
+        }
+        final TreeCache treeCache = new TreeCache(treeCacheDirectory);
+        treeCache.setMaxEntries(treeCacheEntries);
+        treeCache.setMaxBytes(treeCacheMaxMegabytes * 1024 * 1024);
+        treeCache.setMinFreeBytes(treeCacheMinFreeMegabytes * 1024 * 1024);
+        return treeCache;
+    }
+
+    /**
+     * Moves the tree kept for given hash in place of <code>node_modules</code>, which is kept instead.
+     * @return false if there is no such tree
+     */
+    private boolean restoreCachedTree(String hash) throws IOException {
+        final TreeCache treeCache = createTreeCache();
+        if (treeCache == null || !treeCache.contains(hash)) {
+            return false;
+        }
+        thrash();
+        final Metrics.Phase phase = metrics.start("tree-cache-restore");
+        final boolean restored = treeCache.take(hash, node_modules);
+        phase.stop();
+        if (!restored) {
+            getLog().warn(String.format("Cannot move %s to %s", new File(treeCacheDirectory, hash), node_modules));
+        }
+        return restored;
+    }
+
+    /**
+     * Moves complete <code>node_modules</code> into the tree cache, and evicts old trees over the limits.
+     * @return false if the tree cache is disabled or the tree could not be moved
+     */
+    private boolean keepInTreeCache() throws IOException {
+        final TreeCache treeCache = createTreeCache();
+        final File hashFile = new File(node_modules, HASH_MARKER);
+        if (treeCache == null || !hashFile.isFile()) {
+            return false;
+        }
+        final String hash = FileUtils.fileRead(hashFile);
+        final Metrics.Phase phase = metrics.start("tree-cache-keep");
+        try {
+            // the manifest knows the sizes of unpacked files; walking the whole tree is the last resort
+            final File manifestFile = new File(node_modules, MANIFEST_FILE);
+            final long size = manifestFile.isFile() ? Manifest.read(manifestFile).getTotalSize() : -1;
+            if (!treeCache.put(hash, node_modules, size)) {
+                getLog().warn(String.format("Cannot move %s to %s", node_modules, treeCacheDirectory));
+                return false;
+            }
+            getLog().info(String.format("Keeping %s as %s", node_modules, new File(treeCacheDirectory, hash)));
+            final List<String> evicted = treeCache.evict();
+            if (!evicted.isEmpty()) {
+                getLog().info(String.format("Evicting %d kept trees: %s", evicted.size(), evicted));
+            }
+            if (treeCacheDeleter == null) {
+                treeCacheDeleter = new TreeDeleter(treeCacheDirectory);
+                treeCacheDeleter.start();
+            }
+            return true;
+        } finally {
+            phase.stop();
+        }
+    }
+
+    /**
+     * Waits for the deletion of trees evicted by {@link #keepInTreeCache()}.
+     */
+    private void joinTreeCacheDeleter() {
+        if (treeCacheDeleter == null) {
+            return;
+        }
+        try {
+            final int count = treeCacheDeleter.join();
+            getLog().debug(String.format("Deleted %d evicted trees", count));
+        } catch (IOException e) {
+            getLog().warn("Failed to delete evicted trees: " + e.getMessage());
+        } finally {
+            treeCacheDeleter = null;
+        }
+    }
+
+    /**
+     * Waits for the deletion of old backups started by {@link #thrash()}.
+     */
+    private void joinBackupDeleter() {
+        if (backupDeleter == null) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("backup-delete");
+        try {
+            final int count = backupDeleter.join();
+            phase.files(count).stop();
+            getLog().info(String.format("Waited %d millis for deletion of %d old backups", System.currentTimeMillis() - startTime, count));
+        } catch (IOException e) {
+            getLog().warn("Failed to delete old backups: " + e.getMessage());
+        } finally {
+            backupDeleter = null;
+        }
+    }
+
+    /**
+     * Updates existing <code>node_modules</code> in place, rewriting only files that differ from the archive.
+     */
+    private void updateIncrementally(File binArtifactFile) throws IOException, CommandLineException, InterruptedException {
+        getLog().info(String.format("Incrementally updating %s from %s", node_modules, binArtifactFile));
+        final IncrementalUpdater updater = new IncrementalUpdater(binArtifactFile, node_modules);
+        final File manifestFile = new File(node_modules, MANIFEST_FILE);
+        if (manifestFile.isFile()) {
+            updater.setPreviousManifest(Manifest.read(manifestFile));
+        }
+        updater.addPreserved(HASH_MARKER);
+        updater.addPreserved(MANIFEST_FILE);
+        updater.addPreserved(FINGERPRINT_FILE);
+        if (unpackThreads > 0) {
+            updater.setThreads(unpackThreads);
+        }
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("incremental");
+        final Manifest manifest = updater.update();
+        phase.bytes(binArtifactFile.length()).files(updater.getUpdatedCount() + updater.getRemovedCount()).stop();
+        getLog().info(String.format("Incremental update took %d millis: %d files unchanged, %d updated, %d removed",
+                System.currentTimeMillis() - startTime,
+                updater.getUnchangedCount(),
+                updater.getUpdatedCount(),
+                updater.getRemovedCount()));
+        manifest.write(manifestFile);
+    }
+
+    /**
+     * Updates <code>node_modules</code> from layers listed by the index artifact, see {@link #layered}.
+     */
+    private void updateLayers(String packageJsonHash, File oldHashFile, PrefetchMojo.Prefetched prefetched) throws IOException, CommandLineException, InterruptedException, MojoExecutionException, ArtifactResolutionException {
+        getLog().info(String.format("Layer index %s:%s:%s", binaryGroupId, binaryArtifactId, packageJsonHash));
+        final Artifact indexArtifact = createBinaryArtifact(binaryArtifactId, packageJsonHash, archiveType + LAYERS_TYPE_SUFFIX);
+        if (new File(node_modules, LAYERS_FILE).isFile()) {
+            oldHashFile.delete();
         } else {
-            if (!unzipCommand.replaceAll("[^%]", "").equals("%%")) {
-                throw new MojoExecutionException(unzipCommand.replaceAll("[^%]", "") + " : External unzip command must contain exactly 2 placeholders: '" + unzipCommand + "'");
+            // not unpacked from layers, so we cannot tell which layers are there
+            thrash();
+        }
+        if (prefetched != null && prefetched.artifactFile != null) {
+            unpackLayers(LayerIndex.read(prefetched.artifactFile));
+        } else if (!resolveLocked(indexArtifact, true)) {
+            unpackLayers(LayerIndex.read(indexArtifact.getFile()));
+        }
+    }
+
+    /**
+     * Removes layers that are not in the index, and unpacks those that are missing.
+     */
+    private void unpackLayers(LayerIndex index) throws IOException, CommandLineException, InterruptedException, MojoExecutionException {
+        final File installedFile = new File(node_modules, LAYERS_FILE);
+        final LayerIndex installed = installedFile.isFile() ? LayerIndex.read(installedFile) : new LayerIndex();
+        // until all layers are unpacked, the tree must not be trusted
+        installedFile.delete();
+        int removed = 0;
+        for (String path : installed.getPaths()) {
+            if (!installed.get(path).equals(index.get(path))) {
+                removeLayer(path, installed);
+                removed++;
             }
-            final Commandline unzip = new Commandline(String.format(unzipCommand,
-                    binArtifactFile, node_modules));
-            unzip.setWorkingDirectory(basedir);
-            super.executeCommandline("unpack", unzip);
         }
+        final long startTime = System.currentTimeMillis();
+        int unpacked = 0;
+        for (String path : index.getPaths()) {
+            final String version = index.get(path);
+            if (version.equals(installed.get(path))) {
+                continue;
+            }
+            final Artifact layerArtifact = createLayerArtifact(version);
+            final Metrics.Phase phase = metrics.start("resolve-layer");
+            try {
+                resolveImmutable(layerArtifact);
+            } catch (ArtifactResolutionException e) {
+                throw new MojoExecutionException("Cannot resolve layer " + path + ": " + e.getMessage(), e);
+            } catch (ArtifactNotFoundException e) {
+                throw new MojoExecutionException("Layer " + path + " not found, the layered cache is incomplete: " + e.getMessage(), e);
+            }
+            phase.bytes(layerArtifact.getFile().length()).files(1).stop();
+            extract(layerArtifact.getFile(), LayerIndex.ROOT.equals(path) ? node_modules : new File(node_modules, path));
+            unpacked++;
+        }
+        getLog().info(String.format("Layers updated in %d millis: %d kept, %d removed, %d unpacked",
+                System.currentTimeMillis() - startTime, index.size() - unpacked, removed, unpacked));
+        if (verify) {
+            Manifest.fromDirectory(node_modules, packExcludes()).write(new File(node_modules, MANIFEST_FILE));
+        } else {
+            new File(node_modules, MANIFEST_FILE).delete();
+        }
+        index.write(installedFile);
+
+        rebuild(false);
+    }
+
+    /**
+     * Deletes the content of one layer from <code>node_modules</code>.
+     * @param installed layers currently in <code>node_modules</code>; needed to tell the root layer content apart
+     */
+    private void removeLayer(String path, LayerIndex installed) throws IOException {
+        if (!LayerIndex.ROOT.equals(path)) {
+            FileUtils.deleteDirectory(new File(node_modules, path));
+            return;
+        }
+        final List<String> packages = LayerIndex.listPackages(node_modules);
+        final File[] children = node_modules.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            final String name = child.getName();
+            if (name.equals(".bin") || name.equals(HASH_MARKER) || name.equals(MANIFEST_FILE) || name.equals(FINGERPRINT_FILE) || name.equals(LAYERS_FILE)) {
+                continue;
+            }
+            if (child.isDirectory() && (packages.contains(name) || name.startsWith("@"))) {
+                // packages are layers of their own
+                continue;
+            }
+            FileUtils.forceDelete(child);
+        }
+    }
+
+    private Artifact createLayerArtifact(String version) {
+        return createBinaryArtifact(binaryArtifactId + LAYER_ARTIFACT_SUFFIX, version, archiveType);
+    }
+
+    /**
+     * Recreates what {@link #packExcludes()} stripped, and builds native addons.
+     * Rebuild rewrites files that were unpacked, so it must run after the manifest is recorded; the manifest entries of
+     * the rebuilt packages are then taken from disk.
+     * @param linked true if the tree is hardlinked from the shared store; the packages to rebuild then get private copies
+     * of their files first, because rebuild writes into existing files
+     */
+    private void rebuild(boolean linked) throws CommandLineException, InterruptedException, IOException {
+        linkWorkspaceMembers();
+        final long startTime = System.currentTimeMillis();
+        final Metrics.Phase phase = metrics.start("bin-link");
+        final BinLinker binLinker = new BinLinker(node_modules);
+        // npm links the bins itself, but it must not make linked files executable
+        binLinker.setLinkBins(selectiveRebuild || linked);
+        binLinker.link();
+        phase.files(binLinker.getLinkCount()).stop();
+        final Set<String> packages = binLinker.getRebuildPackages();
+        getLog().info(String.format("Linking bins took %d millis; %d bins linked, %d packages to rebuild",
+                System.currentTimeMillis() - startTime, binLinker.getLinkCount(), packages.size()));
+        if (linked) {
+            final Metrics.Phase detachPhase = metrics.start("detach");
+            int copied = 0;
+            for (String directory : binLinker.getRebuildDirectories()) {
+                copied += TreeLinker.detach(new File(node_modules, directory));
+            }
+            detachPhase.files(copied).stop();
+            getLog().info(String.format("Copied %d files of packages to rebuild, so that the shared store is not modified", copied));
+        }
+        if (!selectiveRebuild) {
+            npm("npm_rebuild", "rebuild");
+        } else if (!packages.isEmpty()) {
+            final List<String> arguments = new ArrayList<String>();
+            arguments.add("rebuild");
+            arguments.addAll(packages);
+            npm("npm_rebuild", arguments.toArray(new String[arguments.size()]));
+        }
+        rescanManifest(binLinker.getRebuildDirectories());
+    }
+
+    /**
+     * Updates the manifest entries of given packages from disk, if there is a manifest.
+     * @param directories package directories, relative to <code>node_modules</code>
+     */
+    private void rescanManifest(Set<String> directories) throws IOException {
+        final File manifestFile = new File(node_modules, MANIFEST_FILE);
+        if (directories.isEmpty() || !manifestFile.isFile()) {
+            return;
+        }
+        final Manifest manifest = Manifest.read(manifestFile);
+        for (String directory : directories) {
+            manifest.rescan(node_modules, directory, PACK_EXCLUDES);
+        }
+        manifest.write(manifestFile);
+        getLog().debug(String.format("Manifest updated with rebuilt packages %s", directories));
+    }
+
+    private void unpack(File binArtifactFile) throws CommandLineException, InterruptedException, MojoExecutionException, IOException {
+        if (sharedStore) {
+            final File storedTree = storeTree(binArtifactFile);
+            getLog().info(String.format("Linking %s to %s", storedTree, node_modules));
+            final long startTime = System.currentTimeMillis();
+            final Metrics.Phase phase = metrics.start("link");
+            final TreeLinker linker = new TreeLinker(storedTree);
+            linker.linkTo(node_modules);
+            phase.files(linker.getLinkCount() + linker.getCopyCount()).stop();
+            getLog().info(String.format("Linking took %d millis; %d files hardlinked, %d files copied",
+                    System.currentTimeMillis() - startTime, linker.getLinkCount(), linker.getCopyCount()));
+        } else {
+            extract(binArtifactFile, node_modules);
+        }
+    }
 
-        npm("npm_rebuild", "rebuild");
+    /**
+     * Makes sure that the shared store contains the unpacked archive, and returns its directory.
+     */
+    private File storeTree(File binArtifactFile) throws CommandLineException, InterruptedException, MojoExecutionException, IOException {
+        final File storeDirectory = sharedStoreDirectory != null
+                ? sharedStoreDirectory
+                : new File(new File(localRepository.getBasedir()).getParentFile(), "npmpack-store");
+        final File storedTree = new File(storeDirectory, binArtifactFile.getName());
+        if (storedTree.isDirectory()) {
+            getLog().info(String.format("Reusing %s from shared store", storedTree));
+            return storedTree;
+        }
+        // unpack aside and rename, so that concurrent builds never see a partially unpacked tree
+        final File staging = new File(storeDirectory, binArtifactFile.getName() + ".tmp-" + UUID.randomUUID());
+        extract(binArtifactFile, staging);
+        if (!staging.renameTo(storedTree)) {
+            if (!storedTree.isDirectory()) {
+                throw new IOException(String.format("Cannot move %s to %s", staging, storedTree));
+            }
+            getLog().info(String.format("Shared store entry %s was created concurrently, discarding %s", storedTree, staging));
+            FileUtils.deleteDirectory(staging);
+        }
+        return storedTree;
     }
 
-    private void pack(Artifact artifact, String normalizedPackageJson) throws MojoExecutionException, IOException, CommandLineException, InterruptedException {
+    private void pack(Artifact artifact, String normalizedPackageJson) throws MojoExecutionException, IOException, CommandLineException, InterruptedException, ArtifactResolutionException {
         node_modules.mkdirs();
+        // the archive is stored under the hash of the lockfiles, so they must come out of install unchanged;
+        // "npm ci" installs exactly what the lockfile says, or fails
+        final Map<File, byte[]> lockedContents = new LinkedHashMap<File, byte[]>();
+        boolean npmLockfile = false;
+        for (File lockfile : hashedLockfiles()) {
+            lockedContents.put(lockfile, Files.readAllBytes(lockfile.toPath()));
+            npmLockfile |= WorkspaceDigest.isNpmLockfile(lockfile);
+        }
+        final String installCommand = npmLockfile ? "ci" : "install";
+        final List<String> installArguments = new ArrayList<String>();
+        installArguments.add(installCommand);
+        final Artifact npmCacheArtifact = StringUtils.isBlank(npmCacheVersion) ? null : createNpmCacheArtifact();
+        if (npmCacheArtifact != null) {
+            installArguments.add("--cache");
+            installArguments.add(npmCacheDirectory.getAbsolutePath());
+            if (restoreNpmCache(npmCacheArtifact) && !npmOffline) {
+                installArguments.add("--prefer-offline");
+            }
+        }
+        if (npmOffline) {
+            installArguments.add("--offline");
+        }
+        npm("npm_" + installCommand, installArguments.toArray(new String[installArguments.size()]));
+        for (Map.Entry<File, byte[]> locked : lockedContents.entrySet()) {
+            if (!Arrays.equals(locked.getValue(), Files.readAllBytes(locked.getKey().toPath()))) {
+                throw new MojoExecutionException(String.format("%s was modified by npm %s, so the archive would not match its hash;"
+                        + " review and commit the updated lockfile, then build again", locked.getKey(), installCommand));
+            }
+        }
+        // written after install, because "npm ci" starts with removing node_modules
         final File normalizedPackageJsonFile = new File(node_modules, packageJson.getName());
         getLog().info(String.format("Saving normalized package.json file to %s", normalizedPackageJsonFile));
-        FileUtils.fileWrite(normalizedPackageJsonFile, normalizedPackageJson);
+        FileUtils.fileWrite(normalizedPackageJsonFile, "UTF-8", normalizedPackageJson);
+        if (npmCacheArtifact != null) {
+            storeNpmCache(npmCacheArtifact);
+        }
 
-        npm("npm_install", "install");
+        if (layered) {
+            packLayers(artifact);
+            return;
+        }
 
         final File archiveFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(artifact));
         final File archiveFileTmp = new File(workdir, archiveFile.getName());
 
-        final Archiver archiver = createArchiver();
-        archiver.setDestFile(archiveFileTmp);
-        //NOTE: .bin dirs will be recreated by npm rebuild; that makes the archive platform independent
-        archiver.addDirectory(node_modules, null, new String[]{"**/.bin/**"});
-        final long startTime = System.currentTimeMillis();
-        archiver.createArchive();
-        getLog().info(String.format("Packing took %d millis", System.currentTimeMillis() - startTime));
-
-        final Artifact pomArtifact = factory.createBuildArtifact(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion(), "pom");
-        final File pomFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(pomArtifact));
-        pomFile.getParentFile().mkdirs();
-        getLog().info(String.format("Generating pom in %s", pomFile));
-        FileUtils.fileWrite(pomFile, String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n" +
-                "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">%n" +
-                "  <modelVersion>4.0.0</modelVersion>%n" +
-                "  <groupId>%s</groupId>%n" +
-                "  <artifactId>%s</artifactId>%n" +
-                "  <version>%s</version>%n" +
-                "  <packaging>pom</packaging>%n" +
-                "  <description>generated by npmpack-maven-plugin</description>%n" +
-                "</project>%n",
-                artifact.getGroupId(),
-                artifact.getArtifactId(),
-                artifact.getVersion()));
+        final Metrics.Phase phase = metrics.start("pack");
+        archive(node_modules, packExcludes(), pruning, archiveFileTmp);
+
+        final Manifest manifest = isZip() ? Manifest.fromZip(archiveFileTmp) : Manifest.fromDirectory(node_modules, packExcludes(), pruning);
+        phase.bytes(archiveFileTmp.length()).files(manifest.size()).stop();
+        final File manifestFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(createManifestArtifact(artifact)));
+        manifestFile.getParentFile().mkdirs();
+        getLog().info(String.format("Saving manifest of %d files to %s", manifest.size(), manifestFile));
+        manifest.write(manifestFile);
+        manifest.withTimesFrom(node_modules).write(new File(node_modules, MANIFEST_FILE));
+
+        writePom(artifact);
         getLog().info(String.format("Moving artifact to local repository: %s (%d bytes)", archiveFile, archiveFileTmp.length()));
         FileUtils.rename(archiveFileTmp, archiveFile);
         // TODO: publish into nexus if desired
     }
+
+    private Artifact createNpmCacheArtifact() {
+        return factory.createBuildArtifact(binaryGroupId, npmCacheArtifactId, npmCacheVersion.trim(), archiveType);
+    }
+
+    /**
+     * Brings npm's download cache to {@link #npmCacheDirectory}, unless it is already there in the same version.
+     * @return false if the cache artifact does not exist
+     */
+    private boolean restoreNpmCache(Artifact npmCacheArtifact) throws IOException, CommandLineException, InterruptedException, MojoExecutionException, ArtifactResolutionException {
+        final File versionFile = new File(npmCacheDirectory, NPM_CACHE_VERSION_FILE);
+        if (versionFile.isFile() && FileUtils.fileRead(versionFile).equals(npmCacheArtifact.getVersion())) {
+            getLog().info(String.format("Using npm cache %s in %s", npmCacheArtifact.getVersion(), npmCacheDirectory));
+            return true;
+        }
+        try {
+            resolveImmutable(npmCacheArtifact);
+        } catch (ArtifactNotFoundException e) {
+            getLog().info(String.format("No npm cache %s yet, it will be created after install", npmCacheArtifact));
+            return false;
+        }
+        if (npmCacheDirectory.exists()) {
+            FileUtils.deleteDirectory(npmCacheDirectory);
+        }
+        extract(npmCacheArtifact.getFile(), npmCacheDirectory);
+        FileUtils.fileWrite(versionFile, npmCacheArtifact.getVersion());
+        return true;
+    }
+
+    /**
+     * Saves npm's download cache into the local repository, unless the artifact is already there.
+     */
+    private void storeNpmCache(Artifact npmCacheArtifact) throws IOException {
+        final File archiveFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(npmCacheArtifact));
+        if (archiveFile.isFile() || !npmCacheDirectory.isDirectory()) {
+            return;
+        }
+        final File archiveFileTmp = new File(workdir, archiveFile.getName());
+        final Metrics.Phase phase = metrics.start("pack-npm-cache");
+        archive(npmCacheDirectory, NPM_CACHE_EXCLUDES, Pruning.none(), archiveFileTmp);
+        phase.bytes(archiveFileTmp.length()).stop();
+        writePom(npmCacheArtifact);
+        getLog().info(String.format("Moving npm cache to local repository: %s (%d bytes)", archiveFile, archiveFileTmp.length()));
+        FileUtils.rename(archiveFileTmp, archiveFile);
+        FileUtils.fileWrite(new File(npmCacheDirectory, NPM_CACHE_VERSION_FILE), npmCacheArtifact.getVersion());
+    }
+
+    /**
+     * Archives each layer of freshly installed <code>node_modules</code>, unless the repository already has it,
+     * and saves the index.
+     */
+    private void packLayers(Artifact indexArtifact) throws IOException, MojoExecutionException {
+        final List<String> packages = LayerIndex.listPackages(node_modules);
+        // workspace members are linked, not archived
+        packages.removeAll(workspaceMembers.keySet());
+        final LayerIndex index = new LayerIndex();
+        final long startTime = System.currentTimeMillis();
+        int created = 0;
+        for (String path : packages) {
+            if (packLayer(index, path, new File(node_modules, path), packExcludes(), pruning.under(path))) {
+                created++;
+            }
+        }
+        if (packLayer(index, LayerIndex.ROOT, node_modules, LayerIndex.rootExcludes(packages, packExcludes()), pruning)) {
+            created++;
+        }
+        getLog().info(String.format("Packing %d layers took %d millis; %d were already in repository",
+                index.size(), System.currentTimeMillis() - startTime, index.size() - created));
+
+        final File indexFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(indexArtifact));
+        writePom(indexArtifact);
+        getLog().info(String.format("Saving index of %d layers to %s", index.size(), indexFile));
+        index.write(indexFile);
+        index.write(new File(node_modules, LAYERS_FILE));
+        new File(node_modules, MANIFEST_FILE).delete();
+    }
+
+    /**
+     * Adds one layer to the index, and creates its artifact if it is not in the local repository.
+     * @return true if the artifact was created
+     */
+    private boolean packLayer(LayerIndex index, String path, File dir, String[] excludes, Pruning layerPruning) throws IOException, MojoExecutionException {
+        if (ParallelArchiver.scan(dir, excludes, layerPruning).getIncludedFiles().length == 0) {
+            getLog().debug("Skipping empty layer " + path);
+            return false;
+        }
+        final String version;
+        try {
+            version = LayerIndex.artifactVersion(path, dir, excludes, layerPruning, hashAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        index.put(path, version);
+        final Artifact layerArtifact = createLayerArtifact(version);
+        final File layerFile = new File(localRepository.getBasedir(), localRepository.getLayout().pathOf(layerArtifact));
+        if (layerFile.isFile()) {
+            return false;
+        }
+        final File layerFileTmp = new File(workdir, layerFile.getName() + ".tmp-" + UUID.randomUUID());
+        final Metrics.Phase phase = metrics.start("pack-layer");
+        archive(dir, excludes, layerPruning, layerFileTmp);
+        phase.bytes(layerFileTmp.length()).stop();
+        writePom(layerArtifact);
+        layerFile.getParentFile().mkdirs();
+        if (!layerFileTmp.renameTo(layerFile)) {
+            if (!layerFile.isFile()) {
+                throw new IOException(String.format("Cannot move %s to %s", layerFileTmp, layerFile));
+            }
+            // created concurrently by another build
+            layerFileTmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param directoryPruning the pruning for paths relative to <code>directory</code>
+     */
+    private void archive(File directory, String[] excludes, final Pruning directoryPruning, File destFile) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        // stored zip needs no compression, and zstd is not parallelized
+        if (packThreads > 0 && !isStoredZip() && !isTarZst()) {
+            final ParallelArchiver archiver = new ParallelArchiver(directory, excludes);
+            archiver.setThreads(packThreads);
+            archiver.setPruning(directoryPruning);
+            if (isZip()) {
+                archiver.createZip(destFile);
+            } else {
+                archiver.createTarGz(destFile);
+            }
+            getLog().info(String.format("Packing %s with %d threads took %d millis", destFile.getName(), packThreads, System.currentTimeMillis() - startTime));
+        } else {
+            final Archiver archiver = createArchiver();
+            archiver.setDestFile(destFile);
+            final DefaultFileSet fileSet = new DefaultFileSet();
+            fileSet.setDirectory(directory);
+            fileSet.setExcludes(excludes);
+            fileSet.setIncludingEmptyDirectories(archiver.getIncludeEmptyDirs());
+            if (!directoryPruning.isEmpty()) {
+                fileSet.setFileSelectors(new FileSelector[] {new FileSelector() {
+                    @Override
+                    public boolean isSelected(FileInfo fileInfo) {
+                        return !directoryPruning.isPruned(fileInfo.getName());
+                    }
+                }});
+            }
+            archiver.addFileSet(fileSet);
+            archiver.createArchive();
+            getLog().info(String.format("Packing %s took %d millis", destFile.getName(), System.currentTimeMillis() - startTime));
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package net.kozelka.npmpack.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import net.kozelka.npmpack.FingerprintCache;
+import net.kozelka.npmpack.Metrics;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Starts preparing the <code>node_modules</code> early in the build, in the background.
+ * <p>Computes the hash of package.json, and if <code>node_modules</code> is not up to date, resolves the artifact
+ * (possibly downloading it) and unpacks it into a staging directory, while the build continues with other plugins.
+ * The <code>node_modules</code> goal, configured the same way, then waits for the result and just moves the staged
+ * tree in place.</p>
+ * <p>With {@link #layered}, {@link #incrementalUpdate} or {@link #sharedStore}, which update the tree in place,
+ * only the resolution runs in the background. If the artifact is not found, nothing is prepared, and the
+ * <code>node_modules</code> goal proceeds as usual.</p>
+ * <p>Phases of the background work are reported in the metrics of the <code>node_modules</code> goal, prefixed with
+ * <code>prefetch-</code>.</p>
+ *
+ * @author Petr Kozelka
+ */
+@Mojo(name = "prefetch", defaultPhase = LifecyclePhase.INITIALIZE, requiresProject = true, threadSafe = true)
+public class PrefetchMojo extends AbstractNodeModulesMojo {
+    private static final String STAGING_DIRECTORY = "npmpack-prefetch";
+
+    /**
+     * Prefetches started in this build, by absolute path of node_modules.
+     */
+    private static final ConcurrentMap<String, Prefetch> PREFETCHES = new ConcurrentHashMap<String, Prefetch>();
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "npmpack-prefetch");
+            // never keep the JVM alive; an unused staging directory is replaced next time
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Result of a prefetch.
+     */
+    static final class Prefetched {
+        /**
+         * The resolved artifact file, or null if the artifact was not found.
+         */
+        final File artifactFile;
+
+        /**
+         * The unpacked tree, ready to be moved in place; null if not unpacked.
+         */
+        final File stagedTree;
+
+        /**
+         * Phases of the background work.
+         */
+        final Metrics metrics;
+
+        Prefetched(File artifactFile, File stagedTree, Metrics metrics) {
+            this.artifactFile = artifactFile;
+            this.stagedTree = stagedTree;
+            this.metrics = metrics;
+        }
+    }
+
+    static final class Prefetch {
+        final String hash;
+        final Future<Prefetched> future;
+        final long startTime = System.currentTimeMillis();
+
+        private Prefetch(String hash, Future<Prefetched> future) {
+            this.hash = hash;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Removes the prefetch for given node_modules from the registry.
+     * @return the prefetch, or null if there is none for the given hash
+     */
+    static Prefetch take(File nodeModules, String hash) {
+        final Prefetch prefetch = PREFETCHES.remove(nodeModules.getAbsolutePath());
+        if (prefetch == null || !prefetch.hash.equals(hash)) {
+            return null;
+        }
+        return prefetch;
+    }
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        validateParameters();
+        try {
+            String hash = workspaces ? null : new FingerprintCache(new File(node_modules, FINGERPRINT_FILE)).lookup(packageJson, fingerprintVariant());
+            if (hash == null) {
+                hash = computeHash();
+            }
+            final File hashFile = new File(node_modules, HASH_MARKER);
+            if (hashFile.exists() && FileUtils.fileRead(hashFile).equals(hash)) {
+                getLog().info(String.format("No change in %s (#%s), nothing to prefetch", packageJson, hash));
+                return;
+            }
+            if (isTreeKept(hash)) {
+                getLog().info(String.format("Tree for %s (#%s) is kept in %s, nothing to prefetch", packageJson, hash, treeCacheDirectory));
+                return;
+            }
+            final Artifact artifact = createBinaryArtifact(binaryArtifactId, hash,
+                    layered ? archiveType + LAYERS_TYPE_SUFFIX : archiveType);
+            final boolean stage = !layered && !incrementalUpdate && !sharedStore;
+            final File stagedTree = new File(workdir, STAGING_DIRECTORY + "/" + node_modules.getName() + "-" + hash);
+            getLog().info(String.format("Prefetching %s%s in background", artifact, stage ? " into " + stagedTree : ""));
+            final Future<Prefetched> future = EXECUTOR.submit(new Callable<Prefetched>() {
+                @Override
+                public Prefetched call() throws Exception {
+                    return prefetch(artifact, stage ? stagedTree : null);
+                }
+            });
+            PREFETCHES.put(node_modules.getAbsolutePath(), new Prefetch(hash, future));
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            writeMetrics("prefetch");
+        }
+    }
+
+    /**
+     * Runs in background, after this goal has finished; so its phases are recorded separately, see {@link Prefetched#metrics}.
+     */
+    private Prefetched prefetch(Artifact artifact, File stagedTree) throws Exception {
+        final long startTime = System.currentTimeMillis();
+        final Metrics prefetchMetrics = new Metrics();
+        final Metrics.Phase resolvePhase = prefetchMetrics.start("resolve");
+        try {
+            resolveImmutable(artifact);
+        } catch (ArtifactNotFoundException e) {
+            resolvePhase.files(0).stop();
+            getLog().info(String.format("Prefetch: artifact %s not found", artifact));
+            return new Prefetched(null, null, prefetchMetrics);
+        }
+        resolvePhase.bytes(artifact.getFile().length()).files(1).stop();
+        getLog().info(String.format("Prefetch: resolved %s in %d millis", artifact, System.currentTimeMillis() - startTime));
+        if (stagedTree == null) {
+            return new Prefetched(artifact.getFile(), null, prefetchMetrics);
+        }
+        if (stagedTree.exists()) {
+            FileUtils.deleteDirectory(stagedTree);
+        }
+        final File partial = new File(stagedTree.getPath() + ".partial");
+        if (partial.exists()) {
+            FileUtils.deleteDirectory(partial);
+        }
+        extract(artifact.getFile(), partial, prefetchMetrics);
+        FileUtils.rename(partial, stagedTree);
+        getLog().info(String.format("Prefetch: unpacked into %s, %d millis since start", stagedTree, System.currentTimeMillis() - startTime));
+        return new Prefetched(artifact.getFile(), stagedTree, prefetchMetrics);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Long-lived grunt worker, started by npmpack-maven-plugin (see GruntDaemon.java).
+ *
+ * Usage: node grunt-worker.js <token> <idleTimeoutSeconds>
+ *
+ * Listens on a loopback port, announced on stdout as "NPMPACK_WORKER_PORT <port>".
+ * Each connection carries one request, a json line:
+ *   {"token": ..., "cwd": ..., "gruntModule": ..., "args": [...]}
+ * and receives the output of the grunt run as lines "O <stdout line>" and "E <stderr line>",
+ * terminated by "X <exit code>".
+ * Requests are served one at a time. After a failed run, the worker exits, because grunt's state cannot be trusted
+ * anymore; the plugin then starts a new one. The worker also exits when its stdin is closed (the build is over),
+ * or after being idle for the given time.
+ */
+'use strict';
+
+var net = require('net');
+
+var token = process.argv[2];
+var idleTimeout = (parseInt(process.argv[3], 10) || 0) * 1000;
+var queue = [];
+var busy = false;
+var idleTimer = null;
+
+function parseArgs(args) {
+    var tasks = [];
+    var options = {};
+    args.forEach(function (arg) {
+        var match = /^--(no-)?([^=]+)(=(.*))?$/.exec(arg);
+        if (!match) {
+            tasks.push(arg);
+        } else if (match[1]) {
+            options[match[2]] = false;
+        } else {
+            options[match[2]] = match[3] ? match[4] : true;
+        }
+    });
+    return {tasks: tasks, options: options};
+}
+
+function run(job) {
+    var request = job.request;
+    var socket = job.socket;
+    var original = {
+        stdout: process.stdout.write,
+        stderr: process.stderr.write,
+        exit: process.exit,
+        cwd: process.cwd()
+    };
+    var pending = {O: '', E: ''};
+    var finished = false;
+
+    function forward(kind) {
+        return function (chunk, encoding, callback) {
+            var lines = (pending[kind] + chunk.toString()).split('\n');
+            pending[kind] = lines.pop();
+            lines.forEach(function (line) {
+                socket.write(kind + ' ' + line.replace(/\r$/, '') + '\n');
+            });
+            if (typeof encoding === 'function') {
+                encoding();
+            } else if (typeof callback === 'function') {
+                callback();
+            }
+            return true;
+        };
+    }
+
+    function finish(code) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        process.stdout.write = original.stdout;
+        process.stderr.write = original.stderr;
+        process.exit = original.exit;
+        ['O', 'E'].forEach(function (kind) {
+            if (pending[kind].length > 0) {
+                socket.write(kind + ' ' + pending[kind] + '\n');
+            }
+        });
+        socket.end('X ' + code + '\n', function () {
+            if (code !== 0) {
+                original.exit.call(process, 0);
+            }
+        });
+        try {
+            process.chdir(original.cwd);
+        } catch (e) {
+            // the directory is gone; stay where we are
+        }
+        busy = false;
+        setImmediate(next);
+    }
+
+    process.stdout.write = forward('O');
+    process.stderr.write = forward('E');
+    process.exit = function (code) {
+        finish(code === undefined ? 0 : code);
+    };
+    try {
+        process.chdir(request.cwd);
+        var parsed = parseArgs(request.args || []);
+        var grunt = require(request.gruntModule);
+        grunt.tasks(parsed.tasks, parsed.options, function () {
+            finish(0);
+        });
+    } catch (e) {
+        process.stderr.write((e && e.stack ? e.stack : String(e)) + '\n');
+        finish(1);
+    }
+}
+
+function next() {
+    if (busy) {
+        return;
+    }
+    var job = queue.shift();
+    if (!job) {
+        scheduleIdleExit();
+        return;
+    }
+    if (idleTimer) {
+        clearTimeout(idleTimer);
+        idleTimer = null;
+    }
+    busy = true;
+    run(job);
+}
+
+function scheduleIdleExit() {
+    if (idleTimeout > 0 && !idleTimer) {
+        idleTimer = setTimeout(function () {
+            process.exit(0);
+        }, idleTimeout);
+    }
+}
+
+var server = net.createServer(function (socket) {
+    var buffer = '';
+    var received = false;
+    socket.setEncoding('utf8');
+    socket.on('error', function () {
+        // the client is gone; nothing to report to
+    });
+    socket.on('data', function (chunk) {
+        if (received) {
+            return;
+        }
+        buffer += chunk;
+        var eol = buffer.indexOf('\n');
+        if (eol < 0) {
+            return;
+        }
+        received = true;
+        var request;
+        try {
+            request = JSON.parse(buffer.substring(0, eol));
+        } catch (e) {
+            socket.end('E invalid request\nX 2\n');
+            return;
+        }
+        if (request.token !== token) {
+            socket.destroy();
+            return;
+        }
+        queue.push({request: request, socket: socket});
+        next();
+    });
+});
+
+server.listen(0, '127.0.0.1', function () {
+    process.stdout.write('NPMPACK_WORKER_PORT ' + server.address().port + '\n');
+    scheduleIdleExit();
+});
+
+process.stdin.on('end', function () {
+    process.exit(0);
+});
+process.stdin.resume();
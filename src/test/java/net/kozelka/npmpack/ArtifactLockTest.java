@@ -0,0 +1,53 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class ArtifactLockTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void secondThreadWaitsForFirst() throws Exception {
+        final File lockFile = new File(tmp.getRoot(), "repo/npmpack/node_modules/abc/node_modules-abc.zip.lock");
+        final ArtifactLock first = ArtifactLock.acquire("npmpack:node_modules:abc", lockFile);
+        Assert.assertFalse(first.hasWaited());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> second = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    final ArtifactLock lock = ArtifactLock.acquire("npmpack:node_modules:abc", lockFile);
+                    try {
+                        return lock.hasWaited();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            });
+            Thread.sleep(200);
+            Assert.assertFalse("second must block while the first holds the lock", second.isDone());
+            first.release();
+            Assert.assertTrue(second.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final ArtifactLock third = ArtifactLock.acquire("npmpack:node_modules:abc", lockFile);
+        Assert.assertFalse(third.hasWaited());
+        third.release();
+        Assert.assertEquals("released keys must be forgotten", 0, ArtifactLock.activeKeys());
+    }
+}
@@ -0,0 +1,98 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.Os;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class BinLinkerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void linksBinsAndFindsNativePackages() throws IOException {
+        final File nodeModules = tmp.newFolder("node_modules");
+        writePackage(nodeModules, "plain", "{\"name\":\"plain\"}");
+        writePackage(nodeModules, "single", "{\"name\":\"single\",\"bin\":\"./cli.js\"}");
+        FileUtils.fileWrite(new File(nodeModules, "single/cli.js"), "#!/usr/bin/env node");
+        writePackage(nodeModules, "@scope/tool", "{\"name\":\"@scope/tool\",\"bin\":{\"tool-a\":\"bin/a.js\",\"../evil\":\"bin/a.js\"}}");
+        new File(nodeModules, "@scope/tool/bin").mkdirs();
+        FileUtils.fileWrite(new File(nodeModules, "@scope/tool/bin/a.js"), "a");
+        writePackage(nodeModules, "single/node_modules/nested", "{\"name\":\"nested\",\"bin\":\"n.js\",\"scripts\":{\"postinstall\":\"node x\"}}");
+        FileUtils.fileWrite(new File(nodeModules, "single/node_modules/nested/n.js"), "n");
+        writePackage(nodeModules, "addon", "{\"name\":\"addon\",\"scripts\":{\"test\":\"x\"}}");
+        FileUtils.fileWrite(new File(nodeModules, "addon/binding.gyp"), "{}");
+
+        final BinLinker linker = new BinLinker(nodeModules);
+        linker.link();
+
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("addon", "nested")), linker.getRebuildPackages());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("addon", "single/node_modules/nested")), linker.getRebuildDirectories());
+        Assert.assertEquals(3, linker.getLinkCount());
+        if (!Os.isFamily(Os.FAMILY_WINDOWS)) {
+            final File single = new File(nodeModules, ".bin/single");
+            Assert.assertTrue(Files.isSymbolicLink(single.toPath()));
+            Assert.assertEquals("#!/usr/bin/env node", FileUtils.fileRead(single));
+            Assert.assertTrue(single.canExecute());
+            Assert.assertEquals("a", FileUtils.fileRead(new File(nodeModules, ".bin/tool-a")));
+            Assert.assertEquals("n", FileUtils.fileRead(new File(nodeModules, "single/node_modules/.bin/nested")));
+        }
+    }
+
+    @Test
+    public void findsPackagesToRebuildWithoutLinking() throws IOException {
+        final File nodeModules = tmp.newFolder("node_modules");
+        writePackage(nodeModules, "addon", "{\"name\":\"addon\",\"bin\":\"cli.js\"}");
+        FileUtils.fileWrite(new File(nodeModules, "addon/cli.js"), "cli");
+        FileUtils.fileWrite(new File(nodeModules, "addon/binding.gyp"), "{}");
+
+        final BinLinker linker = new BinLinker(nodeModules);
+        linker.setLinkBins(false);
+        linker.link();
+
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("addon")), linker.getRebuildDirectories());
+        Assert.assertEquals(0, linker.getLinkCount());
+        Assert.assertFalse(new File(nodeModules, ".bin").exists());
+    }
+
+    @Test
+    public void skipsOddFieldsAndReadsBinDirectory() throws IOException {
+        final File nodeModules = tmp.newFolder("node_modules");
+        writePackage(nodeModules, "nameless", "{\"name\":null,\"bin\":{\"ok\":\"ok.js\",\"odd\":{\"x\":1},\"none\":null}}");
+        FileUtils.fileWrite(new File(nodeModules, "nameless/ok.js"), "ok");
+        writePackage(nodeModules, "object-name", "{\"name\":{\"first\":\"x\"},\"scripts\":{\"install\":\"node x\"}}");
+        writePackage(nodeModules, "dir-bins", "{\"name\":\"dir-bins\",\"directories\":{\"bin\":\"./bin\"}}");
+        new File(nodeModules, "dir-bins/bin/sub").mkdirs();
+        FileUtils.fileWrite(new File(nodeModules, "dir-bins/bin/first"), "1");
+        FileUtils.fileWrite(new File(nodeModules, "dir-bins/bin/sub/second"), "2");
+        FileUtils.fileWrite(new File(nodeModules, "dir-bins/bin/.hidden"), "h");
+
+        final BinLinker linker = new BinLinker(nodeModules);
+        linker.link();
+
+        Assert.assertEquals(3, linker.getLinkCount());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("object-name")), linker.getRebuildPackages());
+        if (!Os.isFamily(Os.FAMILY_WINDOWS)) {
+            Assert.assertEquals("ok", FileUtils.fileRead(new File(nodeModules, ".bin/ok")));
+            Assert.assertEquals("1", FileUtils.fileRead(new File(nodeModules, ".bin/first")));
+            Assert.assertEquals("2", FileUtils.fileRead(new File(nodeModules, ".bin/second")));
+            Assert.assertFalse(new File(nodeModules, ".bin/.hidden").exists());
+        }
+    }
+
+    private static void writePackage(File nodeModules, String path, String packageJson) throws IOException {
+        final File dir = new File(nodeModules, path);
+        dir.mkdirs();
+        FileUtils.fileWrite(new File(dir, "package.json"), packageJson);
+    }
+}
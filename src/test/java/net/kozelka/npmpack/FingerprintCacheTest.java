@@ -0,0 +1,35 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class FingerprintCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void reusesValueOnlyForSameContentAndVariant() throws IOException {
+        final File packageJson = tmp.newFile("package.json");
+        FileUtils.fileWrite(packageJson, "{\"name\":\"a\"}");
+        final FingerprintCache cache = new FingerprintCache(new File(tmp.getRoot(), "node_modules/.fingerprint"));
+        Assert.assertNull(cache.lookup(packageJson, "anonymize=true"));
+
+        cache.store(packageJson, "anonymize=true", "abc");
+        Assert.assertEquals("abc", cache.lookup(packageJson, "anonymize=true"));
+        Assert.assertNull(cache.lookup(packageJson, "anonymize=false"));
+
+        // same size and mtime, different bytes
+        final long mtime = packageJson.lastModified();
+        FileUtils.fileWrite(packageJson, "{\"name\":\"b\"}");
+        packageJson.setLastModified(mtime);
+        Assert.assertNull(cache.lookup(packageJson, "anonymize=true"));
+    }
+}
@@ -0,0 +1,94 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the worker with a fake grunt module; skipped if node is not available.
+ *
+ * @author Petr Kozelka
+ */
+public class GruntDaemonTest {
+    private static final String FAKE_GRUNT = "var count = 0;\n"
+            + "exports.tasks = function (tasks, options, done) {\n"
+            + "    count++;\n"
+            + "    console.log('tasks=' + tasks.join(',') + ' count=' + count + ' cwd=' + require('path').basename(process.cwd()));\n"
+            + "    console.error('options=' + JSON.stringify(options));\n"
+            + "    if (tasks.indexOf('fail') >= 0) {\n"
+            + "        process.exit(3);\n"
+            + "    }\n"
+            + "    done();\n"
+            + "};\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private GruntDaemon daemon;
+
+    @After
+    public void stop() {
+        if (daemon != null) {
+            daemon.stop();
+        }
+    }
+
+    @Test
+    public void reusesWorkerUntilFailure() throws Exception {
+        Assume.assumeTrue(isNodeAvailable());
+        final File module = tmp.newFolder("module");
+        final File gruntModule = new File(module, "node_modules/grunt");
+        gruntModule.mkdirs();
+        FileUtils.fileWrite(new File(gruntModule, "package.json"), "UTF-8", "{\"name\":\"grunt\",\"main\":\"index.js\"}");
+        FileUtils.fileWrite(new File(gruntModule, "index.js"), "UTF-8", FAKE_GRUNT);
+        daemon = GruntDaemon.get("node", 0);
+        daemon.stop();
+        final int starts = daemon.getStartCount();
+
+        final Lines out = new Lines();
+        final Lines err = new Lines();
+        Assert.assertEquals(0, daemon.run(module, gruntModule, Arrays.asList("build", "--no-color", "--target=dist"), out, err));
+        Assert.assertEquals(Arrays.asList("tasks=build count=1 cwd=module"), out.lines);
+        Assert.assertEquals(Arrays.asList("options={\"color\":false,\"target\":\"dist\"}"), err.lines);
+
+        // same worker, grunt stays loaded
+        out.lines.clear();
+        Assert.assertEquals(0, daemon.run(module, gruntModule, Arrays.asList("test"), out, new Lines()));
+        Assert.assertEquals(Arrays.asList("tasks=test count=2 cwd=module"), out.lines);
+        Assert.assertEquals(starts + 1, daemon.getStartCount());
+
+        // failure is reported, and the worker is replaced
+        Assert.assertEquals(3, daemon.run(module, gruntModule, Arrays.asList("fail"), new Lines(), new Lines()));
+        out.lines.clear();
+        Assert.assertEquals(0, daemon.run(module, gruntModule, Arrays.asList("build"), out, new Lines()));
+        Assert.assertEquals(Arrays.asList("tasks=build count=1 cwd=module"), out.lines);
+        Assert.assertEquals(starts + 2, daemon.getStartCount());
+    }
+
+    private static boolean isNodeAvailable() {
+        try {
+            final Process process = new ProcessBuilder("node", "--version").redirectErrorStream(true).start();
+            return process.waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static final class Lines implements StreamConsumer {
+        private final List<String> lines = new ArrayList<String>();
+
+        @Override
+        public void consumeLine(String line) {
+            lines.add(line);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class IncrementalUpdaterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void updatesOnlyDifferences() throws IOException {
+        final File v1 = zip("v1.zip", "a/index.js", "a1", "b/index.js", "b1", "c/index.js", "c1");
+        final File v2 = zip("v2.zip", "a/index.js", "a1", "b/index.js", "b2", "d/index.js", "d1");
+        final File nodeModules = tmp.newFolder("node_modules");
+        new ZipExtractor(v1, nodeModules).extract();
+        final File manifestFile = new File(tmp.getRoot(), "manifest");
+        Manifest.fromZip(v1).write(manifestFile);
+        FileUtils.fileWrite(new File(nodeModules, "package.json.hash"), "abc");
+
+        final IncrementalUpdater updater = new IncrementalUpdater(v2, nodeModules);
+        updater.setPreviousManifest(Manifest.read(manifestFile));
+        updater.addPreserved("package.json.hash");
+        final Manifest manifest = updater.update();
+
+        Assert.assertEquals(3, manifest.size());
+        Assert.assertEquals(1, updater.getUnchangedCount());
+        Assert.assertEquals(2, updater.getUpdatedCount());
+        Assert.assertEquals(1, updater.getRemovedCount());
+        Assert.assertEquals("a1", FileUtils.fileRead(new File(nodeModules, "a/index.js")));
+        Assert.assertEquals("b2", FileUtils.fileRead(new File(nodeModules, "b/index.js")));
+        Assert.assertEquals("d1", FileUtils.fileRead(new File(nodeModules, "d/index.js")));
+        Assert.assertFalse(new File(nodeModules, "c").exists());
+        Assert.assertTrue(new File(nodeModules, "package.json.hash").exists());
+    }
+
+    @Test
+    public void verifiesContentWithoutManifest() throws IOException {
+        final File v1 = zip("v1.zip", "a/index.js", "a1", "b/index.js", "b1");
+        final File v2 = zip("v2.zip", "a/index.js", "a1", "b/index.js", "b2");
+        final File nodeModules = tmp.newFolder("node_modules");
+        new ZipExtractor(v1, nodeModules).extract();
+
+        final IncrementalUpdater updater = new IncrementalUpdater(v2, nodeModules);
+        updater.update();
+        Assert.assertEquals(1, updater.getUnchangedCount());
+        Assert.assertEquals(1, updater.getUpdatedCount());
+        Assert.assertEquals("b2", FileUtils.fileRead(new File(nodeModules, "b/index.js")));
+    }
+
+    @Test
+    public void keepsUnchangedLinksAndCreatesDirectories() throws IOException {
+        final File v1 = tmp.newFile("v1.zip");
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(v1);
+        addEntry(zos, "a/index.js", "a1", UnixStat.FILE_FLAG | 0644);
+        addEntry(zos, "a/same", "index.js", UnixStat.LINK_FLAG | 0777);
+        addEntry(zos, "a/moved", "index.js", UnixStat.LINK_FLAG | 0777);
+        addEntry(zos, "a/empty/", null, UnixStat.DIR_FLAG | 0755);
+        zos.close();
+        final File v2 = tmp.newFile("v2.zip");
+        zos = new ZipArchiveOutputStream(v2);
+        addEntry(zos, "a/index.js", "a1", UnixStat.FILE_FLAG | 0644);
+        addEntry(zos, "a/same", "index.js", UnixStat.LINK_FLAG | 0777);
+        addEntry(zos, "a/moved", "empty", UnixStat.LINK_FLAG | 0777);
+        addEntry(zos, "a/empty/", null, UnixStat.DIR_FLAG | 0755);
+        addEntry(zos, "b/empty/", null, UnixStat.DIR_FLAG | 0755);
+        zos.close();
+        final File nodeModules = tmp.newFolder("node_modules");
+        new ZipExtractor(v1, nodeModules).extract();
+
+        final IncrementalUpdater updater = new IncrementalUpdater(v2, nodeModules);
+        updater.update();
+
+        // the changed link and the new directory
+        Assert.assertEquals(2, updater.getUpdatedCount());
+        Assert.assertEquals(2, updater.getUnchangedCount());
+        Assert.assertEquals(0, updater.getRemovedCount());
+        Assert.assertTrue(new File(nodeModules, "a/empty").isDirectory());
+        Assert.assertTrue(new File(nodeModules, "b/empty").isDirectory());
+        Assert.assertEquals("index.js", Files.readSymbolicLink(new File(nodeModules, "a/same").toPath()).toString());
+        Assert.assertEquals("empty", Files.readSymbolicLink(new File(nodeModules, "a/moved").toPath()).toString());
+    }
+
+    private static void addEntry(ZipArchiveOutputStream zos, String name, String content, int mode) throws IOException {
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setUnixMode(mode);
+        zos.putArchiveEntry(entry);
+        if (content != null) {
+            zos.write(content.getBytes("UTF-8"));
+        }
+        zos.closeArchiveEntry();
+    }
+
+    private File zip(String name, String... pathsAndContents) throws IOException {
+        final File zip = new File(tmp.getRoot(), name);
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            for (int i = 0; i < pathsAndContents.length; i += 2) {
+                zos.putArchiveEntry(new ZipArchiveEntry(pathsAndContents[i]));
+                zos.write(pathsAndContents[i + 1].getBytes("UTF-8"));
+                zos.closeArchiveEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return zip;
+    }
+}
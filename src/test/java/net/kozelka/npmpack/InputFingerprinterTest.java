@@ -0,0 +1,71 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class InputFingerprinterTest {
+    private static final String[] INCLUDES = {"**"};
+    private static final String[] EXCLUDES = {"dist/**", "node_modules/**"};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void hashesOnlyChangedFiles() throws Exception {
+        final File basedir = tmp.newFolder("module");
+        write(basedir, "Gruntfile.js", "module.exports = function () {};");
+        write(basedir, "src/app.js", "console.log('a');");
+        write(basedir, "dist/app.min.js", "output");
+        write(basedir, "node_modules/x/index.js", "dependency");
+        final File statCache = new File(tmp.getRoot(), "cache/inputs.stat");
+
+        final InputFingerprinter fingerprinter = new InputFingerprinter(basedir, INCLUDES, EXCLUDES, "MD5");
+        fingerprinter.setStatCache(statCache);
+        final String first = fingerprinter.fingerprint("command=build");
+        Assert.assertEquals(2, fingerprinter.getFileCount());
+        Assert.assertEquals(2, fingerprinter.getHashedCount());
+
+        Assert.assertEquals(first, fingerprinter.fingerprint("command=build"));
+        Assert.assertEquals(0, fingerprinter.getHashedCount());
+
+        // outputs and excluded files do not matter
+        write(basedir, "dist/app.min.js", "other output");
+        Assert.assertEquals(first, fingerprinter.fingerprint("command=build"));
+
+        // neither does the time alone
+        final File app = new File(basedir, "src/app.js");
+        app.setLastModified(app.lastModified() - 10000);
+        Assert.assertEquals(first, fingerprinter.fingerprint("command=build"));
+        Assert.assertEquals(1, fingerprinter.getHashedCount());
+
+        Assert.assertFalse(first.equals(fingerprinter.fingerprint("command=test")));
+
+        write(basedir, "src/app.js", "console.log('b');");
+        app.setLastModified(app.lastModified() - 20000);
+        Assert.assertFalse(first.equals(fingerprinter.fingerprint("command=build")));
+    }
+
+    @Test
+    public void withoutStatCache() throws Exception {
+        final File basedir = tmp.newFolder("module");
+        write(basedir, "a.js", "a");
+        final String first = new InputFingerprinter(basedir, INCLUDES, EXCLUDES, "SHA-256").fingerprint();
+        final InputFingerprinter fingerprinter = new InputFingerprinter(basedir, INCLUDES, EXCLUDES, "SHA-256");
+        Assert.assertEquals(first, fingerprinter.fingerprint());
+        Assert.assertEquals(1, fingerprinter.getHashedCount());
+        Assert.assertEquals(64, first.length());
+    }
+
+    private static void write(File dir, String path, String content) throws Exception {
+        final File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, "UTF-8", content);
+    }
+}
@@ -0,0 +1,84 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class LayerIndexTest {
+    private static final String[] EXCLUDES = {"**/.bin/**"};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void splitsIntoPackages() throws Exception {
+        final File nodeModules = tmp.newFolder("node_modules");
+        write(nodeModules, "lodash/package.json", "{\"name\":\"lodash\",\"version\":\"4.17.21\"}");
+        write(nodeModules, "lodash/index.js", "module.exports = {};");
+        write(nodeModules, "@babel/core/package.json", "{\"name\":\"@babel/core\",\"version\":\"7.0.0-beta.1\"}");
+        write(nodeModules, ".bin/lodash", "#!/bin/sh");
+        write(nodeModules, "package.json", "{}");
+
+        final List<String> packages = LayerIndex.listPackages(nodeModules);
+        Assert.assertEquals(Arrays.asList("@babel/core", "lodash"), packages);
+
+        final String lodash = LayerIndex.artifactVersion("lodash", new File(nodeModules, "lodash"), EXCLUDES, "MD5");
+        Assert.assertTrue(lodash, lodash.startsWith("lodash-4.17.21-"));
+        final String babel = LayerIndex.artifactVersion("@babel/core", new File(nodeModules, "@babel/core"), EXCLUDES, "MD5");
+        Assert.assertTrue(babel, babel.startsWith("babel+core-7.0.0_beta.1-"));
+
+        final String[] rootExcludes = LayerIndex.rootExcludes(packages, EXCLUDES);
+        final String root = LayerIndex.artifactVersion(LayerIndex.ROOT, nodeModules, rootExcludes, "MD5");
+        Assert.assertTrue(root, root.startsWith("root-0-"));
+        Assert.assertEquals(Arrays.asList("package.json"),
+                Arrays.asList(ParallelArchiver.scan(nodeModules, rootExcludes).getIncludedFiles()));
+    }
+
+    @Test
+    public void versionFollowsContent() throws Exception {
+        final File dir = tmp.newFolder("pkg");
+        write(dir, "package.json", "{\"version\":\"1.0.0\"}");
+        write(dir, "lib/a.js", "a");
+        final String before = LayerIndex.artifactVersion("pkg", dir, EXCLUDES, "MD5");
+        Assert.assertEquals(before, LayerIndex.artifactVersion("pkg", dir, EXCLUDES, "MD5"));
+
+        // links are not part of the layer
+        write(dir, ".bin/a", "#!/bin/sh");
+        Assert.assertEquals(before, LayerIndex.artifactVersion("pkg", dir, EXCLUDES, "MD5"));
+
+        write(dir, "lib/a.js", "b");
+        Assert.assertFalse(before.equals(LayerIndex.artifactVersion("pkg", dir, EXCLUDES, "MD5")));
+    }
+
+    @Test
+    public void readWrite() throws Exception {
+        final LayerIndex index = new LayerIndex();
+        index.put("lodash", "lodash-4.17.21-0123456789abcdef");
+        index.put("@babel/core", "babel+core-7.0.0-0123456789abcdef");
+        index.put(LayerIndex.ROOT, "root-0-0123456789abcdef");
+        // written as UTF-8, with no special meaning of ':' or '\\'
+        index.put("caf\u00e9:x", "caf\u00e9-1.0.0\\x-0123456789abcdef");
+        final File file = new File(tmp.getRoot(), "index/x.zip.layers");
+        index.write(file);
+
+        final LayerIndex read = LayerIndex.read(file);
+        Assert.assertEquals(index.getPaths(), read.getPaths());
+        Assert.assertEquals("babel+core-7.0.0-0123456789abcdef", read.get("@babel/core"));
+        Assert.assertEquals("caf\u00e9-1.0.0\\x-0123456789abcdef", read.get("caf\u00e9:x"));
+        Assert.assertNull(read.get("react"));
+    }
+
+    private static void write(File dir, String path, String content) throws Exception {
+        final File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, "UTF-8", content);
+    }
+}
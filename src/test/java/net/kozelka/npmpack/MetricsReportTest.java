@@ -0,0 +1,72 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class MetricsReportTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void aggregatesModules() throws Exception {
+        final File reportFile = new File(tmp.getRoot(), "target/npmpack-metrics.json");
+
+        final Metrics first = new Metrics();
+        first.start("unpack").bytes(1000).files(10).stop();
+        first.start("link").stop();
+        MetricsReport.append(reportFile, "session1", "g:a", "node_modules", first);
+
+        final Metrics second = new Metrics();
+        second.start("unpack").bytes(500).files(5).stop();
+        MetricsReport.append(reportFile, "session1", "g:b", "node_modules", second);
+
+        final JsonObject report = read(reportFile);
+        Assert.assertEquals(2, report.getAsJsonArray("executions").size());
+        final JsonObject unpack = report.getAsJsonObject("totals").getAsJsonObject("unpack");
+        Assert.assertEquals(2, unpack.get("count").getAsInt());
+        Assert.assertEquals(1500, unpack.get("bytes").getAsLong());
+        Assert.assertEquals(15, unpack.get("files").getAsLong());
+        final JsonObject link = report.getAsJsonObject("totals").getAsJsonObject("link");
+        Assert.assertEquals(1, link.get("count").getAsInt());
+        Assert.assertFalse(link.has("bytes"));
+    }
+
+    @Test
+    public void includesPhasesOfBackgroundWork() throws Exception {
+        final File reportFile = new File(tmp.getRoot(), "npmpack-metrics.json");
+        final Metrics background = new Metrics();
+        background.start("unpack").bytes(700).files(7).stop();
+
+        final Metrics metrics = new Metrics();
+        metrics.start("swap").stop();
+        metrics.addAll("prefetch-", background);
+        MetricsReport.append(reportFile, "session1", "g:a", "node_modules", metrics);
+
+        final JsonObject totals = read(reportFile).getAsJsonObject("totals");
+        Assert.assertEquals(700, totals.getAsJsonObject("prefetch-unpack").get("bytes").getAsLong());
+        Assert.assertEquals(7, totals.getAsJsonObject("prefetch-unpack").get("files").getAsLong());
+        Assert.assertFalse(totals.has("unpack"));
+        Assert.assertTrue(totals.has("swap"));
+    }
+
+    @Test
+    public void newSessionStartsOver() throws Exception {
+        final File reportFile = new File(tmp.getRoot(), "npmpack-metrics.json");
+        MetricsReport.append(reportFile, "session1", "g:a", "grunt", new Metrics());
+        MetricsReport.append(reportFile, "session2", "g:a", "grunt", new Metrics());
+        Assert.assertEquals(1, read(reportFile).getAsJsonArray("executions").size());
+    }
+
+    private static JsonObject read(File file) throws Exception {
+        return new JsonParser().parse(FileUtils.fileRead(file, "UTF-8")).getAsJsonObject();
+    }
+}
@@ -0,0 +1,104 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class OutputPipelineTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<String> received = new ArrayList<String>();
+
+    private final OutputPipeline.Sink sink = new OutputPipeline.Sink() {
+        @Override
+        public void line(String line, boolean isErr) {
+            received.add((isErr ? "E:" : "O:") + line);
+        }
+    };
+
+    @Test
+    public void teePassesAllLinesInOrderAndWritesFile() throws IOException {
+        final File teeFile = new File(tmp.getRoot(), "out/npm.log");
+        final OutputPipeline output = new OutputPipeline(OutputPipeline.Mode.TEE, sink, 10, teeFile);
+        output.start("test");
+        for (int i = 0; i < 20000; i++) {
+            output.getStdout().consumeLine("line " + i);
+        }
+        output.getStderr().consumeLine("\u017eluva");
+        output.close();
+
+        Assert.assertEquals(20001, received.size());
+        Assert.assertEquals("O:line 19999", received.get(19999));
+        Assert.assertEquals("E:\u017eluva", received.get(20000));
+        Assert.assertEquals(20000, output.getStdoutLines());
+        Assert.assertEquals(1, output.getStderrLines());
+        Assert.assertEquals(7, output.getStderrBytes());
+        Assert.assertEquals(output.getStdoutBytes() + output.getStderrBytes(), teeFile.length());
+        Assert.assertTrue(FileUtils.fileRead(teeFile, "UTF-8").startsWith("line 0\nline 1\n"));
+        Assert.assertEquals(0, output.printSummary());
+    }
+
+    @Test(timeout = 10000)
+    public void failingSinkDoesNotBlockTheProcess() throws IOException {
+        final OutputPipeline output = new OutputPipeline(OutputPipeline.Mode.STREAM, new OutputPipeline.Sink() {
+            @Override
+            public void line(String line, boolean isErr) {
+                throw new IllegalStateException("broken sink");
+            }
+        }, 10, null);
+        output.start("test");
+        // more lines than the queue holds
+        for (int i = 0; i < 20000; i++) {
+            output.getStdout().consumeLine("line " + i);
+        }
+        try {
+            output.close();
+            Assert.fail("sink failure was lost");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("broken sink", e.getMessage());
+        }
+        Assert.assertEquals(20000, output.getStdoutLines());
+    }
+
+    @Test
+    public void summaryKeepsLastLines() throws IOException {
+        final OutputPipeline output = new OutputPipeline(OutputPipeline.Mode.SUMMARY, sink, 3, null);
+        output.start("test");
+        for (int i = 0; i < 100; i++) {
+            output.getStdout().consumeLine("line " + i);
+        }
+        output.getStderr().consumeLine("failed");
+        output.close();
+        Assert.assertTrue(received.isEmpty());
+
+        Assert.assertEquals(3, output.printSummary());
+        Assert.assertEquals("[O:line 98, O:line 99, E:failed]", received.toString());
+        Assert.assertEquals(100, output.getStdoutLines());
+    }
+
+    @Test
+    public void bufferingSinkHoldsLinesUntilFlush() throws IOException {
+        final OutputPipeline.BufferingSink buffer = new OutputPipeline.BufferingSink(sink);
+        final OutputPipeline output = new OutputPipeline(OutputPipeline.Mode.STREAM, buffer, 10, null);
+        output.start("test");
+        output.getStdout().consumeLine("a");
+        output.getStderr().consumeLine("b");
+        output.close();
+        Assert.assertTrue(received.isEmpty());
+
+        buffer.flush();
+        Assert.assertEquals("[O:a, E:b]", received.toString());
+        buffer.flush();
+        Assert.assertEquals(2, received.size());
+    }
+}
@@ -0,0 +1,69 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.NoSuchAlgorithmException;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class PackageJsonDigestTest {
+    private static final String PACKAGE_JSON = "{\r\n"
+            + "  \"version\": \"1.0.0\", \"name\": \"demo\",\r\n"
+            + "  \"scripts\": {\"test\": \"a && b > out.txt\", \"build\": \"x\"},\r\n"
+            + "  \"dependencies\": {\"zeta\": \"^1.0\", \"alpha\": \"<2.0 || =3\"},\r\n"
+            + "  \"files\": [{\"z\": 1, \"a\": 2}, [{\"z\": 1, \"a\": 2}]],\r\n"
+            + "  \"nothing\": null, \"num\": 1.50e3, \"flag\": true, \"text\": \"\\u017elu\\u0165ou\\u010dk\\u00fd k\\u016f\\u0148 'quoted'\"\r\n"
+            + "}\r\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void md5IsCompatibleWithPreviousVersions() throws IOException, NoSuchAlgorithmException {
+        final File packageJson = tmp.newFile("package.json");
+        FileUtils.fileWrite(packageJson, "UTF-8", PACKAGE_JSON);
+
+        // how the hash used to be computed
+        final JsonObject root = (JsonObject) new JsonParser().parse(PACKAGE_JSON);
+        root.addProperty("name", "ANONYMIZED");
+        root.addProperty("version", "ANONYMIZED");
+        JsonUtils.sortJsonDeep(root);
+        final String legacy = new GsonBuilder().setPrettyPrinting().create().toJson(root);
+        final StringWriter canonical = new StringWriter();
+        PackageJsonDigest.writeCanonical(PackageJsonDigest.parse(packageJson, true), canonical);
+        Assert.assertEquals(legacy, canonical.toString());
+        // previous versions used platform charset; the hashes are the same where it is UTF-8
+        Assert.assertEquals(md5(legacy), new PackageJsonDigest("MD5", true).digest(packageJson));
+
+        final String normalized = PACKAGE_JSON.replace("\r\n", "\n");
+        Assert.assertEquals(md5(normalized), new PackageJsonDigest("MD5", false).digest(packageJson));
+    }
+
+    @Test
+    public void supportsOtherAlgorithms() throws IOException, NoSuchAlgorithmException {
+        final File packageJson = tmp.newFile("package.json");
+        FileUtils.fileWrite(packageJson, "UTF-8", PACKAGE_JSON);
+        Assert.assertEquals(64, new PackageJsonDigest("SHA-256", true).digest(packageJson).length());
+    }
+
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void rejectsUnknownAlgorithm() throws NoSuchAlgorithmException {
+        new PackageJsonDigest("NO-SUCH-HASH", true);
+    }
+
+    private static String md5(String text) throws IOException, NoSuchAlgorithmException {
+        return Utils.hex(Utils.md5sum(new ByteArrayInputStream(text.getBytes("UTF-8"))));
+    }
+}
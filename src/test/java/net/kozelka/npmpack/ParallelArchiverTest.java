@@ -0,0 +1,94 @@
+package net.kozelka.npmpack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class ParallelArchiverTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File tree;
+
+    @Before
+    public void createTree() throws IOException {
+        tree = tmp.newFolder("node_modules");
+        final Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            final StringBuilder sb = new StringBuilder();
+            // some files span multiple gzip blocks
+            final int lines = i % 50 == 0 ? 20000 : 10;
+            for (int j = 0; j < lines; j++) {
+                sb.append("line ").append(j).append(' ').append(random.nextInt()).append('\n');
+            }
+            final File file = new File(tree, "pkg" + (i % 9) + "/lib/file" + i + ".js");
+            file.getParentFile().mkdirs();
+            FileUtils.fileWrite(file, sb.toString());
+        }
+        new File(tree, "pkg0/.bin").mkdirs();
+        FileUtils.fileWrite(new File(tree, "pkg0/.bin/cli"), "excluded");
+    }
+
+    @Test
+    public void zipMatchesTree() throws IOException {
+        final File zip = new File(tmp.getRoot(), "test.zip");
+        final ParallelArchiver archiver = new ParallelArchiver(tree, new String[]{"**/.bin/**"});
+        archiver.setThreads(4);
+        archiver.createZip(zip);
+
+        final File out = tmp.newFolder("out");
+        new ZipExtractor(zip, out).extract();
+        assertSameContent(tree, out);
+        Assert.assertFalse(new File(out, "pkg0/.bin/cli").exists());
+    }
+
+    @Test
+    public void tarGzIsStandardGzip() throws IOException {
+        final File tgz = new File(tmp.getRoot(), "test.tgz");
+        final ParallelArchiver archiver = new ParallelArchiver(tree, new String[]{"**/.bin/**"});
+        archiver.setThreads(4);
+        archiver.createTarGz(tgz);
+
+        final Map<String, String> entries = new HashMap<String, String>();
+        final TarArchiveInputStream tis = new TarArchiveInputStream(new GZIPInputStream(new FileInputStream(tgz)));
+        try {
+            TarArchiveEntry entry = tis.getNextTarEntry();
+            while (entry != null) {
+                if (entry.isFile()) {
+                    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    IOUtils.copy(tis, bos);
+                    entries.put(entry.getName(), bos.toString("UTF-8"));
+                }
+                entry = tis.getNextTarEntry();
+            }
+        } finally {
+            tis.close();
+        }
+        Assert.assertEquals(200, entries.size());
+        Assert.assertEquals(FileUtils.fileRead(new File(tree, "pkg0/lib/file0.js")), entries.get("pkg0/lib/file0.js"));
+        Assert.assertEquals(FileUtils.fileRead(new File(tree, "pkg5/lib/file50.js")), entries.get("pkg5/lib/file50.js"));
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        for (String path : ParallelArchiver.scan(expected, new String[]{"**/.bin/**"}).getIncludedFiles()) {
+            Assert.assertEquals(path, FileUtils.fileRead(new File(expected, path)), FileUtils.fileRead(new File(actual, path)));
+        }
+    }
+}
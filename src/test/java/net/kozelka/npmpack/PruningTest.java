@@ -0,0 +1,91 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class PruningTest {
+    private static final List<String> NOTHING = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void standardProfile() {
+        final Pruning pruning = Pruning.create("standard", NOTHING, NOTHING);
+        Assert.assertTrue(pruning.isPruned("lodash/README.md"));
+        Assert.assertTrue(pruning.isPruned("lodash/test/index.js"));
+        Assert.assertTrue(pruning.isPruned("a/node_modules/b/docs/api.html"));
+        Assert.assertTrue(pruning.isPruned("rxjs/src/index.ts"));
+        Assert.assertTrue(pruning.isPruned("rxjs/bundles/rx.js.map"));
+        Assert.assertFalse(pruning.isPruned("rxjs/index.d.ts"));
+        Assert.assertFalse(pruning.isPruned("lodash/index.js"));
+        Assert.assertFalse(pruning.isPruned("lodash/LICENSE"));
+        Assert.assertFalse(pruning.isPruned("lodash/package.json"));
+        // a package named "test" is not a test directory
+        Assert.assertFalse(pruning.isPruned("test/index.js"));
+        Assert.assertEquals("pruned-standard", pruning.getId());
+    }
+
+    @Test
+    public void noneProfile() {
+        final Pruning pruning = Pruning.create(Pruning.NONE, NOTHING, NOTHING);
+        Assert.assertTrue(pruning.isEmpty());
+        Assert.assertNull(pruning.getId());
+        Assert.assertFalse(pruning.isPruned("lodash/README.md"));
+        Assert.assertSame(pruning, Pruning.none());
+    }
+
+    @Test
+    public void userRules() {
+        final Pruning pruning = Pruning.create("docs", Arrays.asList("**/*.flow"), Arrays.asList("marked/README.md"));
+        Assert.assertTrue(pruning.isPruned("lodash/README.md"));
+        Assert.assertFalse(pruning.isPruned("marked/README.md"));
+        Assert.assertTrue(pruning.isPruned("lodash/index.js.flow"));
+        Assert.assertTrue(pruning.getId().startsWith("pruned-docs-"));
+        Assert.assertEquals(pruning.getId(), Pruning.create("docs", Arrays.asList("**/*.flow"), Arrays.asList("marked/README.md")).getId());
+        Assert.assertFalse(pruning.getId().equals(Pruning.create("docs", Arrays.asList("**/*.flow"), NOTHING).getId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownProfile() {
+        Pruning.create("everything", NOTHING, NOTHING);
+    }
+
+    @Test
+    public void scanKeepsIncludedFilesInPrunedDirectories() throws IOException {
+        final File nodeModules = tmp.newFolder("node_modules");
+        for (String path : Arrays.asList("pkg/index.js", "pkg/README.md", "pkg/test/a.js", "pkg/test/fixtures.d.ts", "pkg/.bin/x")) {
+            final File file = new File(nodeModules, path);
+            file.getParentFile().mkdirs();
+            FileUtils.fileWrite(file, path);
+        }
+        final Pruning pruning = Pruning.create("standard", NOTHING, NOTHING);
+        final String[] excludes = {"**/.bin/**"};
+        Assert.assertEquals(Arrays.asList("pkg/index.js", "pkg/test/fixtures.d.ts"),
+                sortedFiles(ParallelArchiver.scan(nodeModules, excludes, pruning).getIncludedFiles()));
+        // layers are scanned from their own directory
+        Assert.assertEquals(Arrays.asList("index.js", "test/fixtures.d.ts"),
+                sortedFiles(ParallelArchiver.scan(new File(nodeModules, "pkg"), excludes, pruning.under("pkg")).getIncludedFiles()));
+        Assert.assertEquals(4, Manifest.fromDirectory(nodeModules, excludes).size());
+        Assert.assertEquals(2, Manifest.fromDirectory(nodeModules, excludes, pruning).size());
+    }
+
+    private static List<String> sortedFiles(String[] paths) {
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = paths[i].replace(File.separatorChar, '/');
+        }
+        Arrays.sort(paths);
+        return Arrays.asList(paths);
+    }
+}
@@ -0,0 +1,98 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class RepositoryLookupTest {
+    private static final String PATH = "npmpack/node_modules/0123abcd/node_modules-0123abcd.zip";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File localFile;
+    private File remoteFile;
+    private StandInRemote remote;
+
+    /**
+     * Copies from a directory laid out like a repository, counting the requests.
+     */
+    private final class StandInRemote implements RepositoryLookup.Remote {
+        private int requests;
+
+        @Override
+        public boolean download() throws IOException {
+            requests++;
+            if (!remoteFile.isFile()) {
+                return false;
+            }
+            FileUtils.copyFile(remoteFile, localFile);
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        localFile = new File(tmp.newFolder("local"), PATH);
+        remoteFile = new File(tmp.newFolder("remote"), PATH);
+        remote = new StandInRemote();
+    }
+
+    @Test
+    public void localIsNotCheckedRemotely() throws IOException {
+        localFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(localFile, "local");
+        FileUtils.fileWrite(createRemote(), "remote");
+        Assert.assertEquals(RepositoryLookup.Result.LOCAL, new RepositoryLookup(60000).find(localFile, remote));
+        Assert.assertEquals(0, remote.requests);
+        Assert.assertEquals("local", FileUtils.fileRead(localFile));
+    }
+
+    @Test
+    public void downloadsMissingLocally() throws IOException {
+        FileUtils.fileWrite(createRemote(), "remote");
+        final RepositoryLookup lookup = new RepositoryLookup(60000);
+        Assert.assertEquals(RepositoryLookup.Result.DOWNLOADED, lookup.find(localFile, remote));
+        Assert.assertEquals(RepositoryLookup.Result.LOCAL, lookup.find(localFile, remote));
+        Assert.assertEquals(1, remote.requests);
+    }
+
+    @Test
+    public void missIsRemembered() throws IOException {
+        final RepositoryLookup lookup = new RepositoryLookup(60000);
+        Assert.assertEquals(RepositoryLookup.Result.NOT_FOUND, lookup.find(localFile, remote));
+        Assert.assertTrue(RepositoryLookup.missMarker(localFile).isFile());
+        // even when it appears remotely, the miss holds until it expires
+        FileUtils.fileWrite(createRemote(), "remote");
+        Assert.assertEquals(RepositoryLookup.Result.KNOWN_MISSING, lookup.find(localFile, remote));
+        Assert.assertEquals(1, remote.requests);
+
+        // expired
+        RepositoryLookup.missMarker(localFile).setLastModified(System.currentTimeMillis() - 120000);
+        Assert.assertEquals(RepositoryLookup.Result.DOWNLOADED, lookup.find(localFile, remote));
+        Assert.assertFalse(RepositoryLookup.missMarker(localFile).exists());
+        Assert.assertEquals(2, remote.requests);
+    }
+
+    @Test
+    public void zeroTtlDisablesNegativeCache() throws IOException {
+        final RepositoryLookup lookup = new RepositoryLookup(0);
+        Assert.assertEquals(RepositoryLookup.Result.NOT_FOUND, lookup.find(localFile, remote));
+        Assert.assertEquals(RepositoryLookup.Result.NOT_FOUND, lookup.find(localFile, remote));
+        Assert.assertEquals(2, remote.requests);
+        Assert.assertFalse(RepositoryLookup.missMarker(localFile).exists());
+    }
+
+    private File createRemote() {
+        remoteFile.getParentFile().mkdirs();
+        return remoteFile;
+    }
+}
@@ -0,0 +1,207 @@
+package net.kozelka.npmpack;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class TarZstdArchiverTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundtrip() throws IOException {
+        final File tree = tmp.newFolder("node_modules");
+        for (int i = 0; i < 50; i++) {
+            final File file = new File(tree, "pkg" + (i % 4) + "/lib/file" + i + ".js");
+            file.getParentFile().mkdirs();
+            FileUtils.fileWrite(file, "module.exports = " + i + ";\n");
+        }
+        final File cli = new File(tree, "pkg0/bin/cli.js");
+        cli.getParentFile().mkdirs();
+        FileUtils.fileWrite(cli, "#!/usr/bin/env node");
+        cli.setExecutable(true);
+
+        final File archive = new File(tmp.getRoot(), "test.tar.zst");
+        final TarZstdArchiver archiver = new TarZstdArchiver();
+        archiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "test"));
+        archiver.setDestFile(archive);
+        archiver.addDirectory(tree);
+        archiver.createArchive();
+
+        final File out = tmp.newFolder("out");
+        final TarZstdUnArchiver unArchiver = new TarZstdUnArchiver();
+        unArchiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "test"));
+        unArchiver.setSourceFile(archive);
+        unArchiver.setDestDirectory(out);
+        unArchiver.setUseJvmChmod(true);
+        unArchiver.extract();
+
+        for (int i = 0; i < 50; i++) {
+            final String path = "pkg" + (i % 4) + "/lib/file" + i + ".js";
+            Assert.assertEquals(path, FileUtils.fileRead(new File(tree, path)), FileUtils.fileRead(new File(out, path)));
+        }
+        final File extractedCli = new File(out, "pkg0/bin/cli.js");
+        Assert.assertEquals("#!/usr/bin/env node", FileUtils.fileRead(extractedCli));
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Assert.assertTrue(Files.getPosixFilePermissions(extractedCli.toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+        }
+    }
+
+    @Test
+    public void extractsHardLinks() throws IOException {
+        Assume.assumeTrue(Utils.isPosix());
+        final File archive = new File(tmp.getRoot(), "links.tar.zst");
+        final TarArchiveOutputStream tos = createTar(archive);
+        try {
+            addFile(tos, "pkg/index.js", "index");
+            addLink(tos, "pkg/copy.js", "pkg/index.js", TarConstants.LF_LINK);
+        } finally {
+            tos.close();
+        }
+        final File out = tmp.newFolder("out");
+        unArchiver(archive, out).extract();
+        Assert.assertEquals("index", FileUtils.fileRead(new File(out, "pkg/copy.js")));
+        Assert.assertEquals(Files.getAttribute(new File(out, "pkg/index.js").toPath(), "unix:ino"),
+                Files.getAttribute(new File(out, "pkg/copy.js").toPath(), "unix:ino"));
+    }
+
+    @Test
+    public void rejectsLinksOutsideOfTarget() throws IOException {
+        Assume.assumeTrue(Utils.isPosix());
+        final File outside = tmp.newFolder("outside");
+        FileUtils.fileWrite(new File(outside, "secret"), "secret");
+        final String[][] attacks = {
+            {"a", "../outside", "symlink"},
+            {"a", "/etc", "symlink"},
+            {"a", "../outside/secret", "hardlink"},
+        };
+        for (String[] attack : attacks) {
+            final File archive = new File(tmp.getRoot(), "evil.tar.zst");
+            final TarArchiveOutputStream tos = createTar(archive);
+            try {
+                addLink(tos, attack[0], attack[1], attack[2].equals("symlink") ? TarConstants.LF_SYMLINK : TarConstants.LF_LINK);
+                addFile(tos, "a/x", "x");
+            } finally {
+                tos.close();
+            }
+            final File out = tmp.newFolder();
+            try {
+                unArchiver(archive, out).extract();
+                Assert.fail("link accepted: " + attack[1]);
+            } catch (ArchiverException e) {
+                Assert.assertFalse(new File(outside, "x").exists());
+                Assert.assertFalse(Files.exists(new File(out, "a").toPath(), LinkOption.NOFOLLOW_LINKS));
+            }
+        }
+    }
+
+    @Test
+    public void refusesToWriteThroughExtractedLinks() throws IOException {
+        Assume.assumeTrue(Utils.isPosix());
+        final File archive = new File(tmp.getRoot(), "evil.tar.zst");
+        final TarArchiveOutputStream tos = createTar(archive);
+        try {
+            addFile(tos, "sub/keep", "keep");
+            // the link itself points inside, but nothing may be written through it
+            addLink(tos, "a", "sub", TarConstants.LF_SYMLINK);
+            addFile(tos, "a/x", "x");
+        } finally {
+            tos.close();
+        }
+        final File out = tmp.newFolder("out");
+        try {
+            unArchiver(archive, out).extract();
+            Assert.fail("extracted through a link");
+        } catch (ArchiverException e) {
+            Assert.assertFalse(new File(out, "sub/x").exists());
+        }
+    }
+
+    @Test
+    public void roundtripsReadOnlyDirectory() throws IOException {
+        final File tree = tmp.newFolder("node_modules");
+        final File readOnly = new File(tree, "pkg/lib");
+        readOnly.mkdirs();
+        FileUtils.fileWrite(new File(readOnly, "index.js"), "module.exports = 1;");
+        final long time = 1500000000000L;
+        readOnly.setLastModified(time);
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Utils.chmod(readOnly, 0555);
+        }
+
+        final File archive = new File(tmp.getRoot(), "test.tar.zst");
+        final TarZstdArchiver archiver = new TarZstdArchiver();
+        archiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "test"));
+        archiver.setDestFile(archive);
+        archiver.addDirectory(tree);
+        archiver.createArchive();
+
+        final File out = tmp.newFolder("out");
+        final TarZstdUnArchiver unArchiver = unArchiver(archive, out);
+        unArchiver.setUseJvmChmod(true);
+        unArchiver.extract();
+
+        final File extracted = new File(out, "pkg/lib");
+        try {
+            Assert.assertEquals("module.exports = 1;", FileUtils.fileRead(new File(extracted, "index.js")));
+            Assert.assertEquals(time, extracted.lastModified());
+            if (posix) {
+                Assert.assertEquals(PosixFilePermissions.fromString("r-xr-xr-x"), Files.getPosixFilePermissions(extracted.toPath()));
+            }
+        } finally {
+            // so that the temporary folder can be deleted
+            readOnly.setWritable(true);
+            extracted.setWritable(true);
+        }
+    }
+
+    private static TarArchiveOutputStream createTar(File archive) throws IOException {
+        return new TarArchiveOutputStream(new ZstdOutputStream(new FileOutputStream(archive)));
+    }
+
+    private static void addFile(TarArchiveOutputStream tos, String name, String content) throws IOException {
+        final byte[] bytes = content.getBytes("UTF-8");
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tos.putArchiveEntry(entry);
+        tos.write(bytes);
+        tos.closeArchiveEntry();
+    }
+
+    private static void addLink(TarArchiveOutputStream tos, String name, String linkName, byte linkFlag) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name, linkFlag);
+        entry.setLinkName(linkName);
+        tos.putArchiveEntry(entry);
+        tos.closeArchiveEntry();
+    }
+
+    private static TarZstdUnArchiver unArchiver(File archive, File out) {
+        final TarZstdUnArchiver unArchiver = new TarZstdUnArchiver();
+        unArchiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "test"));
+        unArchiver.setSourceFile(archive);
+        unArchiver.setDestDirectory(out);
+        return unArchiver;
+    }
+}
@@ -0,0 +1,167 @@
+package net.kozelka.npmpack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Petr Kozelka
+ */
+public class TaskGraphTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void independentTasksRunConcurrently() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final TaskGraph graph = new TaskGraph();
+        graph.setThreads(2);
+        graph.add("less", NONE, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                bothStarted.countDown();
+                Assert.assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+                order.add("less");
+                return null;
+            }
+        });
+        graph.add("lint", NONE, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                bothStarted.countDown();
+                Assert.assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+                order.add("lint");
+                return null;
+            }
+        });
+        graph.add("test", Arrays.asList("less", "lint"), new Callable<Void>() {
+            @Override
+            public Void call() {
+                order.add("test");
+                return null;
+            }
+        });
+        graph.run();
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals("test", order.get(2));
+        Assert.assertEquals(Arrays.asList("less", "lint", "test"), new ArrayList<String>(graph.getTaskMillis().keySet()));
+    }
+
+    @Test
+    public void failureCancelsOthers() throws Exception {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicBoolean dependentRan = new AtomicBoolean();
+        final TaskGraph graph = new TaskGraph();
+        graph.setThreads(2);
+        graph.add("slow", NONE, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                }
+                return null;
+            }
+        });
+        graph.add("broken", NONE, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Thread.sleep(100);
+                throw new IOException("broken failed");
+            }
+        });
+        graph.add("after", Arrays.asList("broken"), new Callable<Void>() {
+            @Override
+            public Void call() {
+                dependentRan.set(true);
+                return null;
+            }
+        });
+        final long startTime = System.currentTimeMillis();
+        try {
+            graph.run();
+            Assert.fail("failure expected");
+        } catch (IOException e) {
+            Assert.assertEquals("broken failed", e.getMessage());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - startTime < 5000);
+        Thread.sleep(100);
+        Assert.assertTrue(interrupted.get());
+        Assert.assertFalse(dependentRan.get());
+    }
+
+    @Test
+    public void noTaskRunsAfterFailure() throws Exception {
+        final AtomicBoolean stubbornFinished = new AtomicBoolean();
+        final AtomicBoolean stubbornInterrupted = new AtomicBoolean();
+        final AtomicBoolean queuedStarted = new AtomicBoolean();
+        final TaskGraph graph = new TaskGraph();
+        graph.setThreads(2);
+        graph.add("stubborn", NONE, new Callable<Void>() {
+            @Override
+            public Void call() {
+                // like a process that takes a while to terminate
+                final long endTime = System.currentTimeMillis() + 500;
+                while (System.currentTimeMillis() < endTime) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        // keeps going
+                        stubbornInterrupted.set(true);
+                    }
+                }
+                stubbornFinished.set(true);
+                return null;
+            }
+        });
+        graph.add("broken", NONE, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Thread.sleep(100);
+                throw new IOException("broken failed");
+            }
+        });
+        graph.add("queued", NONE, new Callable<Void>() {
+            @Override
+            public Void call() {
+                queuedStarted.set(true);
+                return null;
+            }
+        });
+        try {
+            graph.run();
+            Assert.fail("failure expected");
+        } catch (IOException e) {
+            Assert.assertEquals("broken failed", e.getMessage());
+        }
+        Assert.assertTrue(stubbornInterrupted.get());
+        Assert.assertTrue("run must wait for the running sibling", stubbornFinished.get());
+        Thread.sleep(200);
+        Assert.assertFalse("queued task must not start after the failure", queuedStarted.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cycleIsRejected() throws Exception {
+        final TaskGraph graph = new TaskGraph();
+        graph.add("a", Arrays.asList("b"), null);
+        graph.add("b", Arrays.asList("a"), null);
+        graph.run();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownDependencyIsRejected() throws Exception {
+        final TaskGraph graph = new TaskGraph();
+        graph.add("a", Arrays.asList("missing"), null);
+        graph.run();
+    }
+}
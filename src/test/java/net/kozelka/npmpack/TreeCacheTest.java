@@ -0,0 +1,109 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class TreeCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File createTree(String content) throws IOException {
+        final File tree = new File(tmp.getRoot(), "node_modules");
+        final File file = new File(tree, "pkg/index.js");
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, content);
+        return tree;
+    }
+
+    @Test
+    public void putAndTake() throws IOException {
+        final TreeCache cache = new TreeCache(new File(tmp.getRoot(), "trees"));
+        final File tree = createTree("first");
+        Assert.assertFalse(cache.contains("aaa"));
+        Assert.assertTrue(cache.put("aaa", tree));
+        Assert.assertFalse(tree.exists());
+        Assert.assertTrue(cache.contains("aaa"));
+        Assert.assertEquals(5, cache.getTotalBytes());
+
+        Assert.assertFalse(cache.take("bbb", tree));
+        Assert.assertTrue(cache.take("aaa", tree));
+        Assert.assertEquals("first", FileUtils.fileRead(new File(tree, "pkg/index.js")));
+        Assert.assertFalse(cache.contains("aaa"));
+        Assert.assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void putTrustsKnownSize() throws IOException {
+        final TreeCache cache = new TreeCache(new File(tmp.getRoot(), "trees"));
+        final File tree = createTree("first");
+        final long size = Manifest.fromDirectory(tree, null).getTotalSize();
+        Assert.assertEquals(5, size);
+        Assert.assertTrue(cache.put("aaa", tree, 1000));
+        Assert.assertEquals(1000, cache.getTotalBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyStored() throws IOException, InterruptedException {
+        final File directory = new File(tmp.getRoot(), "trees");
+        final TreeCache cache = new TreeCache(directory);
+        for (String key : Arrays.asList("aaa", "bbb", "ccc")) {
+            Assert.assertTrue(cache.put(key, createTree(key + "-content")));
+            // distinct store times
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(Collections.<String>emptyList(), cache.evict());
+
+        cache.setMaxEntries(2);
+        Assert.assertEquals(Collections.singletonList("aaa"), cache.evict());
+        Assert.assertFalse(cache.contains("aaa"));
+        Assert.assertTrue(cache.contains("bbb"));
+
+        cache.setMaxEntries(0);
+        cache.setMaxBytes(15);
+        final List<String> evicted = cache.evict();
+        Assert.assertEquals(Collections.singletonList("bbb"), evicted);
+        Assert.assertTrue(cache.contains("ccc"));
+
+        final TreeDeleter deleter = new TreeDeleter(directory);
+        deleter.start();
+        Assert.assertEquals(2, deleter.join());
+        Assert.assertEquals(Arrays.asList("ccc", "ccc.properties"), sorted(directory.list()));
+    }
+
+    @Test
+    public void evictsForFreeSpace() throws IOException {
+        final TreeCache cache = new TreeCache(new File(tmp.getRoot(), "trees"));
+        Assert.assertTrue(cache.put("aaa", createTree("x")));
+        // no filesystem has this much space
+        cache.setMinFreeBytes(Long.MAX_VALUE);
+        Assert.assertEquals(Collections.singletonList("aaa"), cache.evict());
+    }
+
+    @Test
+    public void removesIncompleteEntries() throws IOException {
+        final File directory = new File(tmp.getRoot(), "trees");
+        final TreeCache cache = new TreeCache(directory);
+        Assert.assertTrue(cache.put("aaa", createTree("x")));
+        new File(directory, "partial/pkg").mkdirs();
+        Assert.assertFalse(cache.contains("partial"));
+        Assert.assertEquals(Collections.<String>emptyList(), cache.evict());
+        Assert.assertFalse(new File(directory, "partial").exists());
+        Assert.assertTrue(cache.contains("aaa"));
+    }
+
+    private static List<String> sorted(String[] names) {
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
@@ -0,0 +1,43 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class TreeDeleterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void deletesBuriedTreesOnly() throws IOException {
+        final File backupDir = tmp.newFolder("backup");
+        for (int run = 0; run < 2; run++) {
+            final File tree = new File(backupDir, "node_modules");
+            for (int i = 0; i < 20; i++) {
+                final File file = new File(tree, "pkg" + i + "/lib/index.js");
+                file.getParentFile().mkdirs();
+                FileUtils.fileWrite(file, "x");
+            }
+            final File tombstone = TreeDeleter.bury(tree);
+            Assert.assertFalse(tree.exists());
+            Assert.assertTrue(tombstone.isDirectory());
+        }
+        final File kept = new File(backupDir, "node_modules");
+        kept.mkdirs();
+
+        final TreeDeleter deleter = new TreeDeleter(backupDir);
+        deleter.setThreads(3);
+        deleter.start();
+        Assert.assertEquals(2, deleter.join());
+        final String[] remaining = backupDir.list();
+        Assert.assertEquals(1, remaining.length);
+        Assert.assertEquals("node_modules", remaining[0]);
+    }
+}
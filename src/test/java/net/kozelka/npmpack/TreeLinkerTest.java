@@ -0,0 +1,56 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class TreeLinkerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void linksWholeTree() throws IOException {
+        final File store = tmp.newFolder("store");
+        FileUtils.fileWrite(new File(store, "package.json"), "{}");
+        new File(store, "a/lib").mkdirs();
+        FileUtils.fileWrite(new File(store, "a/lib/index.js"), "module.exports = 1;");
+        new File(store, "empty").mkdirs();
+
+        final File target = new File(tmp.getRoot(), "node_modules");
+        final TreeLinker linker = new TreeLinker(store);
+        linker.linkTo(target);
+
+        Assert.assertEquals(2, linker.getLinkCount() + linker.getCopyCount());
+        Assert.assertEquals("module.exports = 1;", FileUtils.fileRead(new File(target, "a/lib/index.js")));
+        Assert.assertTrue(new File(target, "empty").isDirectory());
+        if (linker.getCopyCount() == 0) {
+            Assert.assertTrue(Files.isSameFile(new File(store, "package.json").toPath(), new File(target, "package.json").toPath()));
+        }
+    }
+
+    @Test
+    public void detachedFilesDoNotChangeTheSource() throws IOException {
+        final File store = tmp.newFolder("store");
+        new File(store, "addon/build").mkdirs();
+        FileUtils.fileWrite(new File(store, "addon/build/config.gypi"), "old");
+        FileUtils.fileWrite(new File(store, "other.js"), "other");
+        final File target = new File(tmp.getRoot(), "node_modules");
+        new TreeLinker(store).linkTo(target);
+
+        final int copied = TreeLinker.detach(new File(target, "addon"));
+        // rewritten in place, the way node-gyp does it
+        FileUtils.fileWrite(new File(target, "addon/build/config.gypi"), "new");
+
+        Assert.assertEquals(1, copied);
+        Assert.assertEquals("old", FileUtils.fileRead(new File(store, "addon/build/config.gypi")));
+        Assert.assertEquals(0, TreeLinker.detach(new File(target, "addon")));
+    }
+}
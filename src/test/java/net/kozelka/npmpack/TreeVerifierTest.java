@@ -0,0 +1,67 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class TreeVerifierTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void detectsMissingAndModifiedFiles() throws IOException {
+        final File dir = tmp.newFolder("node_modules");
+        new File(dir, "a").mkdirs();
+        FileUtils.fileWrite(new File(dir, "a/one.js"), "one");
+        FileUtils.fileWrite(new File(dir, "a/two.js"), "two");
+        FileUtils.fileWrite(new File(dir, "a/three.js"), "three");
+        final Manifest manifest = Manifest.fromDirectory(dir, null);
+        Assert.assertTrue(new TreeVerifier(dir).verify(manifest).isEmpty());
+
+        // same size, different content and time
+        FileUtils.fileWrite(new File(dir, "a/two.js"), "TWO");
+        new File(dir, "a/two.js").setLastModified(1000);
+        // same content, different time
+        new File(dir, "a/one.js").setLastModified(1000);
+        new File(dir, "a/three.js").delete();
+
+        final TreeVerifier verifier = new TreeVerifier(dir);
+        Assert.assertEquals(Arrays.asList("a/three.js", "a/two.js"), verifier.verify(manifest));
+        Assert.assertEquals(2, verifier.getHashedCount());
+    }
+
+    @Test
+    public void acceptsFilesRewrittenAfterUnpackOnceRescanned() throws IOException {
+        final File dir = tmp.newFolder("node_modules");
+        new File(dir, "addon/build").mkdirs();
+        new File(dir, "plain").mkdirs();
+        FileUtils.fileWrite(new File(dir, "addon/build/config.gypi"), "unpacked");
+        FileUtils.fileWrite(new File(dir, "addon/build/Makefile"), "all:");
+        FileUtils.fileWrite(new File(dir, "plain/index.js"), "plain");
+        final Manifest manifest = Manifest.fromDirectory(dir, null);
+
+        // what node-gyp does on rebuild
+        FileUtils.fileWrite(new File(dir, "addon/build/config.gypi"), "regenerated");
+        new File(dir, "addon/build/Makefile").delete();
+        FileUtils.fileWrite(new File(dir, "addon/build/addon.node"), "binary");
+        Assert.assertEquals(Arrays.asList("addon/build/Makefile", "addon/build/config.gypi"), new TreeVerifier(dir).verify(manifest));
+
+        manifest.rescan(dir, "addon", null);
+        Assert.assertTrue(new TreeVerifier(dir).verify(manifest).isEmpty());
+        Assert.assertEquals(3, manifest.size());
+        Assert.assertNotNull(manifest.get("addon/build/addon.node"));
+        Assert.assertNotNull(manifest.get("plain/index.js"));
+
+        FileUtils.fileWrite(new File(dir, "plain/index.js"), "PLAIN");
+        new File(dir, "plain/index.js").setLastModified(1000);
+        Assert.assertEquals(Arrays.asList("plain/index.js"), new TreeVerifier(dir).verify(manifest));
+    }
+}
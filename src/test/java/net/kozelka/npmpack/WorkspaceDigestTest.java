@@ -0,0 +1,118 @@
+package net.kozelka.npmpack;
+
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class WorkspaceDigestTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.newFolder("monorepo");
+        write("package.json", "{\"name\": \"mono\", \"version\": \"1.0.0\", \"workspaces\": [\"packages/*\", \"!packages/ignored\"],"
+                + " \"devDependencies\": {\"grunt\": \"1.0.0\"}}");
+        write("packages/a/package.json", "{\"name\": \"@mono/a\", \"version\": \"1.0.0\", \"dependencies\": {\"lodash\": \"4.17.0\"}}");
+        write("packages/b/package.json", "{\"name\": \"@mono/b\", \"version\": \"1.0.0\"}");
+        write("packages/ignored/package.json", "{\"name\": \"ignored\"}");
+        write("packages/a/node_modules/x/package.json", "{\"name\": \"x\"}");
+        write("package-lock.json", "{\"name\": \"mono\", \"version\": \"1.0.0\", \"lockfileVersion\": 3, \"packages\": {"
+                + "\"\": {\"name\": \"mono\", \"version\": \"1.0.0\", \"workspaces\": [\"packages/*\"]},"
+                + "\"packages/a\": {\"name\": \"@mono/a\", \"version\": \"1.0.0\"},"
+                + "\"node_modules/lodash\": {\"version\": \"4.17.0\"}}}");
+    }
+
+    private void write(String path, String content) throws IOException {
+        final File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, "UTF-8", content);
+    }
+
+    private String digest(boolean anonymize) throws IOException, NoSuchAlgorithmException {
+        final WorkspaceDigest digest = new WorkspaceDigest(new File(root, "package.json"), "SHA-256", anonymize);
+        digest.setThreads(2);
+        return digest.digest();
+    }
+
+    @Test
+    public void discoversMembersAndLockfile() throws IOException, NoSuchAlgorithmException {
+        final WorkspaceDigest digest = new WorkspaceDigest(new File(root, "package.json"), "MD5", true);
+        digest.digest();
+        Assert.assertEquals(Arrays.asList("package-lock.json", "package.json", "packages/a/package.json", "packages/b/package.json"),
+                digest.getFiles());
+        Assert.assertEquals(Arrays.asList("@mono/a", "@mono/b"), new ArrayList<String>(digest.getMembers().keySet()));
+        Assert.assertEquals("packages/a", digest.getMembers().get("@mono/a"));
+    }
+
+    @Test
+    public void changeAnywhereChangesHash() throws IOException, NoSuchAlgorithmException {
+        final String before = digest(true);
+        Assert.assertEquals(before, digest(true));
+        write("packages/b/package.json", "{\"name\": \"@mono/b\", \"version\": \"1.0.0\", \"dependencies\": {\"q\": \"1.0.0\"}}");
+        final String memberChanged = digest(true);
+        Assert.assertFalse(before.equals(memberChanged));
+        write("package-lock.json", "{\"lockfileVersion\": 3, \"packages\": {\"node_modules/lodash\": {\"version\": \"4.17.1\"}}}");
+        Assert.assertFalse(memberChanged.equals(digest(true)));
+    }
+
+    @Test
+    public void anonymizationIgnoresReleaseVersions() throws IOException, NoSuchAlgorithmException {
+        final String before = digest(true);
+        final String notAnonymized = digest(false);
+        // formatting and property order do not matter
+        write("package.json", "{\n  \"workspaces\": [\"packages/*\", \"!packages/ignored\"],\n  \"version\": \"2.0.0\",\n"
+                + "  \"name\": \"renamed\",\n  \"devDependencies\": {\"grunt\": \"1.0.0\"}\n}\n");
+        write("packages/a/package.json", "{\"name\": \"@mono/a\", \"version\": \"2.0.0\", \"dependencies\": {\"lodash\": \"4.17.0\"}}");
+        write("package-lock.json", "{\"name\": \"renamed\", \"version\": \"2.0.0\", \"lockfileVersion\": 3, \"packages\": {"
+                + "\"\": {\"name\": \"renamed\", \"version\": \"2.0.0\", \"workspaces\": [\"packages/*\"]},"
+                + "\"packages/a\": {\"name\": \"@mono/a\", \"version\": \"2.0.0\"},"
+                + "\"node_modules/lodash\": {\"version\": \"4.17.0\"}}}");
+        Assert.assertEquals(before, digest(true));
+        Assert.assertFalse(notAnonymized.equals(digest(false)));
+
+        // member names are kept
+        write("packages/b/package.json", "{\"name\": \"@mono/renamed\", \"version\": \"1.0.0\"}");
+        Assert.assertFalse(before.equals(digest(true)));
+    }
+
+    @Test
+    public void withoutMembers() throws IOException, NoSuchAlgorithmException {
+        final WorkspaceDigest digest = new WorkspaceDigest(new File(root, "package.json"), "MD5", true);
+        digest.setIncludeMembers(false);
+        final String hash = digest.digest();
+        Assert.assertEquals(Arrays.asList("package-lock.json", "package.json"), digest.getFiles());
+        Assert.assertTrue(digest.getMembers().isEmpty());
+
+        write("packages/b/package.json", "{\"name\": \"@mono/b\", \"dependencies\": {\"q\": \"1.0.0\"}}");
+        Assert.assertEquals(hash, digest.digest());
+        write("package-lock.json", "{\"lockfileVersion\": 3, \"packages\": {\"node_modules/lodash\": {\"version\": \"4.17.1\"}}}");
+        Assert.assertFalse(hash.equals(digest.digest()));
+        Assert.assertEquals(Collections.singletonList(new File(root, "package-lock.json")), WorkspaceDigest.findLockfiles(root));
+        Assert.assertTrue(WorkspaceDigest.isNpmLockfile(new File(root, "package-lock.json")));
+        Assert.assertFalse(WorkspaceDigest.isNpmLockfile(new File(root, "yarn.lock")));
+    }
+
+    @Test
+    public void yarnWorkspacesObject() {
+        final List<String> patterns = WorkspaceDigest.workspacePatterns(
+                new JsonParser().parse("{\"workspaces\": {\"packages\": [\"apps/*\"]}}").getAsJsonObject());
+        Assert.assertEquals(Collections.singletonList("apps/*"), patterns);
+    }
+}
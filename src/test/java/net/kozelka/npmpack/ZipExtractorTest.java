@@ -0,0 +1,217 @@
+package net.kozelka.npmpack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class ZipExtractorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void extractsAllEntriesInParallel() throws IOException {
+        final File zip = new File(tmp.getRoot(), "test.zip");
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            for (int i = 0; i < 500; i++) {
+                addFile(zos, "pkg" + (i % 7) + "/lib/file" + i + ".js", "content of " + i, 0644);
+            }
+            addFile(zos, "pkg0/bin/cli.js", "#!/usr/bin/env node", 0755);
+        } finally {
+            zos.close();
+        }
+
+        final File dest = tmp.newFolder("node_modules");
+        final ZipExtractor extractor = new ZipExtractor(zip, dest);
+        extractor.setThreads(4);
+        extractor.extract();
+
+        for (int i = 0; i < 500; i++) {
+            final File file = new File(dest, "pkg" + (i % 7) + "/lib/file" + i + ".js");
+            Assert.assertEquals("content of " + i, FileUtils.fileRead(file));
+        }
+        final File cli = new File(dest, "pkg0/bin/cli.js");
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Assert.assertTrue(Files.getPosixFilePermissions(cli.toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+            Assert.assertFalse(Files.getPosixFilePermissions(new File(dest, "pkg1/lib/file1.js").toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+        }
+    }
+
+    @Test
+    public void extractsOnlySelectedEntries() throws IOException {
+        final File zip = new File(tmp.getRoot(), "test.zip");
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            addFile(zos, "a/one.txt", "1", 0644);
+            addFile(zos, "b/two.txt", "2", 0644);
+        } finally {
+            zos.close();
+        }
+        final File dest = tmp.newFolder("out");
+        new ZipExtractor(zip, dest).extract(Collections.singleton("b/two.txt"));
+        Assert.assertFalse(new File(dest, "a/one.txt").exists());
+        Assert.assertEquals("2", FileUtils.fileRead(new File(dest, "b/two.txt")));
+    }
+
+    @Test
+    public void unArchiverExtractsSinglePath() throws IOException {
+        final File zip = new File(tmp.getRoot(), "test.zip");
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            addFile(zos, "a/one.txt", "1", 0644);
+            addFile(zos, "b/lib/two.txt", "2", 0644);
+            addFile(zos, "b/three.txt", "3", 0644);
+        } finally {
+            zos.close();
+        }
+        final File dest = tmp.newFolder("out");
+        final ParallelZipUnArchiver unArchiver = new ParallelZipUnArchiver();
+        unArchiver.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "test"));
+        unArchiver.setSourceFile(zip);
+        unArchiver.setThreads(2);
+        unArchiver.extract("b/", dest);
+        Assert.assertFalse(new File(dest, "a").exists());
+        Assert.assertEquals("2", FileUtils.fileRead(new File(dest, "b/lib/two.txt")));
+        Assert.assertEquals("3", FileUtils.fileRead(new File(dest, "b/three.txt")));
+    }
+
+    @Test
+    public void extractsStoredEntriesFromMappedArchive() throws IOException {
+        final File zip = new File(tmp.getRoot(), "stored.zip");
+        // stored entries need a seekable output to get their sizes written into local headers
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(zip);
+        try {
+            zos.setMethod(ZipEntry.STORED);
+            for (int i = 0; i < 100; i++) {
+                addFile(zos, "pkg" + (i % 3) + "/file" + i + ".js", "stored content of " + i, 0644);
+            }
+            zos.setMethod(ZipEntry.DEFLATED);
+            addFile(zos, "pkg0/deflated.js", "deflated content", 0644);
+        } finally {
+            zos.close();
+        }
+        final File dest = tmp.newFolder("out");
+        final ZipExtractor extractor = new ZipExtractor(zip, dest);
+        extractor.setThreads(4);
+        extractor.setMemoryMapped(true);
+        extractor.extract();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("stored content of " + i, FileUtils.fileRead(new File(dest, "pkg" + (i % 3) + "/file" + i + ".js")));
+        }
+        Assert.assertEquals("deflated content", FileUtils.fileRead(new File(dest, "pkg0/deflated.js")));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEntriesOutsideOfTarget() throws IOException {
+        final File zip = new File(tmp.getRoot(), "evil.zip");
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            addFile(zos, "../evil.txt", "x", 0644);
+        } finally {
+            zos.close();
+        }
+        new ZipExtractor(zip, tmp.newFolder("out")).extract();
+    }
+
+    @Test
+    public void extractsLinksInsideOfTarget() throws IOException {
+        Assume.assumeTrue(Utils.isPosix());
+        final File zip = new File(tmp.getRoot(), "links.zip");
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            addFile(zos, "pkg/lib/index.js", "index", 0644);
+            // content of a link entry is its target
+            addFile(zos, "other/main.js", "../pkg/lib/index.js", UnixStat.LINK_FLAG | 0777);
+        } finally {
+            zos.close();
+        }
+        final File dest = tmp.newFolder("out");
+        new ZipExtractor(zip, dest).extract();
+        Assert.assertTrue(Files.isSymbolicLink(new File(dest, "other/main.js").toPath()));
+        Assert.assertEquals("index", FileUtils.fileRead(new File(dest, "other/main.js")));
+    }
+
+    @Test
+    public void rejectsLinksOutsideOfTarget() throws IOException {
+        Assume.assumeTrue(Utils.isPosix());
+        for (String target : new String[] {"../../..", "/etc", "pkg/../..", "sub/../../x"}) {
+            final File zip = new File(tmp.getRoot(), "evil.zip");
+            final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+            try {
+                addFile(zos, "pkg/a", target, UnixStat.LINK_FLAG | 0777);
+            } finally {
+                zos.close();
+            }
+            final File dest = tmp.newFolder();
+            try {
+                new ZipExtractor(zip, dest).extract();
+                Assert.fail("link accepted: " + target);
+            } catch (IOException e) {
+                Assert.assertFalse(Files.exists(new File(dest, "pkg/a").toPath(), LinkOption.NOFOLLOW_LINKS));
+            }
+        }
+    }
+
+    @Test
+    public void refusesToWriteThroughLinks() throws IOException {
+        Assume.assumeTrue(Utils.isPosix());
+        final File outside = tmp.newFolder("outside");
+        final File dest = tmp.newFolder("out");
+        Files.createSymbolicLink(new File(dest, "a").toPath(), outside.toPath());
+        Files.createSymbolicLink(new File(dest, "b.txt").toPath(), new File(outside, "b.txt").toPath());
+        final File zip = new File(tmp.getRoot(), "evil.zip");
+        final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            addFile(zos, "a/x.txt", "x", 0644);
+        } finally {
+            zos.close();
+        }
+        try {
+            new ZipExtractor(zip, dest).extract();
+            Assert.fail("extracted through a link");
+        } catch (IOException e) {
+            Assert.assertFalse(new File(outside, "x.txt").exists());
+        }
+
+        final ZipArchiveOutputStream zos2 = new ZipArchiveOutputStream(new FileOutputStream(zip));
+        try {
+            addFile(zos2, "b.txt", "b", 0644);
+        } finally {
+            zos2.close();
+        }
+        try {
+            new ZipExtractor(zip, dest).extract();
+            Assert.fail("written through a link");
+        } catch (IOException e) {
+            Assert.assertFalse(new File(outside, "b.txt").exists());
+        }
+    }
+
+    private static void addFile(ZipArchiveOutputStream zos, String name, String content, int mode) throws IOException {
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setUnixMode(mode);
+        zos.putArchiveEntry(entry);
+        zos.write(content.getBytes("UTF-8"));
+        zos.closeArchiveEntry();
+    }
+}
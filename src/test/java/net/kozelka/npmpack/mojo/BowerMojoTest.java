@@ -0,0 +1,66 @@
+package net.kozelka.npmpack.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Petr Kozelka
+ */
+public class BowerMojoTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private BowerMojo mojo;
+
+    @Before
+    public void setUp() throws IOException {
+        mojo = new BowerMojo();
+        mojo.basedir = tmp.newFolder("project");
+        mojo.bowerJson = new File(mojo.basedir, "bower.json");
+        mojo.bowerOutputDirectory = new File(mojo.basedir, "target/lib");
+        mojo.hashAlgorithm = "MD5";
+        mojo.anonymize = true;
+    }
+
+    @Test
+    public void upToDateOnlyWithMarkerOfSameHash() throws IOException, NoSuchAlgorithmException {
+        FileUtils.fileWrite(mojo.bowerJson, "{\"name\":\"app\",\"version\":\"1.0\",\"dependencies\":{\"jquery\":\"2.1.0\"}}");
+        final String hash = mojo.hashPackageJson(mojo.bowerJson);
+        Assert.assertFalse("no marker yet", mojo.isUpToDate(hash));
+
+        mojo.bowerOutputDirectory.mkdirs();
+        FileUtils.fileWrite(new File(mojo.bowerOutputDirectory, "bower.json.hash"), hash);
+        Assert.assertTrue(mojo.isUpToDate(hash));
+
+        // anonymized: a new version of the project itself does not matter
+        FileUtils.fileWrite(mojo.bowerJson, "{\"name\":\"app\",\"version\":\"1.1\",\"dependencies\":{\"jquery\":\"2.1.0\"}}");
+        Assert.assertTrue(mojo.isUpToDate(mojo.hashPackageJson(mojo.bowerJson)));
+
+        FileUtils.fileWrite(mojo.bowerJson, "{\"name\":\"app\",\"version\":\"1.1\",\"dependencies\":{\"jquery\":\"2.2.0\"}}");
+        Assert.assertFalse(mojo.isUpToDate(mojo.hashPackageJson(mojo.bowerJson)));
+    }
+
+    @Test
+    public void resolvesBowerrcDirectoryAgainstBasedir() throws IOException {
+        final File bowerrc = new File(mojo.basedir, ".bowerrc");
+        FileUtils.fileWrite(bowerrc, "{\"directory\":\"web/components\"}");
+        mojo.readOutputDirectory(bowerrc);
+        Assert.assertEquals(new File(mojo.basedir, "web/components").getCanonicalFile(), mojo.bowerOutputDirectory.getCanonicalFile());
+
+        final File absolute = new File(tmp.getRoot(), "elsewhere");
+        FileUtils.fileWrite(bowerrc, "{\"directory\":\"" + absolute.getAbsolutePath().replace('\\', '/') + "\"}");
+        mojo.readOutputDirectory(bowerrc);
+        Assert.assertEquals(absolute.getCanonicalFile(), mojo.bowerOutputDirectory.getCanonicalFile());
+
+        FileUtils.fileWrite(bowerrc, "{\"registry\":\"https://example.com\"}");
+        mojo.readOutputDirectory(bowerrc);
+        Assert.assertEquals(new File(mojo.basedir, "bower_components").getCanonicalFile(), mojo.bowerOutputDirectory.getCanonicalFile());
+    }
+}